@@ -0,0 +1,166 @@
+package org.boxed.cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.StopOptionHandler;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.boxed.cli.ExceptionHandler.rethrow;
+import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
+import static org.boxed.cli.PrettyNumberFormater.prettyTime;
+
+/**
+ * <pre>
+ * Benchmark harness for any CliBasic task: runs warm up and measured iterations,
+ * every iteration is a fresh task instance built by CliBasic.parse with the same arguments,
+ * only run() is measured
+ * Command line usage:
+ * java -cp target/boxed_cli-1.0.1-jar-with-dependencies.jar org.boxed.cli.Bench \
+ *      -c org.boxed.cli.run.Sample$CliApp -w 10 -m 50 -- -i input -n 5
+ * Code usage:
+ * Bench.Result res = Bench.bench(CliApp::new, args, 10, 50);
+ * LOG.info(res);
+ * </pre>
+ */
+public class Bench {
+    static final Logger LOG = LogManager.getLogger(Bench.class);
+
+    /**
+     * Bench mode command line: task class, iterations, task arguments after --
+     */
+    public static class BenchCli extends Cli.CliBasic {
+        @Option(name = "-c", aliases = "--class", required = true, usage = "CliBasic (or MultiTaskBasic) class to benchmark",
+                metaVar = "CLASS")
+        public String className;
+        @Option(name = "-w", aliases = "--warmup", usage = "number of warm up iterations (not measured)")
+        public int warmup = 5;
+        @Option(name = "-m", aliases = "--measure", usage = "number of measured iterations")
+        public int measure = 20;
+
+        @Argument
+        @Option(name = "--", handler = StopOptionHandler.class, usage = "task arguments follow")
+        public List<String> taskArgs = new ArrayList<>();
+
+        @Override
+        public void run() {
+            Class<?> clazz = rethrow(() -> Class.forName(className));
+            Result res = bench(() -> newTask(clazz), taskArgs.toArray(new String[0]), warmup, measure);
+            LOG.info("Bench " + className + " " + String.join(" ", taskArgs) + "\n" + res);
+        }
+    }
+
+    /**
+     * @param clazz CliBasic or MultiTaskBasic class with empty constructor
+     * @return new task instance (MultiTaskBasic wrapped by MultiTaskRunner)
+     */
+    public static Cli.CliBasic newTask(Class<?> clazz) {
+        Object task = rethrow(() -> clazz.getDeclaredConstructor().newInstance());
+        if (task instanceof Cli.MultiTaskBasic) return new Cli.MultiTaskRunner((Cli.MultiTaskBasic) task);
+        return (Cli.CliBasic) task;
+    }
+
+    /**
+     * Run warm up and measured iterations of the task
+     * @param taskFactory builds new task instance for every iteration
+     * @param args        task arguments
+     * @param warmup      not measured iterations
+     * @param measure     measured iterations
+     * @return latency / allocation statistics of measured iterations
+     */
+    public static Result bench(Supplier<Cli.CliBasic> taskFactory, String[] args, int warmup, int measure) {
+        for (int i = 0; i < warmup; i++) runOnce(taskFactory, args);
+        Result res = new Result();
+        for (int i = 0; i < measure; i++) {
+            long[] latencyAlloc = runOnce(taskFactory, args);
+            res.latencies.add(latencyAlloc[0]);
+            res.allocations.add(latencyAlloc[1]);
+        }
+        long runTime = res.latencies.stream().mapToLong(x -> x).sum();
+        res.total = new Timer.IterationData(runTime, measure, runTime, measure);
+        Collections.sort(res.latencies);
+        return res;
+    }
+
+    /**
+     * @return {run() nanoseconds, bytes allocated by the current thread during run()}
+     */
+    private static long[] runOnce(Supplier<Cli.CliBasic> taskFactory, String[] args) {
+        Cli.CliBasic task = taskFactory.get();
+        JTry<Boolean> toDo = task.parse(args, null);
+        if (!toDo.getOrThrow()) throw new IllegalArgumentException("Nothing to run for args: " + String.join(" ", args));
+        long alloc = allocatedBytes();
+        long start = System.nanoTime();
+        task.run();
+        long time = System.nanoTime() - start;
+        return new long[]{time, allocatedBytes() - alloc};
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Measured iterations statistics: latencies are sorted
+     */
+    public static class Result {
+        public List<Long> latencies = new ArrayList<>(), allocations = new ArrayList<>();
+        /**
+         * Measured iterations total: run_count - iterations, run_nanosecond_time - sum of run() times
+         */
+        public Timer.IterationData total;
+
+        public long mean() {
+            return total.run_nanosecond_time / Math.max(latencies.size(), 1);
+        }
+
+        /**
+         * @param p percentile in [0, 100]
+         * @return nearest rank percentile latency in nanoseconds
+         */
+        public long percentile(double p) {
+            if (latencies.isEmpty()) return 0;
+            int rank = (int) Math.ceil(p / 100. * latencies.size());
+            return latencies.get(Math.min(Math.max(rank, 1), latencies.size()) - 1);
+        }
+
+        public long max() {
+            return latencies.isEmpty() ? 0 : latencies.get(latencies.size() - 1);
+        }
+
+        public long allocationPerIteration() {
+            return (long) allocations.stream().mapToLong(x -> x).average().orElse(0);
+        }
+
+        /**
+         * @return {mean, half width} of 95% confidence interval of throughput (iterations per second)
+         */
+        public double[] throughputConfidence() {
+            double[] perSec = latencies.stream().mapToDouble(x -> 1e9 / Math.max(x, 1)).toArray();
+            double mean = 0, var = 0;
+            for (double x : perSec) mean += x / perSec.length;
+            for (double x : perSec) var += (x - mean) * (x - mean) / Math.max(perSec.length - 1, 1);
+            return new double[]{mean, 1.96 * Math.sqrt(var / Math.max(perSec.length, 1))};
+        }
+
+        @Override
+        public String toString() {
+            double[] ci = throughputConfidence();
+            return total.totalCountTime() + " " + total.totalSpeed() +
+                    "\nLatency mean " + prettyTime(mean(), 2) + " p50 " + prettyTime(percentile(50), 2) +
+                    " p99 " + prettyTime(percentile(99), 2) + " max " + prettyTime(max(), 2) +
+                    "\nAllocated/iteration " + prettyNumber(allocationPerIteration(), 2) + " bytes" +
+                    "\nThroughput(I/s) " + String.format("%3.2e +- %3.2e (95%%)", ci[0], ci[1]);
+        }
+    }
+
+    public static void main(String[] args) {
+        Cli.mainRun(args, new BenchCli());
+    }
+}
@@ -0,0 +1,253 @@
+package org.boxed.cli;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.annotations.Expose;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.boxed.cli.json.Box;
+import org.kohsuke.args4j.Option;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.boxed.cli.ExceptionHandler.rethrow;
+import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
+
+/**
+ * <pre>
+ * Checkpoint / resume for long running jobs
+ * Job state (Box child) with progress is saved to json file atomically (temp file + rename)
+ * every intervalSec seconds or intervalItems items, writing is done by background thread
+ * Restarted job with the same arguments finds the checkpoint and resumes from saved state
+ * Usage (see CheckpointCli):
+ * public class MyJob extends Checkpoint.CheckpointCli {
+ *   public void run(Checkpoint checkpoint) {
+ *     MyState state = checkpoint.restore(MyState.class);  // null - no checkpoint, start from scratch
+ *     Timer.IterationTimer timer = checkpoint.restoreTimer(new Timer.IterationTimer(10.));
+ *     for (long i = checkpoint.restoredItems(); i &lt; n; i++) {
+ *        ... update state ...
+ *        checkpoint.maybeSave(i + 1, () -&gt; state.copy()); // snapshot must not be changed after it is returned
+ *     }
+ *   }
+ * }
+ * </pre>
+ */
+public class Checkpoint implements AutoCloseable {
+    static final Logger LOG = LogManager.getLogger(Checkpoint.class);
+
+    /**
+     * Saved checkpoint content
+     */
+    public static class State extends Box {
+        @Expose
+        public String argsKey;
+        @Expose
+        public Long itemsDone = 0L;
+        @Expose
+        public Long runNanos = 0L;
+        @Expose
+        public String jobState;
+        /**
+         * Job state to be serialized to jobState by background writer
+         */
+        transient Box snapshot;
+
+        public State() {}
+    }
+
+    final Path file;
+    final String argsKey;
+    final long intervalNanos, intervalItems;
+    final State restored;
+    final long startTime = System.nanoTime();
+    long lastSaveTime = startTime, lastSaveItems;
+    final AtomicReference<State> pending = new AtomicReference<>();
+    final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "checkpoint-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param file          checkpoint file
+     * @param argsKey       job identity (class + arguments), checkpoint with other key is ignored
+     * @param intervalSec   save not more often than once in intervalSec, &lt;= 0 - no time based saves
+     * @param intervalItems save every intervalItems done items, &lt;= 0 - no item count based saves
+     */
+    public Checkpoint(Path file, String argsKey, double intervalSec, long intervalItems) {
+        this.file = file;
+        this.argsKey = argsKey;
+        this.intervalNanos = intervalSec <= 0 ? Long.MAX_VALUE : (long) (intervalSec * 1e9);
+        this.intervalItems = intervalItems <= 0 ? Long.MAX_VALUE : intervalItems;
+        this.restored = read(file, argsKey);
+        this.lastSaveItems = restored == null ? 0 : restored.itemsDone;
+    }
+
+    /**
+     * @param job    job to checkpoint
+     * @param dir    checkpoints directory
+     * @return checkpoint file name built from job class and command line arguments
+     */
+    public static Path jobFile(Cli.CliBasic job, String dir) {
+        return Paths.get(dir, job.getClass().getSimpleName() + "-" +
+                Hashing.sha256().hashString(argsKey(job), StandardCharsets.UTF_8).toString().substring(0, 16) + ".json");
+    }
+
+    public static String argsKey(Cli.CliBasic job) {
+        return job.getClass().getName() + " " + (job.cliArgs == null ? "" : String.join(" ", job.cliArgs));
+    }
+
+    private static State read(Path file, String argsKey) {
+        if (!Files.exists(file)) return null;
+        State state = JTry.of(() -> Box.str2Box(new String(Files.readAllBytes(file), StandardCharsets.UTF_8),
+                State.class, false)).processException(e -> LOG.warn("Ignoring broken checkpoint " + file, e))
+                .getOrElse(null);
+        if (state != null && !argsKey.equals(state.argsKey)) {
+            LOG.warn("Ignoring checkpoint " + file + " of other job: " + state.argsKey);
+            return null;
+        }
+        if (state != null) LOG.info("Resuming from checkpoint " + file + " items done: " + prettyNumber(state.itemsDone, 2));
+        return state;
+    }
+
+    /**
+     * @param clazz job state class
+     * @param <S>   job state type
+     * @return job state saved in checkpoint, null if no checkpoint found
+     */
+    public <S> S restore(Class<S> clazz) {
+        if (restored == null || restored.jobState == null) return null;
+        return Box.str2Box(restored.jobState, clazz, false);
+    }
+
+    /**
+     * @return number of items done according to checkpoint (0 if no checkpoint)
+     */
+    public long restoredItems() {
+        return restored == null ? 0 : restored.itemsDone;
+    }
+
+    /**
+     * @return run time according to checkpoint, nanoseconds (0 if no checkpoint)
+     */
+    public long restoredRunNanos() {
+        return restored == null ? 0 : restored.runNanos;
+    }
+
+    /**
+     * Add checkpoint progress and run time to the timer
+     */
+    public Timer.IterationTimer restoreTimer(Timer.IterationTimer timer) {
+        return timer.addIterations(restoredItems()).addRunTime(restoredRunNanos());
+    }
+
+    /**
+     * Cheap check if checkpoint is due, if so - save snapshot
+     * @param itemsDone total items done (including restored)
+     * @param snapshot  job state snapshot builder, called only if checkpoint is due,
+     *                  returned object must not be changed later - it is serialized by background thread
+     * @return if checkpoint saving was started
+     */
+    public boolean maybeSave(long itemsDone, Supplier<? extends Box> snapshot) {
+        if (itemsDone - lastSaveItems < intervalItems && System.nanoTime() - lastSaveTime < intervalNanos) return false;
+        save(itemsDone, snapshot.get());
+        return true;
+    }
+
+    /**
+     * Schedule checkpoint save in background, not yet written older checkpoint is replaced
+     * @param itemsDone total items done (including restored)
+     * @param snapshot  job state, must not be changed later
+     */
+    public void save(long itemsDone, Box snapshot) {
+        long now = System.nanoTime();
+        lastSaveItems = itemsDone;
+        lastSaveTime = now;
+        long runNanos = now - startTime + restoredRunNanos();
+        State state = new State();
+        state.argsKey = argsKey;
+        state.itemsDone = itemsDone;
+        state.runNanos = runNanos;
+        state.snapshot = snapshot;
+        // write is already scheduled - it will take the latest state
+        if (pending.getAndSet(state) == null) writer.execute(() -> write(pending.getAndSet(null)));
+    }
+
+    private void write(State state) {
+        state.jobState = Box.box2Str(state.snapshot);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        JTry.of(() -> {
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer data = ByteBuffer.wrap(Box.box2Str(state).getBytes(StandardCharsets.UTF_8));
+                while (data.hasRemaining()) out.write(data);
+                out.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            LOG.debug(() -> "Checkpoint saved " + file + " items done: " + state.itemsDone);
+        }).processException(e -> LOG.error("Failed saving checkpoint " + file, e));
+    }
+
+    /**
+     * Job finished - remove checkpoint, next run starts from scratch
+     */
+    public void complete() {
+        close();
+        JTry.of(() -> Files.deleteIfExists(file));
+    }
+
+    /**
+     * Wait for pending checkpoint write
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        rethrow(() -> writer.awaitTermination(1, TimeUnit.HOURS));
+    }
+
+    /**
+     * <pre>
+     * Base for jobs with checkpoint: checkpoint file is built from job class and arguments in --checkpoint-dir
+     * Checkpoint is removed when run(Checkpoint) completes, kept if it fails
+     * </pre>
+     */
+    public static abstract class CheckpointCli extends Cli.CliBasic {
+        @Option(name = "--checkpoint-dir", usage = "directory to save checkpoints, job resumes from its checkpoint",
+                metaVar = "DIR")
+        public String checkpointDir = "checkpoints";
+        @Option(name = "--checkpoint-sec", usage = "save checkpoint every N seconds, <= 0 - no time based checkpoints")
+        public double checkpointSec = 600;
+        @Option(name = "--checkpoint-items", usage = "save checkpoint every N items, <= 0 - no item based checkpoints")
+        public long checkpointItems = 0;
+
+        /**
+         * To be defined in children as main entrance point, use checkpoint to restore / save job state
+         */
+        public abstract void run(Checkpoint checkpoint);
+
+        @Override
+        public void run() {
+            Checkpoint checkpoint = new Checkpoint(jobFile(this, checkpointDir), argsKey(this), checkpointSec,
+                    checkpointItems);
+            try {
+                run(checkpoint);
+            } catch (Throwable e) {
+                checkpoint.close();
+                throw e;
+            }
+            checkpoint.complete();
+        }
+    }
+}
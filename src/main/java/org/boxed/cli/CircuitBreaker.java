@@ -0,0 +1,218 @@
+package org.boxed.cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
+
+/**
+ * <pre>
+ * Named circuit breaker over sliding window of last windowSize call outcomes
+ * CLOSED    - calls pass, when failure rate in window &gt;= failureRate (and window has minCalls) - OPEN
+ * OPEN      - calls are rejected with OpenException, after openDuration - HALF_OPEN
+ * HALF_OPEN - up to probes trial calls pass, all succeeded - CLOSED, any failed - OPEN
+ * Permitted call is tagged with the state generation, outcome of a call permitted before the last transition is ignored
+ * Success path is lock free: state read, two atomic updates of the window
+ * Usage:
+ * CircuitBreaker breaker = CircuitBreaker.named("backend");
+ * JTry&lt;T&gt; res = JTry.of(() -&gt; breaker.call(job));
+ * JTry&lt;T&gt; res = RetryJob.retryJob(job, Duration.ofSeconds(3),
+ *         new RetryJob.Guards().breaker(breaker).budget(RetryBudget.named("backend")));
+ * LOG.info(breaker.metrics());
+ * </pre>
+ */
+public class CircuitBreaker {
+    static final Logger LOG = LogManager.getLogger(CircuitBreaker.class);
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+    static final int NONE = 0, OK = 1, FAIL = 2;
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    /**
+     * Call rejected by open circuit breaker, is never retried by RetryJob
+     */
+    public static class OpenException extends RuntimeException {
+        public OpenException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * State and its generation (number of transitions) - changed together by one CAS
+     */
+    static final class Phase {
+        final State state;
+        final long generation;
+
+        Phase(State state, long generation) {
+            this.state = state;
+            this.generation = generation;
+        }
+    }
+
+    public final String name;
+    final int windowSize, minCalls, probes;
+    final double failureRate;
+    final long openNanos;
+    final AtomicReference<Phase> phase = new AtomicReference<>(new Phase(State.CLOSED, 0));
+    final AtomicIntegerArray window;
+    final AtomicLong calls = new AtomicLong();
+    final AtomicInteger failures = new AtomicInteger(), probesLeft = new AtomicInteger(), probesOk = new AtomicInteger();
+    volatile long openUntil;
+    final LongAdder rejected = new LongAdder(), opened = new LongAdder(), halfOpened = new LongAdder(),
+            closed = new LongAdder();
+
+    /**
+     * @param name         breaker name (for logs / metrics)
+     * @param windowSize   number of last calls in sliding window
+     * @param minCalls     min calls in window to open the breaker
+     * @param failureRate  failure rate in [0, 1] to open the breaker
+     * @param openDuration time to reject calls before trial calls
+     * @param probes       number of trial calls in HALF_OPEN state
+     */
+    public CircuitBreaker(String name, int windowSize, int minCalls, double failureRate, Duration openDuration,
+                          int probes) {
+        this.name = name;
+        this.windowSize = windowSize;
+        this.minCalls = Math.min(minCalls, windowSize);
+        this.failureRate = failureRate;
+        this.openNanos = openDuration.toNanos();
+        this.probes = probes;
+        this.window = new AtomicIntegerArray(windowSize);
+    }
+
+    /**
+     * @return shared breaker by name, created with defaults: window 100 calls, min 20 calls, 50% failures,
+     * open for 10 seconds, 3 trial calls
+     */
+    public static CircuitBreaker named(String name) {
+        return BREAKERS.computeIfAbsent(name, x -> new CircuitBreaker(x, 100, 20, 0.5, Duration.ofSeconds(10), 3));
+    }
+
+    /**
+     * Register breaker with custom settings under its name
+     */
+    public static CircuitBreaker register(CircuitBreaker breaker) {
+        BREAKERS.put(breaker.name, breaker);
+        return breaker;
+    }
+
+    /**
+     * Run callable through the breaker
+     * @throws OpenException if call is not permitted
+     */
+    public <T> T call(Callable<T> callable) throws Exception {
+        long permit = tryAcquire();
+        if (permit < 0) throw new OpenException("Circuit breaker " + name + " is " + getState());
+        try {
+            T res = callable.call();
+            onSuccess(permit);
+            return res;
+        } catch (Throwable e) {
+            onFailure(permit);
+            throw e;
+        }
+    }
+
+    /**
+     * @return permit (state generation) if call is permitted, -1 otherwise,
+     * permitted call has to report onSuccess / onFailure with the permit
+     */
+    public long tryAcquire() {
+        Phase current = phase.get();
+        if (current.state == State.OPEN && System.nanoTime() - openUntil >= 0) {
+            transition(current, State.HALF_OPEN);
+            current = phase.get();
+        }
+        if (current.state == State.CLOSED) return current.generation;
+        if (current.state == State.HALF_OPEN && takeProbe()) return current.generation;
+        rejected.increment();
+        return -1;
+    }
+
+    private boolean takeProbe() {
+        for (int left = probesLeft.get(); left > 0; left = probesLeft.get())
+            if (probesLeft.compareAndSet(left, left - 1)) return true;
+        return false;
+    }
+
+    public void onSuccess(long permit) {
+        Phase current = phase.get();
+        if (current.generation != permit) return;
+        if (current.state == State.HALF_OPEN) {
+            if (probesOk.incrementAndGet() >= probes) transition(current, State.CLOSED);
+            return;
+        }
+        record(OK);
+    }
+
+    public void onFailure(long permit) {
+        Phase current = phase.get();
+        if (current.generation != permit) return;
+        if (current.state == State.HALF_OPEN) {
+            transition(current, State.OPEN);
+            return;
+        }
+        record(FAIL);
+        int total = (int) Math.min(calls.get(), windowSize);
+        if (total >= minCalls && failures.get() >= failureRate * total) transition(current, State.OPEN);
+    }
+
+    private void record(int outcome) {
+        int old = window.getAndSet((int) (calls.getAndIncrement() % windowSize), outcome);
+        int delta = (outcome == FAIL ? 1 : 0) - (old == FAIL ? 1 : 0);
+        if (delta != 0) failures.addAndGet(delta);
+    }
+
+    private boolean transition(Phase from, State to) {
+        if (!phase.compareAndSet(from, new Phase(to, from.generation + 1))) return false;
+        switch (to) {
+            case OPEN:
+                openUntil = System.nanoTime() + openNanos;
+                opened.increment();
+                break;
+            case HALF_OPEN:
+                probesOk.set(0);
+                probesLeft.set(probes);
+                halfOpened.increment();
+                break;
+            case CLOSED:
+                for (int i = 0; i < windowSize; i++) window.set(i, NONE);
+                failures.set(0);
+                calls.set(0);
+                closed.increment();
+                break;
+        }
+        LOG.warn("Circuit breaker " + name + ": " + from.state + " -> " + to);
+        return true;
+    }
+
+    public State getState() {
+        return phase.get().state;
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getOpened() {
+        return opened.sum();
+    }
+
+    public String metrics() {
+        int total = (int) Math.min(calls.get(), windowSize);
+        return "Circuit breaker " + name + " " + getState() + " failures " + failures.get() + "/" + total +
+                " rejected " + prettyNumber(rejected.sum(), 2) + " opened " + opened.sum() +
+                " half opened " + halfOpened.sum() + " closed " + closed.sum();
+    }
+}
@@ -3,6 +3,8 @@ package org.boxed.cli;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.Recording;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -10,6 +12,10 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -17,8 +23,10 @@ import java.util.stream.Collectors;
 import static org.boxed.cli.ExceptionHandler.exceptionToString;
 import static org.boxed.cli.ExceptionHandler.rethrow;
 import static org.boxed.cli.General.listT;
+import static org.boxed.cli.General.mapKV;
 import static org.boxed.cli.PrettyNumberFormater.prettyTime;
 import static org.boxed.cli.SupLog.setDebugLevel;
+import static org.boxed.cli.json.JsonTools.obj2Str;
 import static org.boxed.cli.json.JsonTools.obj2StrCustom;
 
 
@@ -80,7 +88,12 @@ public class Cli {
     @VisibleForTesting
     static Boolean mainRunInternal(String[] args, CliBasic exec) {
         Timer.IterationTimer timer = new Timer.IterationTimer(1.);
+        Jfr.CliPhase parsePhase = phaseEvent(exec, "parse");
+        long parseStart = System.nanoTime();
         JTry<Boolean> toDo = exec.parse(args, null);
+        parsePhase.ok = toDo.isOk();
+        parsePhase.commit();
+        recordPhase(exec, "parse", parseStart, parsePhase.ok);
         toDo.recover(e -> {
             LOG.error("Failed parsing command line: " + listT(args));
             LOG.error("Got exception: ", e);
@@ -88,12 +101,76 @@ public class Cli {
             rethrow(e);
         });
         if (toDo.getOrElse(false)) {
-            exec.run();
+            Recording recording = exec.jfrFile == null ? null : Jfr.start();
+            HttpServer metricsServer = null;
+            Metrics.FileDump metricsDump = null;
+            Jfr.CliPhase runPhase = phaseEvent(exec, "run");
+            long runStart = System.nanoTime();
+            Throwable runError = null;
+            try {
+                // inside try: failed serve (port in use) still stops the recording
+                if (exec.metricsPort != null)
+                    metricsServer = JTry.of(() -> Metrics.DEFAULT.serve(exec.metricsPort)).getOrThrow();
+                if (exec.metricsFile != null) metricsDump = Metrics.DEFAULT.dumpEvery(Paths.get(exec.metricsFile),
+                        Duration.ofSeconds(exec.metricsPeriodSec));
+                exec.run();
+                runPhase.ok = true;
+            } catch (Throwable e) {
+                runError = e;
+                throw e;
+            } finally {
+                runPhase.commit();
+                recordPhase(exec, "run", runStart, runPhase.ok);
+                if (metricsDump != null) metricsDump.close();
+                if (metricsServer != null) metricsServer.stop(0);
+                if (recording != null) Jfr.stop(recording, exec.jfrFile, 10);
+                if (exec.reportFile != null) writeReport(exec, args, runError, System.nanoTime() - runStart);
+            }
             timer.printLast(count -> LOG.info(exec.getClass().getCanonicalName() + ": done in " + prettyTime(count.run_nanosecond_time, 2)));
         }
         return toDo.isOk();
     }
 
+    /**
+     * Write json run report (used by ShardRunner to gather shard results)
+     * @param exec     executed job
+     * @param args     job arguments
+     * @param error    run() exception, null if run succeeded
+     * @param runNanos run() time
+     */
+    private static void writeReport(CliBasic exec, String[] args, Throwable error, long runNanos) {
+        Map<String, Object> report = mapKV(
+                "cli", exec.getClass().getName(),
+                "args", listT(args),
+                "shard", exec.shardIndex + "/" + exec.shardCount,
+                "ok", error == null,
+                "run_nanosecond_time", runNanos,
+                "error", error == null ? null : exceptionToString(error, 2000),
+                "report", exec.runReport);
+        JTry.of(() -> Files.write(Paths.get(exec.reportFile), obj2Str(report).getBytes(StandardCharsets.UTF_8)))
+                .processException(e -> LOG.error("Failed writing run report " + exec.reportFile, e));
+    }
+
+    private static Jfr.CliPhase phaseEvent(CliBasic exec, String phase) {
+        Jfr.CliPhase event = new Jfr.CliPhase();
+        event.cli = exec.getClass().getName();
+        event.phase = phase;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Phase time (boxed_cli_phase_seconds) and failures (boxed_cli_phase_failures_total) of Metrics.DEFAULT
+     */
+    private static void recordPhase(CliBasic exec, String phase, long startNanos, boolean ok) {
+        String cli = exec.getClass().getName();
+        Metrics.DEFAULT.histogram("boxed_cli_phase_seconds", "CliBasic phase time", "cli", cli, "phase", phase)
+                .record(System.nanoTime() - startNanos);
+        Metrics.Counter failures = Metrics.DEFAULT.counter("boxed_cli_phase_failures_total", "CliBasic failed phases",
+                "cli", cli, "phase", phase);
+        if (!ok) failures.increment();
+    }
+
     enum DebugLevel {OFF, FATAL, ERROR, WARN, INFO, DEBUG, TRACE, ALL}
 
     /**
@@ -132,6 +209,72 @@ public class Cli {
         @Option(name = "-h", aliases = "--help", help = true, usage = "print help")
         public Boolean printHelp = false;
 
+        /**
+         * command line arguments will be parsed by args4j library
+         *          and if --jfr option found - run() will be recorded by JDK Flight Recorder to the given file
+         */
+        @Option(name = "--jfr", usage = "record run with JDK Flight Recorder to the file, print hot methods / allocations",
+                metaVar = "FILE")
+        public String jfrFile = null;
+
+        /**
+         * command line arguments will be parsed by args4j library
+         *          and if --report option found - json run report (status, time, runReport) is written to the file
+         */
+        @Option(name = "--report", usage = "write json run report to the file", metaVar = "FILE")
+        public String reportFile = null;
+
+        /**
+         * command line arguments will be parsed by args4j library
+         *          and if --metrics-port option found - Metrics.DEFAULT is served on http://host:port/metrics during run
+         */
+        @Option(name = "--metrics-port", usage = "serve Prometheus metrics on http port during run", metaVar = "PORT")
+        public Integer metricsPort = null;
+
+        /**
+         * command line arguments will be parsed by args4j library
+         *          and if --metrics-file option found - Metrics.DEFAULT is written to the file periodically and at the end
+         */
+        @Option(name = "--metrics-file", usage = "write Prometheus metrics to the file every --metrics-period seconds",
+                metaVar = "FILE")
+        public String metricsFile = null;
+
+        public int metricsPeriodSec = 30;
+
+        @Option(name = "--metrics-period", usage = "metrics file write period, default 30", metaVar = "SEC")
+        public void metricsPeriodSetter(int x) {
+            Preconditions.checkArgument(x >= 1, "Bad metrics period " + x + " expected at least 1 second");
+            metricsPeriodSec = x;
+        }
+
+        /**
+         * Job results to be added to json run report (see --report)
+         */
+        public Map<String, Object> runReport = new LinkedHashMap<>();
+
+        public int shardIndex = 0, shardCount = 1;
+
+        /**
+         * @param x shard to process i/N - set by ShardRunner, job processes only items with inShard(index) == true
+         */
+        @Option(name = "--shard", usage = "process only shard i of N (0 based) of the input", metaVar = "i/N")
+        public void shardSetter(String x) {
+            String[] shard = x.split("/");
+            Preconditions.checkArgument(shard.length == 2, "Bad shard " + x + " expected format: i/N");
+            shardIndex = Integer.parseInt(shard[0]);
+            shardCount = Integer.parseInt(shard[1]);
+            Preconditions.checkArgument(shardCount > 0 && shardIndex >= 0 && shardIndex < shardCount,
+                    "Bad shard " + x + " expected 0 <= i < N");
+        }
+
+        /**
+         * @param itemIndex index of input item
+         * @return if item belongs to the shard given by --shard option
+         */
+        public boolean inShard(long itemIndex) {
+            return itemIndex % shardCount == shardIndex;
+        }
+
         /**
          * @return Detailed description of program usage
          */
@@ -258,6 +401,7 @@ public class Cli {
             if (!toDo.isOk()) return toDo;
             return JTry.of(() -> {
                 CliBasic cli = multiTaskBasic.getCurrentCli();
+                inheritCommonOptions(cli);
                 if (cli.printHelp) {
                     String descr = "\nMode chosen: [" + class2option.get(cli.getClass()) + "] object: " +
                             cli.getClass().getCanonicalName() + "\nDetailed mode description:\n" + cli.usage();
@@ -267,5 +411,22 @@ public class Cli {
                 return true;
             }).recover((e) -> false);
         }
+
+        /**
+         * Common options can be given at top level or for the chosen mode
+         */
+        private void inheritCommonOptions(CliBasic cli) {
+            jfrFile = (cli.jfrFile != null) ? cli.jfrFile : multiTaskBasic.jfrFile;
+            reportFile = (cli.reportFile != null) ? cli.reportFile : multiTaskBasic.reportFile;
+            // the chosen mode calls inShard - top level --shard has to reach it
+            CliBasic sharded = (cli.shardCount > 1) ? cli : multiTaskBasic;
+            shardIndex = cli.shardIndex = sharded.shardIndex;
+            shardCount = cli.shardCount = sharded.shardCount;
+            runReport = cli.runReport;
+            metricsPort = (cli.metricsPort != null) ? cli.metricsPort : multiTaskBasic.metricsPort;
+            CliBasic dumped = (cli.metricsFile != null) ? cli : multiTaskBasic;
+            metricsFile = dumped.metricsFile;
+            metricsPeriodSec = dumped.metricsPeriodSec;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+package org.boxed.cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
+import static org.boxed.cli.PrettyNumberFormater.prettyTime;
+
+/**
+ * <pre>
+ * Adaptive concurrency limiter: allowed number of in flight jobs follows job latency (AIMD, Vegas style)
+ *   job failed or latency &gt; tolerance * min latency - limit *= backoff
+ *   otherwise, if limit is used at least by half - limit += 1 / limit (about +1 per round trip)
+ * Min latency is the minimum over the last WINDOW samples - follows backend changes
+ * Jobs over the limit wait in bounded FIFO queue, when queue is full job is shed with LimitExceededException
+ * Usage:
+ * ConcurrencyLimiter limiter = ConcurrencyLimiter.create(1, 200, 100); // share it between calls to the same backend
+ * T res = limiter.call(job);
+ * JTry&lt;T&gt; res = RetryJob.retryJob(job, Duration.ofSeconds(3), new RetryJob.Guards().concurrencyLimiter(limiter));
+ * CompletableFuture&lt;T&gt; res = RetryJob.retryJobAsync(asyncJob, Duration.ofSeconds(3), limiter);
+ * </pre>
+ */
+public class ConcurrencyLimiter {
+    static final Logger LOG = LogManager.getLogger(ConcurrencyLimiter.class);
+    static final int WINDOW = 500;
+
+    /**
+     * Job shed: queue is full, is never retried by RetryJob
+     */
+    public static class LimitExceededException extends RuntimeException {
+        public LimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    final int minLimit, maxLimit, maxQueue;
+    final double tolerance, backoff;
+    final Deque<CompletableFuture<Permit>> waiters = new ArrayDeque<>();
+    double limit;
+    int inFlight = 0;
+    long minRtt = Long.MAX_VALUE, windowMinRtt = Long.MAX_VALUE, samples = 0;
+    final LongAdder done = new LongAdder(), failed = new LongAdder(), shed = new LongAdder();
+
+    /**
+     * @param initialLimit initial number of jobs in flight
+     * @param minLimit     limit lower bound
+     * @param maxLimit     limit upper bound
+     * @param maxQueue     max number of jobs waiting for permit
+     * @param tolerance    latency / min latency ratio treated as overload
+     * @param backoff      limit multiplier on overload
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueue, double tolerance, double backoff) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.tolerance = tolerance;
+        this.backoff = backoff;
+    }
+
+    /**
+     * Limiter starting at min(20, maxLimit), latency tolerance 2, backoff 0.9
+     */
+    public static ConcurrencyLimiter create(int minLimit, int maxLimit, int maxQueue) {
+        return new ConcurrencyLimiter(Math.max(minLimit, Math.min(20, maxLimit)), minLimit, maxLimit, maxQueue, 2, 0.9);
+    }
+
+    /**
+     * Permit to run one job, has to be released once
+     */
+    public class Permit {
+        final long start = System.nanoTime();
+
+        /**
+         * @param ok job succeeded, failure (timeout, overload error) decreases the limit
+         */
+        public void release(boolean ok) {
+            ConcurrencyLimiter.this.release(System.nanoTime() - start, ok);
+        }
+    }
+
+    /**
+     * @return future of permit, completed at once if limit allows, failed with LimitExceededException if queue is full
+     */
+    public CompletableFuture<Permit> acquire() {
+        CompletableFuture<Permit> res = new CompletableFuture<>();
+        synchronized (this) {
+            if (inFlight < limit && waiters.isEmpty()) {
+                inFlight++;
+            } else if (waiters.size() < maxQueue) {
+                waiters.add(res);
+                return res;
+            } else {
+                shed.increment();
+                res.completeExceptionally(new LimitExceededException("Concurrency limit " + (int) limit +
+                        " reached and " + waiters.size() + " jobs are waiting"));
+                return res;
+            }
+        }
+        res.complete(new Permit());
+        return res;
+    }
+
+    /**
+     * Run job under the limit, wait for permit if needed
+     * @throws LimitExceededException if job is shed
+     */
+    public <T> T call(Callable<T> callable) throws Exception {
+        CompletableFuture<Permit> wait = acquire();
+        Permit permit;
+        try {
+            permit = wait.get();
+        } catch (InterruptedException e) {
+            // permit granted concurrently - give it back without latency sample
+            if (!wait.cancel(false)) releaseSlot();
+            throw e;
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+        boolean ok = false;
+        try {
+            T res = callable.call();
+            ok = true;
+            return res;
+        } finally {
+            permit.release(ok);
+        }
+    }
+
+    /**
+     * Run async job under the limit, job is started when permit is available
+     * Cancelling returned future frees its queue slot (job is not run) or cancels the running job
+     * @return future of job result, failed with LimitExceededException if job is shed
+     */
+    public <T> CompletableFuture<T> callAsync(Supplier<CompletableFuture<T>> func) {
+        CompletableFuture<Permit> wait = acquire();
+        CompletableFuture<T> res = new CompletableFuture<>();
+        wait.whenComplete((permit, e) -> {
+            if (e != null) {
+                res.completeExceptionally(e);
+                return;
+            }
+            // cancelled while permit was granted - give it back without latency sample
+            if (res.isDone()) {
+                releaseSlot();
+                return;
+            }
+            CompletableFuture<T> job;
+            try {
+                job = func.get();
+            } catch (Throwable t) {
+                permit.release(false);
+                res.completeExceptionally(t);
+                return;
+            }
+            job.whenComplete((x, t) -> {
+                permit.release(t == null);
+                if (t == null) res.complete(x);
+                else res.completeExceptionally(t);
+            });
+            res.whenComplete((x, t) -> {
+                if (res.isCancelled()) job.cancel(true);
+            });
+        });
+        res.whenComplete((x, e) -> {
+            if (res.isCancelled() && wait.cancel(false)) {
+                synchronized (this) {
+                    waiters.remove(wait);
+                }
+            }
+        });
+        return res;
+    }
+
+    void release(long rtt, boolean ok) {
+        synchronized (this) {
+            if (ok) done.increment();
+            else failed.increment();
+            update(rtt, ok);
+        }
+        releaseSlot();
+    }
+
+    /**
+     * Free in flight slot, hand it over to the first waiter if limit allows
+     */
+    private void releaseSlot() {
+        CompletableFuture<Permit> next;
+        synchronized (this) {
+            inFlight--;
+            if (inFlight >= limit) return;
+            // skip waiters cancelled by interrupted callers
+            while ((next = waiters.poll()) != null && next.isDone()) ;
+            if (next == null) return;
+            inFlight++;
+        }
+        if (!next.complete(new Permit())) releaseSlot();
+    }
+
+    private void update(long rtt, boolean ok) {
+        if (ok) {
+            windowMinRtt = Math.min(windowMinRtt, rtt);
+            minRtt = Math.min(minRtt, rtt);
+            if (++samples % WINDOW == 0) {
+                minRtt = windowMinRtt;
+                windowMinRtt = Long.MAX_VALUE;
+            }
+        }
+        if (!ok || rtt > tolerance * minRtt) {
+            limit = Math.max(minLimit, limit * backoff);
+        } else if (inFlight >= limit / 2) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public long getShed() {
+        return shed.sum();
+    }
+
+    public synchronized String metrics() {
+        return "Concurrency limit " + (int) limit + " in flight " + inFlight + " queued " + waiters.size() +
+                " done " + prettyNumber(done.sum(), 2) + " failed " + prettyNumber(failed.sum(), 2) +
+                " shed " + prettyNumber(shed.sum(), 2) +
+                " min latency " + (minRtt == Long.MAX_VALUE ? "-" : prettyTime(minRtt, 2));
+    }
+}
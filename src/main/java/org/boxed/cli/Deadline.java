@@ -0,0 +1,151 @@
+package org.boxed.cli;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+import static org.boxed.cli.PrettyNumberFormater.prettyTime;
+
+/**
+ * <pre>
+ * Point in time a job has to be done by (System.nanoTime based)
+ * Deadline scope is kept in ThreadLocal: nested scopes see the tightest deadline, other threads do not see it -
+ * scope is passed explicitly: TimeLimiter passes it to its jobs (and limits job timeout by it),
+ * JTryAsync.of and JTry.traverse / partition to their tasks, Deadline.wrap to tasks of other executors
+ * Usage:
+ * try (Deadline.Scope scope = Deadline.after(Duration.ofSeconds(2)).enter()) {
+ *     ... Deadline.current().remaining() ...
+ *     RetryJob.retryJob(deadline -&gt; callBackend(deadline.remaining()), Duration.ofSeconds(5), Duration.ofMillis(50));
+ *     executor.execute(Deadline.wrap(() -&gt; ... Deadline.current() ...));
+ * }
+ * </pre>
+ */
+public class Deadline {
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    /**
+     * Deadline passed or work can't fit in the time left, is never retried by RetryJob
+     */
+    public static class DeadlineExceededException extends RuntimeException {
+        public DeadlineExceededException(String message) {
+            super(message);
+        }
+    }
+
+    final long deadlineNanos;
+
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public static Deadline after(Duration timeout) {
+        return new Deadline(System.nanoTime() + timeout.toNanos());
+    }
+
+    /**
+     * @return deadline of the current scope, null - no deadline
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return the earliest of current scope deadline and deadline after timeout
+     */
+    public static Deadline tightest(Duration timeout) {
+        return after(timeout).min(current());
+    }
+
+    /**
+     * @return the earliest of this and other (null - this)
+     */
+    public Deadline min(Deadline other) {
+        return other == null || deadlineNanos - other.deadlineNanos <= 0 ? this : other;
+    }
+
+    public long remainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    /**
+     * @return time left, negative if deadline passed
+     */
+    public Duration remaining() {
+        return Duration.ofNanos(remainingNanos());
+    }
+
+    public boolean isExpired() {
+        return remainingNanos() <= 0;
+    }
+
+    /**
+     * @return if work taking duration can be done before the deadline
+     */
+    public boolean fits(Duration duration) {
+        return remainingNanos() >= duration.toNanos();
+    }
+
+    /**
+     * @throws DeadlineExceededException if deadline passed
+     */
+    public void check() {
+        if (isExpired()) throw new DeadlineExceededException("Deadline exceeded by " + prettyTime(-remainingNanos(), 2));
+    }
+
+    /**
+     * Enter deadline scope: current deadline becomes the earliest of this and the current one
+     * @return scope to be closed (try with resources) to restore previous deadline
+     */
+    public Scope enter() {
+        Deadline previous = CURRENT.get();
+        CURRENT.set(min(previous));
+        return new Scope(previous);
+    }
+
+    /**
+     * @return task running in the deadline scope of the calling thread (task itself if there is no scope)
+     */
+    @SuppressWarnings("try")
+    public static Runnable wrap(Runnable task) {
+        Deadline scope = current();
+        if (scope == null) return task;
+        return () -> {
+            try (Scope s = scope.enter()) {
+                task.run();
+            }
+        };
+    }
+
+    /**
+     * @see #wrap(Runnable)
+     */
+    @SuppressWarnings("try")
+    public static <T> Callable<T> wrap(Callable<T> task) {
+        Deadline scope = current();
+        if (scope == null) return task;
+        return () -> {
+            try (Scope s = scope.enter()) {
+                return task.call();
+            }
+        };
+    }
+
+    public static class Scope implements AutoCloseable {
+        final Deadline previous;
+
+        Scope(Deadline previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous == null) CURRENT.remove();
+            else CURRENT.set(previous);
+        }
+    }
+
+    @Override
+    public String toString() {
+        long left = remainingNanos();
+        return left > 0 ? "Deadline in " + prettyTime(left, 2) : "Deadline passed " + prettyTime(-left, 2) + " ago";
+    }
+}
@@ -0,0 +1,236 @@
+package org.boxed.cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
+import static org.boxed.cli.PrettyNumberFormater.prettyTime;
+
+/**
+ * <pre>
+ * Hedged requests: if the attempt is not done after hedge delay, one more (same) attempt is started,
+ * first success wins, other attempts are cancelled (interrupted), job fails when all started attempts failed
+ * Hedge delay is fixed or adaptive - percentile of recent successful call latencies
+ * Extra load is capped: hedges &lt;= maxExtraLoad * calls
+ * Attempts run on TimeLimiter, delays use its wheel timer (or clock) - no thread is blocked while waiting
+ * Usage:
+ * Hedge hedge = Hedge.adaptive(95, Duration.ofMillis(5), 0.1);  // share it between calls to the same backend
+ * JTry&lt;T&gt; res = hedge.call(job, Duration.ofSeconds(1));
+ * JTry&lt;T&gt; res = RetryJob.retryHedgedJob(job, hedge, Duration.ofSeconds(3));
+ * LOG.info(hedge.metrics());
+ * </pre>
+ */
+public class Hedge {
+    static final Logger LOG = LogManager.getLogger(Hedge.class);
+    /**
+     * Number of recent latencies used for adaptive delay, delay is recalculated every REFRESH samples
+     */
+    static final int WINDOW = 1024, REFRESH = 64;
+
+    final TimeLimiter limiter;
+    final long fixedDelayNanos, minDelayNanos;
+    final double percentile, maxExtraLoad;
+    final int maxHedges;
+    final AtomicLongArray latencies = new AtomicLongArray(WINDOW);
+    final AtomicLong samples = new AtomicLong();
+    volatile long adaptiveDelayNanos = -1;
+    final LongAdder calls = new LongAdder(), hedges = new LongAdder(), hedgeWins = new LongAdder(),
+            hedgesSkipped = new LongAdder();
+
+    /**
+     * @param limiter      runs attempts
+     * @param fixedDelay   hedge delay, null - adaptive
+     * @param percentile   adaptive delay: percentile of recent latencies in [0, 100]
+     * @param minDelay     adaptive delay: lower bound, also used until enough latencies are seen
+     * @param maxExtraLoad max share of hedged attempts relative to calls
+     * @param maxHedges    max hedged attempts per call
+     */
+    public Hedge(TimeLimiter limiter, Duration fixedDelay, double percentile, Duration minDelay, double maxExtraLoad,
+                 int maxHedges) {
+        this.limiter = limiter;
+        this.fixedDelayNanos = fixedDelay == null ? -1 : fixedDelay.toNanos();
+        this.percentile = percentile;
+        this.minDelayNanos = minDelay == null ? 0 : minDelay.toNanos();
+        this.maxExtraLoad = maxExtraLoad;
+        this.maxHedges = maxHedges;
+    }
+
+    /**
+     * Hedge after fixed delay, at most one hedge per call
+     */
+    public static Hedge fixed(Duration delay, double maxExtraLoad) {
+        return new Hedge(TimeLimiter.shared(), delay, 0, null, maxExtraLoad, 1);
+    }
+
+    /**
+     * Hedge after percentile of recent latencies (but not earlier than minDelay), at most one hedge per call
+     */
+    public static Hedge adaptive(double percentile, Duration minDelay, double maxExtraLoad) {
+        return new Hedge(TimeLimiter.shared(), null, percentile, minDelay, maxExtraLoad, 1);
+    }
+
+    /**
+     * Run hedged job, wait for result
+     * @param callable job, has to be safe to run several times concurrently
+     * @param timeout  call timeout, not positive - no timeout
+     * @return first successful attempt result, last failure if all attempts failed
+     */
+    public <T> JTry<T> call(Callable<T> callable, Duration timeout) {
+        CompletableFuture<T> res = callAsync(callable, timeout);
+        return JTry.of(() -> {
+            try {
+                return res.get();
+            } catch (InterruptedException e) {
+                res.cancel(true);
+                throw e;
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    /**
+     * Run hedged job
+     * @param callable job, has to be safe to run several times concurrently
+     * @param timeout  call timeout, not positive - no timeout
+     * @return future of first successful attempt result, cancelling it cancels all attempts
+     */
+    public <T> CompletableFuture<T> callAsync(Callable<T> callable, Duration timeout) {
+        calls.increment();
+        HedgedCall<T> call = new HedgedCall<>(callable, timeout);
+        call.attempt();
+        return call.result;
+    }
+
+    /**
+     * @return current hedge delay in nanoseconds
+     */
+    public long delayNanos() {
+        if (fixedDelayNanos >= 0) return fixedDelayNanos;
+        return Math.max(adaptiveDelayNanos, minDelayNanos);
+    }
+
+    /**
+     * Extra load cap: hedges &lt;= maxExtraLoad * calls
+     */
+    boolean allowHedge() {
+        if (hedges.sum() + 1 > maxExtraLoad * calls.sum()) {
+            hedgesSkipped.increment();
+            return false;
+        }
+        hedges.increment();
+        return true;
+    }
+
+    void recordLatency(long nanos) {
+        long n = samples.getAndIncrement();
+        latencies.set((int) (n % WINDOW), nanos);
+        if (fixedDelayNanos < 0 && (n + 1) % REFRESH == 0) {
+            int size = (int) Math.min(n + 1, WINDOW);
+            long[] sorted = new long[size];
+            for (int i = 0; i < size; i++) sorted[i] = latencies.get(i);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100. * size);
+            adaptiveDelayNanos = sorted[Math.min(Math.max(rank, 1), size) - 1];
+        }
+    }
+
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return hedged attempts per call
+     */
+    public double hedgeRate() {
+        return hedges.sum() / Math.max(calls.doubleValue(), 1);
+    }
+
+    /**
+     * @return share of hedged attempts that won
+     */
+    public double hedgeWinRate() {
+        return hedgeWins.sum() / Math.max(hedges.doubleValue(), 1);
+    }
+
+    public String metrics() {
+        return "Calls " + prettyNumber(calls.sum(), 2) + " hedges " + prettyNumber(hedges.sum(), 2) +
+                String.format(" (%.1f%%)", 100 * hedgeRate()) + " hedge wins " + prettyNumber(hedgeWins.sum(), 2) +
+                String.format(" (%.1f%%)", 100 * hedgeWinRate()) + " skipped " + prettyNumber(hedgesSkipped.sum(), 2) +
+                " delay " + prettyTime(delayNanos(), 2);
+    }
+
+    /**
+     * State of one hedged call
+     */
+    class HedgedCall<T> {
+        final Callable<T> callable;
+        final long startNanos = System.nanoTime(), timeoutNanos;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final List<CompletableFuture<T>> attempts = new CopyOnWriteArrayList<>();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicBoolean won = new AtomicBoolean();
+        volatile Runnable cancelHedge;
+
+        HedgedCall(Callable<T> callable, Duration timeout) {
+            this.callable = callable;
+            this.timeoutNanos = timeout == null || timeout.isNegative() ? 0 : timeout.toNanos();
+            result.whenComplete((res, e) -> {
+                Runnable hedge = cancelHedge;
+                if (hedge != null) hedge.run();
+                attempts.forEach(x -> x.cancel(true));
+            });
+        }
+
+        void attempt() {
+            if (result.isDone()) return;
+            long left = timeoutNanos - (System.nanoTime() - startNanos);
+            if (timeoutNanos > 0 && left <= 0) return;
+            int index = attempts.size();
+            running.incrementAndGet();
+            CompletableFuture<T> attempt = limiter.callAsync(callable, Duration.ofNanos(timeoutNanos > 0 ? left : 0));
+            attempts.add(attempt);
+            attempt.whenComplete((res, e) -> {
+                running.decrementAndGet();
+                if (e == null) {
+                    // count the win before completion wakes up the caller
+                    if (!result.isDone() && won.compareAndSet(false, true)) {
+                        recordLatency(System.nanoTime() - startNanos);
+                        if (index > 0) hedgeWins.increment();
+                        result.complete(res);
+                    }
+                } else if (running.get() == 0) {
+                    result.completeExceptionally(RetryJob.unwrapCompletion(e));
+                }
+            });
+            if (result.isDone()) attempt.cancel(true);
+            if (index < maxHedges) cancelHedge = limiter.schedule(this::hedge, delayNanos());
+        }
+
+        void hedge() {
+            if (result.isDone()) return;
+            if (allowHedge()) {
+                LOG.debug(() -> "Hedging attempt " + attempts.size() + " after " +
+                        prettyTime(System.nanoTime() - startNanos, 2));
+                attempt();
+            }
+        }
+    }
+}
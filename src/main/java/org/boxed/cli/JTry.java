@@ -1,9 +1,21 @@
 package org.boxed.cli;
 
+import org.boxed.cli.ExceptionHandler.WrapFunction;
 import org.boxed.cli.ExceptionHandler.WrapRunnable;
 import org.boxed.cli.ExceptionHandler.WrapSupplier;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -16,68 +28,92 @@ import static org.boxed.cli.ExceptionHandler.rethrow;
  * { result (of type T) ,  exception (Throwable) }
  * Exception handling can be done down the stack.
  * Result can be transformed many times using JTry.map - leaving original exception
+ * Immutable: recover of success and map of failure return the same object, null success is a shared instance
+ * (var / throwable are final - code assigning them does not compile, build a new JTry instead)
+ * Collections: traverse / partition apply failing function to all items (in parallel), sequence joins JTry list
+ * JTry&lt;List&lt;Row&gt;&gt; rows = JTry.traverse(ids, id -&gt; load(id), 16, JTryAsync.defaultExecutor(), true);
+ * JTry.Partition&lt;String, Row&gt; res = JTry.partition(ids, id -&gt; load(id), 16);
  * </pre>
  * @param <T> stored object type
  */
-public class JTry<T> {
-    public Optional<T> var = Optional.empty();
-    public Optional<Throwable> throwable = Optional.empty();
+public final class JTry<T> {
+    private static final JTry<?> NULL = new JTry<>(Optional.empty(), Optional.empty());
 
-    public static <T> JTry<T> of(WrapSupplier<T, Throwable> builder) {
-        return new JTry<T>(builder);
-    }
+    public final Optional<T> var;
+    public final Optional<Throwable> throwable;
 
-    public static <T> JTry<T> of(WrapRunnable<Throwable> builder) {
-        return new JTry<T>(builder);
+    private JTry(Optional<T> var, Optional<Throwable> throwable) {
+        this.var = var;
+        this.throwable = throwable;
     }
 
-    public JTry(WrapSupplier<T, Throwable> builder) {
+    public static <T> JTry<T> of(WrapSupplier<T, Throwable> builder) {
         try {
-            var = Optional.ofNullable(builder.get());
+            return success(builder.get());
         } catch (Throwable e) {
-            throwable = Optional.of(e);
+            return failure(e);
         }
     }
 
-    public JTry(WrapRunnable<Throwable> builder) {
+    public static <T> JTry<T> of(WrapRunnable<Throwable> builder) {
         try {
             builder.run();
+            return success(null);
         } catch (Throwable e) {
-            throwable = Optional.of(e);
+            return failure(e);
         }
     }
 
+    public JTry(WrapSupplier<T, Throwable> builder) {
+        this(of(builder));
+    }
+
+    public JTry(WrapRunnable<Throwable> builder) {
+        this(JTry.<T>of(builder));
+    }
+
     public JTry(Throwable e) {
-        throwable = Optional.of(e);
+        this(Optional.empty(), Optional.of(e));
     }
 
-    //rethrow RuntimeException, throw RuntimeException(exception) for the rest
+    private JTry(JTry<T> res) {
+        this(res.var, res.throwable);
+    }
+
+    /**
+     * @return success, null result is a shared instance
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> JTry<T> success(T value) {
+        return value == null ? (JTry<T>) NULL : new JTry<>(Optional.of(value), Optional.empty());
+    }
+
+    public static <T> JTry<T> failure(Throwable e) {
+        return new JTry<>(Optional.empty(), Optional.of(e));
+    }
+
+    //rethrow stored exception as is (checked exceptions too)
     public T getOrThrow() {
-        if (throwable.isPresent()) {
-            try {
-                RuntimeException e = (RuntimeException) throwable.get();
-                if (e != null) throw e;
-            } catch (Throwable bad) {
-            }
-            rethrow(throwable.get());
-        }
-        return var.orElseGet(() -> null);
+        if (throwable.isPresent()) rethrow(throwable.get());
+        return var.orElse(null);
     }
 
     public T getOrElse(T def) {
-        if (throwable.isPresent()) return def;
-        return var.orElseGet(() -> null);
+        return throwable.isPresent() ? def : var.orElse(null);
     }
 
     public T getOrSet(WrapSupplier<T, Throwable> supplier) {
-        if (throwable.isPresent()) return rethrow(supplier);
-        return var.orElseGet(null);
+        return throwable.isPresent() ? rethrow(supplier) : var.orElse(null);
     }
 
-    //Build result for generated exception (if present)
+    //Build result for generated exception (if present), success is returned as is
     public JTry<T> recover(Function<Throwable, T> handle) {
-        if (throwable.isPresent()) return JTry.of(() -> handle.apply(throwable.get()));
-        return JTry.of(() -> this.getOrThrow());
+        if (!throwable.isPresent()) return this;
+        try {
+            return success(handle.apply(throwable.get()));
+        } catch (Throwable e) {
+            return failure(e);
+        }
     }
 
     public JTry<T> processException(Consumer<Throwable> handle) {
@@ -87,13 +123,24 @@ public class JTry<T> {
 
     //generate null result for handled exception
     public JTry<T> recover(Consumer<Throwable> handle) {
-        if (throwable.isPresent()) return JTry.of(() -> handle.accept(throwable.get()));
-        return JTry.of(() -> this.getOrThrow());
+        if (!throwable.isPresent()) return this;
+        try {
+            handle.accept(throwable.get());
+            return success(null);
+        } catch (Throwable e) {
+            return failure(e);
+        }
     }
 
+    //failure is returned as is
+    @SuppressWarnings("unchecked")
     public <T1> JTry<T1> map(Function<T, T1> handle) {
-        if (throwable.isPresent()) return new JTry<T1>(throwable.get());
-        return JTry.of(() -> handle.apply(var.orElseGet(() -> null)));
+        if (throwable.isPresent()) return (JTry<T1>) this;
+        try {
+            return success(handle.apply(var.orElse(null)));
+        } catch (Throwable e) {
+            return failure(e);
+        }
     }
 
     public Boolean isOk() {
@@ -102,25 +149,212 @@ public class JTry<T> {
 
     @Override
     public String toString() {
-        return map(x -> "value: " + x.toString())
-                .recover((Throwable e) -> "exception: " + exceptionToString(e)).getOrThrow();
+        return throwable.isPresent() ? "exception: " + exceptionToString(throwable.get()) : "value: " + var.orElse(null);
     }
 
+    /**
+     * Successes with equal values are equal, any two failures are equal
+     */
     @Override
     public boolean equals(Object o) {
-        @SuppressWarnings("unchecked")
-        JTry<T> other = (JTry<T>) o;
-        if (other == null) return false;
-        Boolean ret = map(x -> other.map(y -> x.equals(y)).getOrElse(false))
-                .recover((Throwable e) -> other.map(x -> false).recover(e1 -> true))
-                .getOrThrow();
-        return ret;
+        if (!(o instanceof JTry)) return false;
+        JTry<?> other = (JTry<?>) o;
+        return throwable.isPresent() ? other.throwable.isPresent() : !other.throwable.isPresent() && var.equals(other.var);
     }
 
     @Override
     public int hashCode() {
-        int ret = map(x -> x == null ? 0 : x.hashCode()).getOrElse(1);
-        return ret;
+        return throwable.isPresent() ? 1 : var.map(Object::hashCode).orElse(0);
+    }
+
+    /**
+     * Successes in input order and failed items with their exceptions
+     */
+    public static class Partition<A, B> {
+        public final List<B> successes = new ArrayList<>();
+        public final List<Map.Entry<A, Throwable>> failures = new ArrayList<>();
+
+        @Override
+        public String toString() {
+            return "Successes " + successes.size() + " failures " + failures.size();
+        }
     }
-}
 
+    /**
+     * @return list of results, or failure with the first exception if any failed (all exceptions are suppressed in it)
+     */
+    public static <T> JTry<List<T>> sequence(Collection<JTry<T>> results) {
+        List<T> values = new ArrayList<>(results.size());
+        Throwable first = null;
+        for (JTry<T> res : results) {
+            if (res.isOk()) values.add(res.var.orElse(null));
+            else first = suppress(first, res.throwable.get());
+        }
+        return first == null ? success(values) : failure(first);
+    }
+
+    /**
+     * CPU bound traverse on ForkJoin common pool, all items are processed
+     * @see #traverse(Collection, WrapFunction, int, Executor, boolean)
+     */
+    public static <A, B> JTry<List<B>> traverse(Collection<A> items, WrapFunction<A, B, Throwable> func, int parallelism) {
+        return traverse(items, func, parallelism, ForkJoinPool.commonPool(), false);
+    }
+
+    /**
+     * Apply func to all items, up to parallelism items at once, func runs in the Deadline scope of the caller
+     * @param executor     ForkJoinPool.commonPool() for CPU bound func, JTryAsync.defaultExecutor() for I/O
+     * @param shortCircuit stop on the first failure: no new items are started, running ones are interrupted
+     * @return results in input order, or failure with the first exception (the other ones are suppressed in it)
+     */
+    public static <A, B> JTry<List<B>> traverse(Collection<A> items, WrapFunction<A, B, Throwable> func, int parallelism,
+                                                Executor executor, boolean shortCircuit) {
+        AtomicReference<Throwable> failed = new AtomicReference<>();
+        List<JTry<B>> results = applyAll(new ArrayList<>(items), func, parallelism, executor, shortCircuit ? failed : null);
+        // short circuit: exception which stopped traverse goes first, not the interrupted ones
+        Throwable first = failed.get();
+        List<B> values = new ArrayList<>(items.size());
+        for (JTry<B> res : results) {
+            if (res == null) continue;
+            if (res.isOk()) values.add(res.var.orElse(null));
+            else first = suppress(first, res.throwable.get());
+        }
+        return first == null ? success(values) : failure(first);
+    }
+
+    /**
+     * CPU bound partition on ForkJoin common pool
+     * @see #partition(Collection, WrapFunction, int, Executor)
+     */
+    public static <A, B> Partition<A, B> partition(Collection<A> items, WrapFunction<A, B, Throwable> func, int parallelism) {
+        return partition(items, func, parallelism, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Apply func to all items, up to parallelism items at once, split successes and failures
+     */
+    public static <A, B> Partition<A, B> partition(Collection<A> items, WrapFunction<A, B, Throwable> func, int parallelism,
+                                                   Executor executor) {
+        List<A> list = new ArrayList<>(items);
+        List<JTry<B>> results = applyAll(list, func, parallelism, executor, null);
+        Partition<A, B> res = new Partition<>();
+        for (int i = 0; i < list.size(); i++) {
+            JTry<B> item = results.get(i);
+            if (item.isOk()) res.successes.add(item.var.orElse(null));
+            else res.failures.add(new AbstractMap.SimpleImmutableEntry<>(list.get(i), item.throwable.get()));
+        }
+        return res;
+    }
+
+    private static Throwable suppress(Throwable first, Throwable e) {
+        if (first == null) return e;
+        if (first != e) first.addSuppressed(e);
+        return first;
+    }
+
+    /**
+     * Workers (the caller is one of them) take items by index, results are in input order,
+     * items not started because of short circuit have null result
+     * The caller waits only for helpers which started before it ran out of items - helper still queued
+     * on a busy pool (nested traverse, call from a pool task) exits without work, nothing waits for it
+     * @param failed short circuit: gets the first exception, null - process all items
+     */
+    private static <A, B> List<JTry<B>> applyAll(List<A> items, WrapFunction<A, B, Throwable> func, int parallelism,
+                                                 Executor executor, AtomicReference<Throwable> failed) {
+        int n = items.size(), workers = Math.max(1, Math.min(parallelism, n));
+        AtomicReferenceArray<JTry<B>> results = new AtomicReferenceArray<>(n);
+        AtomicInteger next = new AtomicInteger();
+        boolean shortCircuit = failed != null;
+        Helpers helpers = new Helpers();
+        List<Slot> running = new ArrayList<>();
+        for (int w = 0; w < workers; w++) running.add(new Slot());
+        for (int w = 0; w < workers; w++) {
+            Slot slot = running.get(w);
+            boolean helper = w < workers - 1;
+            Runnable worker = () -> {
+                if (helper && !helpers.enter()) return;
+                boolean interruptedBefore = Thread.currentThread().isInterrupted();
+                synchronized (slot) {
+                    slot.thread = Thread.currentThread();
+                }
+                try {
+                    for (int i = next.getAndIncrement(); i < n && !(shortCircuit && failed.get() != null);
+                         i = next.getAndIncrement()) {
+                        A item = items.get(i);
+                        JTry<B> res = JTry.of(() -> func.apply(item));
+                        results.set(i, res);
+                        if (shortCircuit && !res.isOk() && failed.compareAndSet(null, res.throwable.get()))
+                            interruptOthers(running);
+                    }
+                } finally {
+                    synchronized (slot) {
+                        slot.thread = null;
+                        // do not leak short circuit interrupt to the next job of pool thread,
+                        // interrupt of the caller set before is kept
+                        if (slot.interrupted && !interruptedBefore) Thread.interrupted();
+                    }
+                    if (helper) helpers.exit();
+                }
+            };
+            if (!helper) worker.run();
+            else {
+                try {
+                    executor.execute(Deadline.wrap(worker));
+                } catch (RejectedExecutionException e) {
+                    // the caller processes the items left
+                }
+            }
+        }
+        try {
+            helpers.closeAndAwait();
+        } catch (InterruptedException e) {
+            rethrow(e);
+        }
+        List<JTry<B>> res = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) res.add(results.get(i));
+        return res;
+    }
+
+    /**
+     * Started helper workers of applyAll, helpers starting after close do nothing
+     */
+    private static final class Helpers {
+        int running;
+        boolean closed;
+
+        synchronized boolean enter() {
+            if (closed) return false;
+            running++;
+            return true;
+        }
+
+        synchronized void exit() {
+            if (--running == 0) notifyAll();
+        }
+
+        synchronized void closeAndAwait() throws InterruptedException {
+            closed = true;
+            while (running > 0) wait();
+        }
+    }
+
+    private static void interruptOthers(List<Slot> running) {
+        for (Slot slot : running) {
+            synchronized (slot) {
+                Thread t = slot.thread;
+                if (t != null && t != Thread.currentThread() && !slot.interrupted) {
+                    slot.interrupted = true;
+                    t.interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Thread running applyAll worker, if it was interrupted by short circuit
+     */
+    private static final class Slot {
+        Thread thread;
+        boolean interrupted;
+    }
+}
@@ -0,0 +1,272 @@
+package org.boxed.cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.boxed.cli.ExceptionHandler.WrapSupplier;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.boxed.cli.RetryJob.unwrapCompletion;
+
+/**
+ * <pre>
+ * Asynchronous JTry: result or exception of a computation running on an executor, composed without blocking
+ * map / flatMap / recover steps run on the executor when the previous step is done,
+ * independent JTryAsync run at the same time (zip waits for both)
+ * Exceptions are unwrapped (no CompletionException), cancel interrupts the running job of JTryAsync.of
+ * Default executor: virtual thread per task when the runtime has them (Java 21+), bounded daemon pool otherwise
+ * Usage:
+ * JTryAsync&lt;User&gt; user = JTryAsync.of(() -&gt; loadUser(id));
+ * JTryAsync&lt;List&lt;Order&gt;&gt; orders = JTryAsync.of(() -&gt; loadOrders(id));   // runs together with loadUser
+ * JTry&lt;Page&gt; page = user.zip(orders, Page::new).withTimeout(Duration.ofSeconds(2))
+ *         .recover((Throwable e) -&gt; Page.empty()).get();
+ * JTryAsync&lt;T&gt; retried = JTryAsync.retry(() -&gt; callAsync(), Duration.ofSeconds(10));
+ * </pre>
+ * @param <T> result type
+ */
+public class JTryAsync<T> {
+    static final Logger LOG = LogManager.getLogger(JTryAsync.class);
+    private static volatile Executor defaultExecutor;
+
+    final CompletableFuture<T> future;
+    final Executor executor;
+
+    JTryAsync(CompletableFuture<T> future, Executor executor) {
+        this.future = future;
+        this.executor = executor;
+    }
+
+    /**
+     * @return virtual thread per task executor if the runtime supports it, else bounded pool of daemon threads
+     */
+    public static Executor defaultExecutor() {
+        if (defaultExecutor == null) {
+            synchronized (JTryAsync.class) {
+                if (defaultExecutor == null) defaultExecutor = JTry.of(() ->
+                        (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null))
+                        .recover((Throwable e) -> {
+                            LOG.debug(() -> "No virtual threads, using thread pool: " + e);
+                            return boundedPool(Math.max(64, 8 * Runtime.getRuntime().availableProcessors()));
+                        }).getOrThrow();
+            }
+        }
+        return defaultExecutor;
+    }
+
+    static ExecutorService boundedPool(int threads) {
+        AtomicInteger threadNum = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "jtry-async-" + threadNum.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Run builder on the default executor
+     */
+    public static <T> JTryAsync<T> of(WrapSupplier<T, Throwable> builder) {
+        return of(builder, defaultExecutor());
+    }
+
+    /**
+     * Run builder on the executor in the Deadline scope of the caller, cancel of the result interrupts the builder
+     */
+    public static <T> JTryAsync<T> of(WrapSupplier<T, Throwable> builder, Executor executor) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        FutureTask<T> task = new FutureTask<>(Deadline.wrap(() -> JTry.of(builder).getOrThrow())) {
+            @Override
+            protected void done() {
+                if (isCancelled()) return;
+                try {
+                    res.complete(get());
+                } catch (Throwable e) {
+                    res.completeExceptionally(unwrapCompletion(e));
+                }
+            }
+        };
+        res.whenComplete((x, e) -> {
+            if (res.isCancelled()) task.cancel(true);
+        });
+        JTry.of(() -> executor.execute(task)).processException(res::completeExceptionally);
+        return new JTryAsync<>(res, executor);
+    }
+
+    /**
+     * Wrap future, steps run on the default executor
+     */
+    public static <T> JTryAsync<T> from(CompletableFuture<T> future) {
+        return new JTryAsync<>(future, defaultExecutor());
+    }
+
+    public static <T> JTryAsync<T> completed(JTry<T> res) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        res.map(future::complete).processException(future::completeExceptionally);
+        return new JTryAsync<>(future, defaultExecutor());
+    }
+
+    /**
+     * Non blocking retries, see {@link RetryJob#retryJobAsync(Supplier, Duration)}
+     */
+    public static <T> JTryAsync<T> retry(Supplier<CompletableFuture<T>> attempt, Duration totalTimeout) {
+        return from(RetryJob.retryJobAsync(attempt, totalTimeout));
+    }
+
+    /**
+     * Blocking retries of builder (see {@link RetryJob#retryJob(java.util.concurrent.Callable, Duration)})
+     * running on the executor
+     */
+    public static <T> JTryAsync<T> retry(WrapSupplier<T, Throwable> builder, Duration totalTimeout, Executor executor) {
+        return of(() -> RetryJob.retryJob(() -> JTry.of(builder).getOrThrow(), totalTimeout).getOrThrow(), executor);
+    }
+
+    /**
+     * @return the same steps run on another executor
+     */
+    public JTryAsync<T> on(Executor executor) {
+        return new JTryAsync<>(future, executor);
+    }
+
+    public <T1> JTryAsync<T1> map(Function<T, T1> handle) {
+        return next(future.thenApplyAsync(handle, executor));
+    }
+
+    /**
+     * @return step of res, cancel of the step cancels this JTryAsync (and interrupts the job of JTryAsync.of)
+     */
+    private <T1> JTryAsync<T1> next(CompletableFuture<T1> res) {
+        res.whenComplete((x, e) -> {
+            if (res.isCancelled()) cancel();
+        });
+        return new JTryAsync<>(res, executor);
+    }
+
+    /**
+     * Next asynchronous step, starts when this one is done
+     */
+    public <T1> JTryAsync<T1> flatMap(Function<T, JTryAsync<T1>> handle) {
+        return next(future.thenComposeAsync(x -> handle.apply(x).future, executor));
+    }
+
+    /**
+     * Combine with other result (both run at the same time), fails if any of them fails, cancel cancels both
+     */
+    public <U, R> JTryAsync<R> zip(JTryAsync<U> other, BiFunction<T, U, R> combine) {
+        JTryAsync<R> res = next(future.thenCombineAsync(other.future, combine, executor));
+        res.future.whenComplete((x, e) -> {
+            if (res.future.isCancelled()) other.cancel();
+        });
+        return res;
+    }
+
+    //Build result for exception (if any)
+    public JTryAsync<T> recover(Function<Throwable, T> handle) {
+        return next(future.handleAsync((res, e) -> e == null ? res : handle.apply(unwrapCompletion(e)), executor));
+    }
+
+    //generate null result for handled exception
+    public JTryAsync<T> recover(Consumer<Throwable> handle) {
+        return recover((Throwable e) -> {
+            handle.accept(e);
+            return null;
+        });
+    }
+
+    public JTryAsync<T> processException(Consumer<Throwable> handle) {
+        future.whenComplete((res, e) -> {
+            if (e != null) handle.accept(unwrapCompletion(e));
+        });
+        return this;
+    }
+
+    /**
+     * Fail with TimeoutException if not done within timeout, this JTryAsync is cancelled
+     */
+    public JTryAsync<T> withTimeout(Duration timeout) {
+        return withTimeout(timeout, TimeSource.SYSTEM);
+    }
+
+    /**
+     * @param clock time source of the timeout, e.g. VirtualTimeSource in tests
+     */
+    public JTryAsync<T> withTimeout(Duration timeout, TimeSource clock) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        ScheduledFuture<?> timer = clock.schedule(() -> {
+            if (res.completeExceptionally(new TimeoutException("JTryAsync timeout " + timeout))) cancel();
+        }, timeout.toNanos());
+        future.whenComplete((x, e) -> {
+            timer.cancel(false);
+            if (e == null) res.complete(x);
+            else res.completeExceptionally(unwrapCompletion(e));
+        });
+        return next(res);
+    }
+
+    /**
+     * Cancel computation: result fails with CancellationException, previous steps are cancelled,
+     * running job of JTryAsync.of is interrupted
+     * @return if this call cancelled it
+     */
+    public boolean cancel() {
+        return future.cancel(true);
+    }
+
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    /**
+     * Wait for result
+     */
+    public JTry<T> get() {
+        return JTry.of(() -> {
+            try {
+                return future.get();
+            } catch (Throwable e) {
+                throw unwrapCompletion(e);
+            }
+        });
+    }
+
+    public T getOrThrow() {
+        return get().getOrThrow();
+    }
+
+    public T getOrElse(T def) {
+        return get().getOrElse(def);
+    }
+
+    /**
+     * @return future completed (never exceptionally) with JTry of result or exception
+     */
+    public CompletableFuture<JTry<T>> toJTry() {
+        return RetryJob.toJTry(future);
+    }
+
+    public CompletableFuture<T> toFuture() {
+        return future;
+    }
+
+    @Override
+    public String toString() {
+        return future.isDone() ? "JTryAsync " + get() : "JTryAsync running";
+    }
+}
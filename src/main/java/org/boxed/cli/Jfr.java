@@ -0,0 +1,182 @@
+package org.boxed.cli;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.boxed.cli.ExceptionHandler.rethrow;
+import static org.boxed.cli.General.listT;
+import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
+
+/**
+ * <pre>
+ * JDK Flight Recorder support
+ * Custom events emitted by the library (visible in JMC under "boxed_cli" category):
+ *   CliPhase     - Cli parse / run phases
+ *   RetryAttempt - single RetryJob attempt
+ *   Timeout      - time limited job aborted by timeout
+ *   TimerPublish - IterationTimer progress publish
+ *   Parse        - Box / JsonTools string parsing
+ * Disabled events (no recording running) are cheap but not free: event object and enabled check per call
+ *
+ * Recording of the whole CliBasic.run() - use common option: --jfr file.jfr
+ * Manual usage:
+ * Recording rec = Jfr.start();
+ * ... job ...
+ * Jfr.stop(rec, "out.jfr", 10); // dump and print hot methods / allocation summary
+ * </pre>
+ */
+public class Jfr {
+    static final Logger LOG = LogManager.getLogger(Jfr.class);
+
+    @Name("org.boxed.cli.CliPhase")
+    @Label("Cli Phase")
+    @Category({"boxed_cli", "Cli"})
+    @Description("Command line parsing / run phase of CliBasic job")
+    public static class CliPhase extends Event {
+        @Label("Cli")
+        public String cli;
+        @Label("Phase")
+        public String phase;
+        @Label("Ok")
+        public boolean ok;
+    }
+
+    @Name("org.boxed.cli.RetryAttempt")
+    @Label("Retry Attempt")
+    @Category({"boxed_cli", "RetryJob"})
+    @Description("Single attempt of RetryJob.retryJob")
+    public static class RetryAttempt extends Event {
+        @Label("Attempt")
+        public int attempt;
+        @Label("Ok")
+        public boolean ok;
+        @Label("Exception")
+        public String exception;
+    }
+
+    @Name("org.boxed.cli.Timeout")
+    @Label("Timeout")
+    @Category({"boxed_cli", "RetryJob"})
+    @Description("Time limited job aborted by timeout")
+    public static class Timeout extends Event {
+        @Label("Timeout ms")
+        public long timeoutMs;
+    }
+
+    @Name("org.boxed.cli.TimerPublish")
+    @Label("Timer Publish")
+    @Category({"boxed_cli", "Timer"})
+    @Description("IterationTimer progress publish")
+    public static class TimerPublish extends Event {
+        @Label("Iteration count")
+        public long iterationCount;
+        @Label("Iteration ns")
+        public long iterationNanos;
+        @Label("Run count")
+        public long runCount;
+        @Label("Run ns")
+        public long runNanos;
+    }
+
+    @Name("org.boxed.cli.Parse")
+    @Label("Parse")
+    @Category({"boxed_cli", "json"})
+    @Description("Box / JsonTools string parsing")
+    public static class Parse extends Event {
+        @Label("Parser")
+        public String parser;
+        @Label("Length")
+        public int length;
+        @Label("Ok")
+        public boolean ok;
+    }
+
+    /**
+     * Start recording with jdk "profile" settings (method sampling, allocation sampling), custom events enabled
+     * @return running recording
+     */
+    public static Recording start() {
+        Recording recording = rethrow(() -> new Recording(Configuration.getConfiguration("profile")));
+        recording.setName("boxed_cli");
+        for (Class<? extends Event> event : listT(CliPhase.class, RetryAttempt.class, Timeout.class,
+                TimerPublish.class, Parse.class)) recording.enable(event);
+        recording.start();
+        return recording;
+    }
+
+    /**
+     * Stop recording, dump it to the file and print summary
+     * @param recording running recording
+     * @param file      output jfr file
+     * @param top       number of hot methods / allocated classes to print
+     */
+    public static void stop(Recording recording, String file, int top) {
+        Path path = Paths.get(file);
+        JTry.of(() -> {
+            recording.stop();
+            recording.dump(path);
+        }).processException(e -> LOG.error("Failed dumping jfr recording to " + file, e));
+        recording.close();
+        LOG.info("Jfr recording saved: " + path.toAbsolutePath() + "\n" + summary(path, top));
+    }
+
+    /**
+     * @param path jfr file
+     * @param top  number of hot methods / allocated classes to show
+     * @return summary: top methods by execution samples, top classes by allocated bytes, custom events count
+     */
+    public static String summary(Path path, int top) {
+        Map<String, Long> hotMethods = new HashMap<>();
+        Map<String, Long> allocations = new HashMap<>();
+        Map<String, Long> boxedEvents = new HashMap<>();
+        JTry<Object> read = JTry.of(() -> {
+            try (RecordingFile file = new RecordingFile(path)) {
+                while (file.hasMoreEvents()) {
+                    RecordedEvent event = file.readEvent();
+                    String type = event.getEventType().getName();
+                    if (type.equals("jdk.ExecutionSample")) {
+                        if (event.getStackTrace() == null || event.getStackTrace().getFrames().isEmpty()) continue;
+                        RecordedFrame frame = event.getStackTrace().getFrames().get(0);
+                        RecordedMethod method = frame.getMethod();
+                        hotMethods.merge(method.getType().getName() + "." + method.getName(), 1L, Long::sum);
+                    } else if (type.equals("jdk.ObjectAllocationSample")) {
+                        RecordedClass clazz = event.getClass("objectClass");
+                        allocations.merge(clazz == null ? "unknown" : clazz.getName(), event.getLong("weight"), Long::sum);
+                    } else if (type.startsWith("org.boxed.cli.")) {
+                        boxedEvents.merge(type, 1L, Long::sum);
+                    }
+                }
+            }
+        });
+        if (!read.isOk()) return "Failed reading jfr file: " + read;
+        return "Hot methods (execution samples):\n" + topN(hotMethods, top, x -> prettyNumber(x, 2)) +
+                "\nAllocations (sampled bytes):\n" + topN(allocations, top, x -> prettyNumber(x, 2) + " bytes") +
+                "\nboxed_cli events:\n" + topN(boxedEvents, boxedEvents.size(), x -> prettyNumber(x, 2));
+    }
+
+    private static String topN(Map<String, Long> counts, int top,
+                               Function<Long, String> format) {
+        return counts.entrySet().stream().sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(top).map(x -> "  " + format.apply(x.getValue()) + "\t" + x.getKey())
+                .collect(Collectors.joining("\n"));
+    }
+}
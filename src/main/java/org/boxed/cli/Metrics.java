@@ -0,0 +1,318 @@
+package org.boxed.cli;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * <pre>
+ * In-process metrics registry exported in Prometheus text format: counters, gauges and Timer histograms
+ * Recording is lock free (LongAdder / Timer.Histogram), exposition only reads them
+ * Built in metrics of Metrics.DEFAULT: RetryJob attempts (boxed_retry_*), CliBasic phases (boxed_cli_*),
+ * registered timers (boxed_timer_*) - CliBasic options --metrics-port / --metrics-file export them
+ * Usage:
+ * Metrics.Counter rows = Metrics.DEFAULT.counter("rows_total", "Rows processed", "table", "users");
+ * Timer.Histogram latency = Metrics.DEFAULT.histogram("request_seconds", "Request latency");
+ * Metrics.DEFAULT.gauge("queue_size", "Queue size", queue::size);
+ * Metrics.DEFAULT.register("load", concurrentTimer);
+ * HttpServer server = Metrics.DEFAULT.serve(9100);        // GET /metrics, server.stop(0) when done
+ * try (Metrics.FileDump dump = Metrics.DEFAULT.dumpEvery(Paths.get("metrics.prom"), Duration.ofSeconds(30))) {...}
+ * </pre>
+ */
+public class Metrics {
+    static final Logger LOG = LogManager.getLogger(Metrics.class);
+    public static final Metrics DEFAULT = new Metrics();
+    static final Pattern NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+    /**
+     * Histogram buckets (le) exported: 1, 2.5, 5 per decade from 1mks to 100s
+     */
+    static final long[] BUCKETS_NANOS = bucketsNanos();
+
+    final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+
+    static long[] bucketsNanos() {
+        long[] res = new long[25];
+        long decade = 1000;
+        for (int i = 0; i < 24; i += 3, decade *= 10) {
+            res[i] = decade;
+            res[i + 1] = decade * 5 / 2;
+            res[i + 2] = decade * 5;
+        }
+        res[24] = decade;
+        return res;
+    }
+
+    /**
+     * Monotonic counter
+     */
+    public static class Counter {
+        final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long add) {
+            value.add(add);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * @param labels label name / value pairs
+     * @return counter registered under name and labels (created on the first call)
+     */
+    public Counter counter(String name, String help, String... labels) {
+        Metric metric = metrics.computeIfAbsent(key(name, labels), x -> new Metric(name, help, "counter", labels,
+                new Counter()));
+        return (Counter) checkType(metric, name, "counter").value;
+    }
+
+    /**
+     * Gauge read at export time, replaces gauge registered under the same name and labels
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        String key = key(name, labels);
+        Metric old = metrics.put(key, new Metric(name, help, "gauge", labels, value));
+        if (old != null) checkType(old, name, "gauge");
+    }
+
+    /**
+     * @return latency histogram (nanoseconds) exported in seconds, created on the first call
+     */
+    public Timer.Histogram histogram(String name, String help, String... labels) {
+        Metric metric = metrics.computeIfAbsent(key(name, labels), x -> new Metric(name, help, "histogram", labels,
+                new Timer.Histogram()));
+        return (Timer.Histogram) checkType(metric, name, "histogram").value;
+    }
+
+    /**
+     * Export ConcurrentIterationTimer as boxed_timer_iterations_total / boxed_timer_latency_seconds {timer=name}
+     */
+    public void register(String name, Timer.ConcurrentIterationTimer timer) {
+        put(new Metric("boxed_timer_iterations_total", "Timer iterations", "counter", new String[]{"timer", name},
+                (DoubleSupplier) timer.currentIter::sum));
+        put(new Metric("boxed_timer_latency_seconds", "Timer iteration latency", "histogram",
+                new String[]{"timer", name}, (Supplier<Timer.Histogram.Snapshot>) timer::latencySnapshot));
+    }
+
+    /**
+     * Export IterationTimer as boxed_timer_iterations_total / boxed_timer_run_seconds {timer=name},
+     * values are read without synchronization - can be behind the timer owner thread
+     */
+    public void register(String name, Timer.IterationTimer timer) {
+        put(new Metric("boxed_timer_iterations_total", "Timer iterations", "counter", new String[]{"timer", name},
+                (DoubleSupplier) () -> timer.currentIter));
+        put(new Metric("boxed_timer_run_seconds", "Timer run time", "gauge", new String[]{"timer", name},
+                (DoubleSupplier) () -> (timer.clock.nanoTime() - timer.startTime) / 1e9));
+    }
+
+    public void unregister(String name, String... labels) {
+        metrics.remove(key(name, labels));
+    }
+
+    private void put(Metric metric) {
+        Metric old = metrics.put(key(metric.name, metric.labels), metric);
+        if (old != null) checkType(old, metric.name, metric.type);
+    }
+
+    private static Metric checkType(Metric metric, String name, String type) {
+        if (!metric.type.equals(type))
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + metric.type);
+        return metric;
+    }
+
+    static String key(String name, String[] labels) {
+        if (!NAME.matcher(name).matches()) throw new IllegalArgumentException("Bad metric name: " + name);
+        if (labels.length % 2 != 0) throw new IllegalArgumentException("Labels are name / value pairs: " + name);
+        return name + labels(labels, null, null);
+    }
+
+    /**
+     * @return {a="1",b="2"} with extra label (le / quantile) if not null, empty for no labels
+     */
+    static String labels(String[] labels, String extra, String extraValue) {
+        if (labels.length == 0 && extra == null) return "";
+        StringBuilder res = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) res.append(',');
+            res.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        if (extra != null) res.append(labels.length > 0 ? "," : "").append(extra).append("=\"").append(extraValue).append('"');
+        return res.append('}').toString();
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    static String number(double value) {
+        if (Double.isNaN(value)) return "NaN";
+        if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    /**
+     * @return all metrics in Prometheus text exposition format (version 0.0.4), sorted by name
+     */
+    public String scrape() {
+        // one block per metric family: key order would put jobs_total_failed between jobs_total and jobs_total{..}
+        Map<String, Map<String, Metric>> families = new TreeMap<>();
+        metrics.forEach((key, metric) -> families.computeIfAbsent(metric.name, x -> new TreeMap<>()).put(key, metric));
+        StringBuilder out = new StringBuilder();
+        for (Map<String, Metric> family : families.values()) {
+            Metric first = family.values().iterator().next();
+            out.append("# HELP ").append(first.name).append(' ').append(first.help.replace("\\", "\\\\")
+                    .replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(first.name).append(' ').append(first.type).append('\n');
+            for (Metric metric : family.values())
+                JTry.of(() -> metric.write(out)).processException(e -> LOG.warn("Failed reading metric " + metric.name, e));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Serve scrape() on http://host:port/metrics, requests are handled by the server dispatcher thread
+     * @param port 0 - any free port, see server.getAddress()
+     * @return started server, server.stop(0) has to be called - dispatcher thread is not a daemon
+     */
+    public HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            try (OutputStream body = exchange.getResponseBody()) {
+                byte[] res = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, res.length);
+                body.write(res);
+            }
+        });
+        server.start();
+        LOG.info("Metrics served on http://localhost:" + server.getAddress().getPort() + "/metrics");
+        return server;
+    }
+
+    /**
+     * Write scrape() to file atomically (temporary file + move) - node_exporter textfile collector reads it
+     */
+    public void dump(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, scrape().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public FileDump dumpEvery(Path file, Duration period) {
+        return dumpEvery(file, period, TimeSource.SYSTEM);
+    }
+
+    /**
+     * @param period dump period, at least 1 second
+     * @param clock  time source of dump schedule
+     * @return periodic dump, close() stops it and writes the last dump
+     */
+    public FileDump dumpEvery(Path file, Duration period, TimeSource clock) {
+        if (period.compareTo(Duration.ofSeconds(1)) < 0)
+            throw new IllegalArgumentException("Metrics dump period has to be at least 1 second: " + period);
+        return new FileDump(file, period.toNanos(), clock);
+    }
+
+    /**
+     * Periodic dump of the registry to file, scheduled by TimeSource.schedule, file is written off the shared
+     * scheduler thread (inline with non system clock, e.g. VirtualTimeSource)
+     */
+    public class FileDump implements AutoCloseable {
+        final Path file;
+        final long periodNanos;
+        final TimeSource clock;
+        final Executor executor;
+        ScheduledFuture<?> next;
+        boolean closed = false;
+
+        FileDump(Path file, long periodNanos, TimeSource clock) {
+            this.file = file;
+            this.periodNanos = periodNanos;
+            this.clock = clock;
+            this.executor = clock == TimeSource.SYSTEM ? JTryAsync.defaultExecutor() : Runnable::run;
+            synchronized (this) {
+                next = clock.schedule(this::writeAsync, periodNanos);
+            }
+        }
+
+        void writeAsync() {
+            JTry.of(() -> executor.execute(this::write)).processException(e -> LOG.warn("Failed writing metrics " + file, e));
+        }
+
+        synchronized void write() {
+            if (closed) return;
+            // dump failure must not stop dumping
+            JTry.of(() -> dump(file)).processException(e -> LOG.warn("Failed writing metrics " + file, e));
+            next = clock.schedule(this::writeAsync, periodNanos);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            next.cancel(false);
+            JTry.of(() -> dump(file)).processException(e -> LOG.warn("Failed writing metrics " + file, e));
+        }
+    }
+
+    /**
+     * Registered metric: value is Counter, DoubleSupplier, Timer.Histogram or Supplier of histogram snapshot
+     */
+    static class Metric {
+        final String name, help, type;
+        final String[] labels;
+        final Object value;
+
+        Metric(String name, String help, String type, String[] labels, Object value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labels = labels.clone();
+            this.value = value;
+        }
+
+        @SuppressWarnings("unchecked")
+        void write(StringBuilder out) {
+            if (value instanceof Counter counter) sample(out, "", null, null, counter.get());
+            else if (value instanceof DoubleSupplier gauge) sample(out, "", null, null, gauge.getAsDouble());
+            else if (value instanceof Timer.Histogram histogram) writeHistogram(out, histogram.snapshot());
+            else writeHistogram(out, ((Supplier<Timer.Histogram.Snapshot>) value).get());
+        }
+
+        void writeHistogram(StringBuilder out, Timer.Histogram.Snapshot snapshot) {
+            for (long le : BUCKETS_NANOS) sample(out, "_bucket", "le", number(le / 1e9), snapshot.countAtMost(le));
+            sample(out, "_bucket", "le", "+Inf", snapshot.count);
+            sample(out, "_sum", null, null, snapshot.sum / 1e9);
+            sample(out, "_count", null, null, snapshot.count);
+        }
+
+        void sample(StringBuilder out, String suffix, String extra, String extraValue, double value) {
+            out.append(name).append(suffix).append(labels(labels, extra, extraValue)).append(' ')
+                    .append(number(value)).append('\n');
+        }
+    }
+}
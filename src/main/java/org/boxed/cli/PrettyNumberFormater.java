@@ -15,6 +15,7 @@ import static org.boxed.cli.General.*;
  * Add number formatter - adding to time / numbers description
  * Convert 123456678L -> 123ms 456mks for time
  * Convert 123456678L -> 123M  456K   for number
+ * Convert 1572864L   -> 1.50MiB      for bytes
  */
 public class PrettyNumberFormater {
 
@@ -29,6 +30,17 @@ public class PrettyNumberFormater {
         return prettyFormatter(x, numNamedGroups, zip(name, factor));
     }
 
+    /**
+     * Convert 1572864L -> 1.50MiB, below 1KiB -> 512B
+     */
+    public static String prettyBytes(Long bytes) {
+        List<String> name = listT("KiB", "MiB", "GiB", "TiB", "PiB", "EiB");
+        long abs = Math.abs(bytes);
+        if (abs < 1024) return bytes + "B";
+        int unit = Math.min((63 - Long.numberOfLeadingZeros(abs)) / 10, name.size()) - 1;
+        return String.format("%s%.2f%s", bytes < 0 ? "-" : "", abs / Math.pow(1024, unit + 1), name.get(unit));
+    }
+
     private static String prettyFormatter(Long l, int printGroups, List<Pair<String, Integer>> units) {
         AtomicLong d = new AtomicLong(Math.abs(l));
         if(d.get() == 0) return "0";
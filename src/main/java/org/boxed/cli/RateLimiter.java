@@ -0,0 +1,276 @@
+package org.boxed.cli;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
+import static org.boxed.cli.PrettyNumberFormater.prettyTime;
+
+/**
+ * <pre>
+ * Token bucket rate limiter: rate permits per second, up to burst permits can be taken at once after idle time
+ * Lock free: bucket state is one AtomicLong - theoretical arrival time of the next permit (GCRA),
+ * acquire reserves permits with one CAS and sleeps (or schedules async completion) for the reservation wait
+ * Reservation of n permits waits only for the previous reservations, the next callers pay for it
+ * Warm up: after start or idle time longer than warm up period the rate is rate / coldFactor,
+ * it grows linearly to rate during warm up period
+ * Keyed - per key buckets (created on demand) plus optional global bucket
+ * Usage:
+ * RateLimiter quota = new RateLimiter(100, 10, Duration.ofSeconds(5), 3);  // 100/s, burst 10, 5s warm up from 33/s
+ * quota.acquire(1);
+ * // every attempt takes a permit
+ * JTry&lt;T&gt; res = RetryJob.retryJob(job, Duration.ofSeconds(10), new RetryJob.Guards().rateLimiter(quota));
+ * RateLimiter.Keyed&lt;String&gt; perHost = new RateLimiter.Keyed&lt;&gt;(host -&gt; new RateLimiter(10, 1), quota);
+ * perHost.acquire(host, 1);
+ * </pre>
+ */
+public class RateLimiter {
+    /**
+     * Permit can't be taken in time, is never retried by RetryJob
+     */
+    public static class RateLimitedException extends RuntimeException {
+        public RateLimitedException(String message) {
+            super(message);
+        }
+    }
+
+    final double rate, coldFactor;
+    final long intervalNanos, burstNanos, warmupNanos;
+    final AtomicLong nextFree;
+    volatile long warmStart;
+    final LongAdder permits = new LongAdder(), waitNanos = new LongAdder(), rejected = new LongAdder();
+
+    /**
+     * @param rate       permits per second
+     * @param burst      max permits taken without waiting after idle time
+     * @param warmup     warm up period, zero - no warm up
+     * @param coldFactor rate at the beginning of warm up is rate / coldFactor
+     */
+    public RateLimiter(double rate, double burst, Duration warmup, double coldFactor) {
+        this.rate = rate;
+        this.intervalNanos = (long) (1e9 / rate);
+        // burst tolerance: first burst permits of idle bucket do not wait
+        this.burstNanos = (long) ((Math.max(burst, 1) - 1) * intervalNanos);
+        this.warmupNanos = warmup.toNanos();
+        this.coldFactor = Math.max(coldFactor, 1);
+        long now = System.nanoTime();
+        this.nextFree = new AtomicLong(now);
+        this.warmStart = now;
+    }
+
+    /**
+     * No warm up
+     */
+    public RateLimiter(double rate, double burst) {
+        this(rate, burst, Duration.ZERO, 1);
+    }
+
+    /**
+     * @return permit interval at the moment (longer during warm up)
+     */
+    long interval(long now) {
+        if (warmupNanos <= 0) return intervalNanos;
+        double warm = Math.min(1., (now - warmStart) / (double) warmupNanos);
+        return (long) (intervalNanos * (coldFactor - (coldFactor - 1) * warm));
+    }
+
+    /**
+     * Reserve permits if the wait is not longer than maxWaitNanos
+     * @return wait time in nanoseconds, -1 if permits can't be reserved within maxWaitNanos
+     */
+    long reserve(int n, long maxWaitNanos) {
+        while (true) {
+            long now = System.nanoTime();
+            long next = nextFree.get();
+            // idle longer than warm up period - cold again
+            if (warmupNanos > 0 && now - next > warmupNanos) warmStart = now;
+            long start = next - now > 0 ? next : now;
+            long wait = Math.max(start - burstNanos - now, 0);
+            if (wait > maxWaitNanos) {
+                rejected.increment();
+                return -1;
+            }
+            if (nextFree.compareAndSet(next, start + n * interval(now))) {
+                permits.add(n);
+                if (wait > 0) waitNanos.add(wait);
+                return wait;
+            }
+        }
+    }
+
+    /**
+     * Give back reserved permits which will not be used, the next reservations wait less
+     * During warm up the interval of now is not longer than the reserved one - less than reserved can be given back
+     * @param wait reservation wait (not waited)
+     */
+    void release(int n, long wait) {
+        nextFree.addAndGet(-n * interval(System.nanoTime()));
+        permits.add(-n);
+        if (wait > 0) waitNanos.add(-wait);
+    }
+
+    /**
+     * Take n permits, wait if needed
+     * @return time waited in nanoseconds
+     */
+    public long acquire(int n) {
+        long wait = reserve(n, Long.MAX_VALUE);
+        await(n, wait);
+        return wait;
+    }
+
+    /**
+     * Take n permits if it is possible within timeout
+     * @return if permits were taken
+     */
+    public boolean tryAcquire(int n, Duration timeout) {
+        long wait = reserve(n, timeout.toNanos());
+        if (wait < 0) return false;
+        await(n, wait);
+        return true;
+    }
+
+    /**
+     * Non blocking acquire: future is completed when permits are available (by RetryJob scheduler)
+     */
+    public CompletableFuture<Void> acquireAsync(int n) {
+        return delayed(reserve(n, Long.MAX_VALUE));
+    }
+
+    /**
+     * Non blocking acquire if it is possible within timeout, nothing is reserved otherwise
+     * @return future completed when permits are available, failed with RateLimitedException if they can't be taken in time
+     */
+    public CompletableFuture<Void> acquireAsync(int n, Duration timeout) {
+        return delayed(reserve(n, timeout.toNanos()), timeout);
+    }
+
+    static CompletableFuture<Void> delayed(long waitNanos, Duration timeout) {
+        if (waitNanos < 0) return CompletableFuture.failedFuture(new RateLimitedException("No permit within " + timeout));
+        return delayed(waitNanos);
+    }
+
+    static CompletableFuture<Void> delayed(long waitNanos) {
+        if (waitNanos <= 0) return CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> res = new CompletableFuture<>();
+        RetryJob.SCHEDULER.schedule(() -> res.complete(null), waitNanos, TimeUnit.NANOSECONDS);
+        return res;
+    }
+
+    /**
+     * Wait for reserved permits, interrupted wait gives the permits back (time already waited stays in metrics)
+     * @throws RateLimitedException if interrupted, interrupt flag is kept
+     */
+    void await(int n, long wait) {
+        if (sleep(wait)) return;
+        release(n, 0);
+        interrupted();
+    }
+
+    /**
+     * @return false if interrupted, interrupt flag is cleared
+     */
+    static boolean sleep(long nanos) {
+        long end = System.nanoTime() + nanos;
+        for (long left = nanos; left > 0; left = end - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+            if (Thread.interrupted()) return false;
+        }
+        return true;
+    }
+
+    static void interrupted() {
+        Thread.currentThread().interrupt();
+        throw new RateLimitedException("Interrupted while waiting for permit");
+    }
+
+    public long getPermits() {
+        return permits.sum();
+    }
+
+    public String metrics() {
+        return "Rate limiter " + prettyNumber((long) rate, 2) + "/s permits " + prettyNumber(permits.sum(), 2) +
+                " waited " + prettyTime(waitNanos.sum(), 2) + " rejected " + prettyNumber(rejected.sum(), 2);
+    }
+
+    /**
+     * Per key rate limiters (created on demand by factory) with optional global limiter
+     */
+    public static class Keyed<K> {
+        final Map<K, RateLimiter> limiters = new ConcurrentHashMap<>();
+        final Function<K, RateLimiter> factory;
+        final RateLimiter global;
+
+        /**
+         * @param factory builds limiter for a new key
+         * @param global  limiter shared by all keys, null - no global limit
+         */
+        public Keyed(Function<K, RateLimiter> factory, RateLimiter global) {
+            this.factory = factory;
+            this.global = global;
+        }
+
+        public RateLimiter limiter(K key) {
+            return limiters.computeIfAbsent(key, factory);
+        }
+
+        /**
+         * Take n permits of the key (and global), wait if needed
+         * @return time waited in nanoseconds
+         */
+        public long acquire(K key, int n) {
+            long wait = reserve(key, n, Long.MAX_VALUE);
+            await(key, n, wait);
+            return wait;
+        }
+
+        public boolean tryAcquire(K key, int n, Duration timeout) {
+            long wait = reserve(key, n, timeout.toNanos());
+            if (wait < 0) return false;
+            await(key, n, wait);
+            return true;
+        }
+
+        /**
+         * @see RateLimiter#await(int, long)
+         */
+        void await(K key, int n, long wait) {
+            if (sleep(wait)) return;
+            limiter(key).release(n, 0);
+            if (global != null) global.release(n, 0);
+            interrupted();
+        }
+
+        public CompletableFuture<Void> acquireAsync(K key, int n) {
+            return delayed(reserve(key, n, Long.MAX_VALUE));
+        }
+
+        /**
+         * @see RateLimiter#acquireAsync(int, Duration)
+         */
+        public CompletableFuture<Void> acquireAsync(K key, int n, Duration timeout) {
+            return delayed(reserve(key, n, timeout.toNanos()), timeout);
+        }
+
+        /**
+         * Reserve key and global permits, wait is the longest of two
+         * Key permits are given back if global ones can't be reserved
+         */
+        long reserve(K key, int n, long maxWaitNanos) {
+            RateLimiter keyLimiter = limiter(key);
+            long wait = keyLimiter.reserve(n, maxWaitNanos);
+            if (wait < 0 || global == null) return wait;
+            long globalWait = global.reserve(n, maxWaitNanos);
+            if (globalWait >= 0) return Math.max(wait, globalWait);
+            keyLimiter.release(n, wait);
+            return -1;
+        }
+    }
+}
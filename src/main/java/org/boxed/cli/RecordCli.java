@@ -0,0 +1,221 @@
+package org.boxed.cli;
+
+import com.google.common.base.Preconditions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kohsuke.args4j.Option;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static org.boxed.cli.ExceptionHandler.rethrow;
+
+/**
+ * <pre>
+ * Base for file in / file out line oriented CLIs: record (line) is transformed by processRecord
+ * Input is memory mapped and split into chunks on line boundaries, chunks are processed on work stealing pool,
+ * results are written (in input order if --ordered) through buffered FileChannel, progress printed by IterationTimer
+ * Usage:
+ * public class Upper extends RecordCli {
+ *     &#64;Override public String processRecord(String line) { return line.toUpperCase(); }
+ *     public static void main(String[] args) { Cli.mainRun(args, new Upper()); }
+ * }
+ * java ... Upper --input in.txt --output out.txt --threads 8 --ordered
+ * </pre>
+ */
+public abstract class RecordCli extends Cli.CliBasic {
+    static final Logger LOG = LogManager.getLogger(RecordCli.class);
+    /**
+     * Max size of one memory mapped input region, chunks never cross region boundary
+     */
+    static final long MAX_MAPPED_REGION = 1L << 30;
+
+    @Option(name = "--input", required = true, usage = "input file, one record per line", metaVar = "FILE")
+    public String input;
+    @Option(name = "--output", required = true, usage = "output file, one output record per line", metaVar = "FILE")
+    public String output;
+    @Option(name = "--threads", usage = "number of processing threads")
+    public int threads = Runtime.getRuntime().availableProcessors();
+    @Option(name = "--ordered", usage = "write output records in input order")
+    public Boolean ordered = false;
+    @Option(name = "--chunk-size", usage = "input chunk size in bytes (unit of parallel work)")
+    public int chunkSize = 4 << 20;
+    @Option(name = "--progress", usage = "progress print interval in seconds")
+    public double progressSec = 10;
+
+    /**
+     * To be defined in children: transform one record
+     * @param record input line without line separator
+     * @return output line (without line separator), null - skip the record
+     */
+    public abstract String processRecord(String record);
+
+    @Override
+    public void run() {
+        Preconditions.checkArgument(threads > 0 && chunkSize > 0, "Threads and chunk size have to be positive");
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Timer.IterationTimer timer = new Timer.IterationTimer(progressSec);
+        try (FileChannel in = FileChannel.open(Paths.get(input), StandardOpenOption.READ);
+             ChunkWriter out = new ChunkWriter(FileChannel.open(Paths.get(output), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            // plain Executor, so the completion service wraps jobs in FutureTask, not in ForkJoinTask
+            CompletionService<ChunkResult> completion = new ExecutorCompletionService<>(pool::execute);
+            Deque<Future<ChunkResult>> inFlight = new ArrayDeque<>();
+            int maxInFlight = 4 * threads;
+            long size = in.size();
+            long regionStart = 0;
+            while (regionStart < size) {
+                long regionSize = Math.min(size - regionStart, MAX_MAPPED_REGION);
+                boolean lastRegion = regionStart + regionSize == size;
+                MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, regionStart, regionSize);
+                int pos = 0;
+                while (pos < regionSize) {
+                    int end = chunkEnd(region, pos, chunkSize, lastRegion);
+                    if (end < 0) break; // incomplete line - goes to the next region
+                    ByteBuffer chunk = region.slice(pos, end - pos);
+                    // ordered results are taken from inFlight queue, not from completion service
+                    // FutureTask in both modes - ForkJoinTask.get may rethrow a copy of the job exception
+                    inFlight.add(ordered ? submit(pool, () -> processChunk(chunk)) :
+                            completion.submit(() -> processChunk(chunk)));
+                    while (inFlight.size() >= maxInFlight) writeNext(completion, inFlight, out, timer);
+                    pos = end;
+                }
+                Preconditions.checkState(pos > 0, "Line longer than mapped region at " + regionStart);
+                regionStart += pos;
+            }
+            while (!inFlight.isEmpty()) writeNext(completion, inFlight, out, timer);
+        } catch (Throwable e) {
+            rethrow(e);
+        } finally {
+            pool.shutdownNow();
+        }
+        timer.printLast(x -> {
+            LOG.info("Records done: " + x.totalCountTime() + " " + x.totalSpeed());
+            runReport.put("records", x.run_count);
+        });
+    }
+
+    /**
+     * @return end (exclusive) of chunk starting at pos: position after line separator following pos + chunkSize,
+     * -1 if no line separator found in not last region
+     */
+    static int chunkEnd(ByteBuffer region, int pos, int chunkSize, boolean lastRegion) {
+        int limit = region.limit();
+        for (int i = (int) Math.min((long) pos + chunkSize, limit) - 1; i < limit; i++) {
+            if (region.get(i) == '\n') return i + 1;
+        }
+        return lastRegion ? limit : -1;
+    }
+
+    private ChunkResult processChunk(ByteBuffer chunk) {
+        byte[] data = new byte[chunk.remaining()];
+        chunk.get(data);
+        ByteArrayOutputStream res = new ByteArrayOutputStream(data.length);
+        int records = 0, start = 0;
+        while (start < data.length) {
+            int end = start;
+            while (end < data.length && data[end] != '\n') end++;
+            int len = (end > start && data[end - 1] == '\r') ? end - 1 - start : end - start;
+            String out = processRecord(new String(data, start, len, StandardCharsets.UTF_8));
+            records++;
+            if (out != null) {
+                res.writeBytes(out.getBytes(StandardCharsets.UTF_8));
+                res.write('\n');
+            }
+            start = end + 1;
+        }
+        return new ChunkResult(res.toByteArray(), records);
+    }
+
+    /**
+     * Write next chunk result: oldest submitted if ordered, first completed otherwise
+     */
+    private void writeNext(CompletionService<ChunkResult> completion, Deque<Future<ChunkResult>> inFlight,
+                           ChunkWriter out, Timer.IterationTimer timer) throws Exception {
+        Future<ChunkResult> done;
+        if (ordered) {
+            done = inFlight.poll();
+        } else {
+            done = completion.take();
+            inFlight.remove(done);
+        }
+        ChunkResult res;
+        try {
+            res = done.get();
+        } catch (ExecutionException e) {
+            // processRecord failure, the same in both modes
+            rethrow(e.getCause());
+            throw e;
+        }
+        out.write(res.data);
+        timer.printIter(res.records, x -> LOG.info("Records: " + x.totalCount() + " " + x.iterSpeed()));
+    }
+
+    private static Future<ChunkResult> submit(ForkJoinPool pool, Callable<ChunkResult> job) {
+        FutureTask<ChunkResult> task = new FutureTask<>(job);
+        pool.execute(task);
+        return task;
+    }
+
+    static class ChunkResult {
+        final byte[] data;
+        final int records;
+
+        ChunkResult(byte[] data, int records) {
+            this.data = data;
+            this.records = records;
+        }
+    }
+
+    /**
+     * Buffered writer to FileChannel
+     */
+    static class ChunkWriter implements AutoCloseable {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+        ChunkWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(byte[] data) throws IOException {
+            if (data.length > buffer.remaining()) flush();
+            if (data.length > buffer.capacity()) {
+                ByteBuffer direct = ByteBuffer.wrap(data);
+                while (direct.hasRemaining()) channel.write(direct);
+                return;
+            }
+            buffer.put(data);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.boxed.cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
+import static org.boxed.cli.PrettyNumberFormater.prettyTime;
+
+/**
+ * <pre>
+ * Bounded pool of expensive resources (connections, parsers, buffers)
+ * At most maxSize resources exist at once, borrower waits up to borrowTimeout for a free one (TimeoutException)
+ * Idle resources are reused most recently returned first, resource is validated on borrow,
+ * resources idle longer than maxIdle or older than maxLifetime are closed (on borrow / return - no extra thread)
+ * AutoCloseable resources are closed when evicted
+ * Usage:
+ * ResourcePool&lt;Connection&gt; pool = new ResourcePool&lt;&gt;(() -&gt; connect(url), c -&gt; c.isValid(1), 8,
+ *         Duration.ofMinutes(1), Duration.ofMinutes(30), Duration.ofSeconds(5));
+ * JTry&lt;Row&gt; res = RetryJob.withPooledResource(pool, c -&gt; query(c));
+ * LOG.info(pool.metrics());
+ * </pre>
+ */
+public class ResourcePool<A> implements AutoCloseable {
+    static final Logger LOG = LogManager.getLogger(ResourcePool.class);
+
+    final Supplier<A> factory;
+    final Predicate<A> validator;
+    final int maxSize;
+    final long maxIdleNanos, maxLifetimeNanos, borrowTimeoutNanos;
+    final Semaphore permits;
+    final Deque<Pooled<A>> idle = new ConcurrentLinkedDeque<>();
+    final LongAdder creations = new LongAdder(), reuses = new LongAdder(), evictions = new LongAdder(),
+            timeouts = new LongAdder(), borrows = new LongAdder(), waitNanos = new LongAdder();
+    final AtomicLong maxWaitNanos = new AtomicLong();
+    volatile boolean closed = false;
+
+    /**
+     * Borrowed resource
+     */
+    public static class Pooled<A> {
+        public final A resource;
+        final long created = System.nanoTime();
+        long lastUsed = created;
+
+        Pooled(A resource) {
+            this.resource = resource;
+        }
+    }
+
+    /**
+     * @param factory       creates new resource
+     * @param validator     checks idle resource before it is borrowed, null - no validation
+     * @param maxSize       max number of resources (borrowed + idle)
+     * @param maxIdle       idle resource is closed after maxIdle
+     * @param maxLifetime   resource is closed after maxLifetime (when idle)
+     * @param borrowTimeout max time to wait for a resource
+     */
+    public ResourcePool(Supplier<A> factory, Predicate<A> validator, int maxSize, Duration maxIdle, Duration maxLifetime,
+                        Duration borrowTimeout) {
+        this.factory = factory;
+        this.validator = validator;
+        this.maxSize = maxSize;
+        this.maxIdleNanos = maxIdle.toNanos();
+        this.maxLifetimeNanos = maxLifetime.toNanos();
+        this.borrowTimeoutNanos = borrowTimeout.toNanos();
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Pool without validation: idle 1 minute, lifetime 30 minutes, borrow timeout 10 seconds
+     */
+    public static <A> ResourcePool<A> create(Supplier<A> factory, int maxSize) {
+        return new ResourcePool<>(factory, null, maxSize, Duration.ofMinutes(1), Duration.ofMinutes(30),
+                Duration.ofSeconds(10));
+    }
+
+    /**
+     * Borrow resource: reuse idle valid one or create new one, has to be returned by release
+     * @throws TimeoutException if no resource is available within borrow timeout
+     */
+    public Pooled<A> borrow() throws InterruptedException, TimeoutException {
+        if (closed) throw new IllegalStateException("Resource pool is closed");
+        long start = System.nanoTime();
+        if (!permits.tryAcquire(borrowTimeoutNanos, TimeUnit.NANOSECONDS)) {
+            timeouts.increment();
+            throw new TimeoutException("No resource available in " + prettyTime(borrowTimeoutNanos, 2) +
+                    ", pool size " + maxSize);
+        }
+        long wait = System.nanoTime() - start;
+        waitNanos.add(wait);
+        maxWaitNanos.accumulateAndGet(wait, Math::max);
+        borrows.increment();
+        try {
+            for (Pooled<A> pooled = idle.pollFirst(); pooled != null; pooled = idle.pollFirst()) {
+                if (expired(pooled, System.nanoTime()) || (validator != null && !validator.test(pooled.resource))) {
+                    evict(pooled);
+                    continue;
+                }
+                reuses.increment();
+                return pooled;
+            }
+            Pooled<A> pooled = new Pooled<>(factory.get());
+            creations.increment();
+            return pooled;
+        } catch (Throwable e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Return borrowed resource
+     * @param broken resource is not usable any more - close it
+     */
+    public void release(Pooled<A> pooled, boolean broken) {
+        long now = System.nanoTime();
+        if (broken || closed || now - pooled.created > maxLifetimeNanos) {
+            evict(pooled);
+        } else {
+            pooled.lastUsed = now;
+            idle.offerFirst(pooled);
+        }
+        permits.release();
+        evictIdle(now);
+    }
+
+    private boolean expired(Pooled<A> pooled, long now) {
+        return now - pooled.lastUsed > maxIdleNanos || now - pooled.created > maxLifetimeNanos;
+    }
+
+    /**
+     * Close resources idle for too long: they are at the tail of idle deque
+     */
+    private void evictIdle(long now) {
+        for (Pooled<A> oldest = idle.peekLast(); oldest != null && expired(oldest, now); oldest = idle.peekLast()) {
+            if (idle.removeLastOccurrence(oldest)) evict(oldest);
+        }
+    }
+
+    private void evict(Pooled<A> pooled) {
+        evictions.increment();
+        if (pooled.resource instanceof AutoCloseable)
+            JTry.of(((AutoCloseable) pooled.resource)::close)
+                    .processException(e -> LOG.warn("Failed closing pooled resource " + pooled.resource, e));
+    }
+
+    /**
+     * @return share of resources borrowed at the moment
+     */
+    public double utilization() {
+        return (maxSize - permits.availablePermits()) / (double) maxSize;
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    public long getCreations() {
+        return creations.sum();
+    }
+
+    public long getReuses() {
+        return reuses.sum();
+    }
+
+    public String metrics() {
+        long borrowed = borrows.sum();
+        return "Pool borrows " + prettyNumber(borrowed, 2) + " creations " + prettyNumber(creations.sum(), 2) +
+                " reuses " + prettyNumber(reuses.sum(), 2) + " evictions " + prettyNumber(evictions.sum(), 2) +
+                " timeouts " + prettyNumber(timeouts.sum(), 2) +
+                " wait avg " + prettyTime(waitNanos.sum() / Math.max(borrowed, 1), 2) +
+                " max " + prettyTime(maxWaitNanos.get(), 2) +
+                String.format(" utilization %.0f%%", 100 * utilization()) + " idle " + idle.size();
+    }
+
+    /**
+     * Close idle resources, borrowed resources are closed when returned
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Pooled<A> pooled = idle.pollFirst(); pooled != null; pooled = idle.pollFirst()) evict(pooled);
+    }
+}
@@ -0,0 +1,111 @@
+package org.boxed.cli;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
+
+/**
+ * <pre>
+ * Retry budget: token bucket capping retries to a share of base traffic
+ * Every first attempt deposits ratio tokens (up to maxTokens), every retry withdraws one token,
+ * retry without token fails with BudgetExhaustedException - it is never retried by RetryJob
+ * Usage:
+ * RetryBudget budget = RetryBudget.named("backend");  // retries &lt;= 10% of calls + 10
+ * JTry&lt;T&gt; res = RetryJob.retryJob(job, Duration.ofSeconds(3), new RetryJob.Guards().budget(budget));
+ * </pre>
+ */
+public class RetryBudget {
+    private static final Map<String, RetryBudget> BUDGETS = new ConcurrentHashMap<>();
+    /**
+     * Tokens are kept in milli tokens
+     */
+    static final long SCALE = 1000;
+
+    public static class BudgetExhaustedException extends RuntimeException {
+        public BudgetExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    public final String name;
+    final long deposit, maxTokens;
+    final AtomicLong tokens;
+    final LongAdder calls = new LongAdder(), retries = new LongAdder(), exhausted = new LongAdder();
+
+    /**
+     * @param name      budget name (for metrics)
+     * @param ratio     retries allowed per call
+     * @param maxTokens bucket size - max retries burst, bucket starts full
+     */
+    public RetryBudget(String name, double ratio, long maxTokens) {
+        this.name = name;
+        this.deposit = (long) (ratio * SCALE);
+        this.maxTokens = maxTokens * SCALE;
+        this.tokens = new AtomicLong(this.maxTokens);
+    }
+
+    /**
+     * @return shared budget by name, created with defaults: 10% retries, burst of 10 retries
+     */
+    public static RetryBudget named(String name) {
+        return BUDGETS.computeIfAbsent(name, x -> new RetryBudget(x, 0.1, 10));
+    }
+
+    /**
+     * Register budget with custom settings under its name
+     */
+    public static RetryBudget register(RetryBudget budget) {
+        BUDGETS.put(budget.name, budget);
+        return budget;
+    }
+
+    /**
+     * First attempt of the call - deposit tokens
+     */
+    public void onCall() {
+        calls.increment();
+        long cur = tokens.get();
+        // bucket is full most of the time - skip the write
+        if (cur < maxTokens) tokens.accumulateAndGet(deposit, (x, d) -> Math.min(x + d, maxTokens));
+    }
+
+    /**
+     * @return if retry is allowed (token withdrawn)
+     */
+    public boolean tryRetry() {
+        long cur;
+        do {
+            cur = tokens.get();
+            if (cur < SCALE) {
+                exhausted.increment();
+                return false;
+            }
+        } while (!tokens.compareAndSet(cur, cur - SCALE));
+        retries.increment();
+        return true;
+    }
+
+    /**
+     * @throws BudgetExhaustedException if retry is not allowed
+     */
+    public void acquireRetry() {
+        if (!tryRetry()) throw new BudgetExhaustedException("Retry budget " + name + " exhausted");
+    }
+
+    public double getTokens() {
+        return tokens.get() / (double) SCALE;
+    }
+
+    public long getExhausted() {
+        return exhausted.sum();
+    }
+
+    public String metrics() {
+        return "Retry budget " + name + " calls " + prettyNumber(calls.sum(), 2) + " retries " +
+                prettyNumber(retries.sum(), 2) + " exhausted " + prettyNumber(exhausted.sum(), 2) +
+                String.format(" tokens %.1f", getTokens());
+    }
+}
@@ -1,20 +1,46 @@
 package org.boxed.cli;
 
 import com.google.api.core.ApiClock;
-import com.google.api.core.NanoClock;
 import com.google.api.gax.retrying.BasicResultRetryAlgorithm;
+import com.google.api.gax.retrying.DirectRetryingExecutor;
+import com.google.api.gax.retrying.ExponentialRetryAlgorithm;
 import com.google.api.gax.retrying.ResultRetryAlgorithm;
+import com.google.api.gax.retrying.ResultRetryAlgorithmWithContext;
+import com.google.api.gax.retrying.RetryAlgorithm;
 import com.google.api.gax.retrying.RetrySettings;
+import com.google.api.gax.retrying.RetryingExecutor;
+import com.google.api.gax.retrying.RetryingFuture;
 import com.google.cloud.RetryHelper;
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.SimpleTimeLimiter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.boxed.cli.ExceptionHandler.WrapFunction;
 
 import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -22,15 +48,19 @@ import static org.boxed.cli.General.forceClc;
 
 /**
  * Couple of functions to run time limited job, or time limited job retries
+ * Non blocking retries of async jobs: retryJobAsync
+ * Parallel bulk execution with per item retries: runAll
  * Added helper function withResource - to generate resource, use it for data generation, close resource
+ * (withResourceAsync - the same for asynchronous JTryAsync usage of the resource)
+ * (withPooledResource - the same with resource borrowed from ResourcePool)
  */
 public class RetryJob {
 
 
   /**
    * Reruns provided function several times, but tries hard to fit within timeout.
-   * Gives the time left as a parameter to a function to help code under rerun
-   * to stay within a total timeout. Does not use a separate thread, so there
+   * The function gets no time budget - use {@link #retryJob(WrapFunction, Duration, Duration)}
+   * to pass the deadline to every attempt. Does not use a separate thread, so there
    * is no simple way to cancel execution.
    *
    * @see #defaultRetrySttings(Duration)
@@ -45,8 +75,363 @@ public class RetryJob {
         new BasicResultRetryAlgorithm<>()));
   }
 
+  /**
+   * Deadline aware retries: every attempt gets the deadline (the earliest of totalTimeout and the current
+   * Deadline scope) and runs in its scope, so nested retryJob / timeLimitedJob calls see it.
+   * Attempt is skipped (DeadlineExceededException, no more retries) if time left is less than
+   * minAttempt or the duration of the previous attempt - it could not finish in time.
+   *
+   * @param func       attempt, gets the deadline
+   * @param minAttempt minimal time an attempt needs
+   * @see #retryJob(Callable, Duration)
+   */
+  @SuppressWarnings("try")
+  public static <V> JTry<V> retryJob(WrapFunction<Deadline, V, Exception> func, Duration totalTimeout,
+                                     Duration minAttempt) {
+    Deadline deadline = Deadline.tightest(totalTimeout);
+    AtomicLong lastAttemptNanos = new AtomicLong(0);
+    Callable<V> attempt = () -> {
+      long need = Math.max(minAttempt.toNanos(), lastAttemptNanos.get());
+      if (deadline.remainingNanos() < Math.max(need, 1))
+        throw new Deadline.DeadlineExceededException("Attempt skipped, needs " + need + "ns, " + deadline);
+      long start = System.nanoTime();
+      try (Deadline.Scope scope = deadline.enter()) {
+        return func.apply(deadline);
+      } finally {
+        lastAttemptNanos.set(System.nanoTime() - start);
+      }
+    };
+    return JTry.of(() -> retryJob(attempt, defaultRetrySttings(Duration.ofNanos(Math.max(deadline.remainingNanos(), 1))),
+        new GuardedRetryAlgorithm<>()));
+  }
+
+  /**
+   * Guarded retries: every attempt goes through the guards set in guards (any of them can be null),
+   * rejections (OpenException, BudgetExhaustedException, RateLimitedException, LimitExceededException)
+   * fail at once, without further retries
+   *
+   * @param guards breaker, budget, rate / concurrency limiters and clock of the retries, null - no guards
+   * @see Guards
+   * @see #retryJob(Callable, Duration)
+   */
+  public static <V> JTry<V> retryJob(Callable<V> func, Duration totalTimeout, Guards guards) {
+    Guards g = guards == null ? new Guards() : guards;
+    AtomicInteger attempt = new AtomicInteger(0);
+    long deadline = System.nanoTime() + Math.max(totalTimeout.toNanos(), 0);
+    Callable<V> broken = g.breaker == null ? func : () -> g.breaker.call(func);
+    // shed by concurrency limiter is not a backend failure - limiter is outside of the breaker
+    Callable<V> limited = g.concurrencyLimiter == null ? broken : () -> g.concurrencyLimiter.call(broken);
+    Callable<V> guarded = () -> {
+      if (g.budget != null) {
+        if (attempt.getAndIncrement() == 0) g.budget.onCall();
+        else g.budget.acquireRetry();
+      }
+      if (g.rateLimiter != null &&
+          !g.rateLimiter.tryAcquire(1, Duration.ofNanos(Math.max(deadline - System.nanoTime(), 0))))
+        throw new RateLimiter.RateLimitedException("No permit within job timeout " + totalTimeout);
+      return limited.call();
+    };
+    if (totalTimeout.isNegative())
+      return JTry.of(guarded::call);
+    return JTry.of(() -> retryJob(guarded, defaultRetrySttings(totalTimeout), new GuardedRetryAlgorithm<>(), g.clock));
+  }
+
+  /**
+   * <pre>
+   * Guards of retryJob attempts, not set - not used:
+   * breaker            - every attempt goes through the circuit breaker
+   * budget             - first attempt deposits, every retry withdraws
+   * rateLimiter        - every attempt (after retry delay) takes a permit, waiting for it not longer than the time left
+   * concurrencyLimiter - every attempt waits for adaptive concurrency limiter permit
+   * clock              - retry delays are clock sleeps, total timeout is measured by the clock,
+   *                      with VirtualTimeSource retry schedule is deterministic and takes no real time
+   * Usage:
+   * RetryJob.retryJob(job, Duration.ofSeconds(3), new RetryJob.Guards().breaker(breaker).budget(RetryBudget.named("backend")));
+   * </pre>
+   */
+  public static class Guards {
+    public CircuitBreaker breaker = null;
+    public RetryBudget budget = null;
+    public RateLimiter rateLimiter = null;
+    public ConcurrencyLimiter concurrencyLimiter = null;
+    public TimeSource clock = TimeSource.SYSTEM;
+
+    public Guards breaker(CircuitBreaker breaker) {
+      this.breaker = breaker;
+      return this;
+    }
+
+    public Guards budget(RetryBudget budget) {
+      this.budget = budget;
+      return this;
+    }
+
+    public Guards rateLimiter(RateLimiter rateLimiter) {
+      this.rateLimiter = rateLimiter;
+      return this;
+    }
+
+    public Guards concurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+      this.concurrencyLimiter = concurrencyLimiter;
+      return this;
+    }
+
+    public Guards clock(TimeSource clock) {
+      this.clock = clock;
+      return this;
+    }
+  }
+
+  /**
+   * Coalesced retries: concurrent calls with the same key share one retryJob execution (and its result)
+   * @param flight shared single flight (with optional result cache) for calls of this kind
+   * @param key    call key
+   * @see #retryJob(Callable, Duration)
+   */
+  public static <K, V> JTry<V> retryJob(SingleFlight<K, V> flight, K key, Callable<V> func, Duration totalTimeout) {
+    return flight.call(key, () -> retryJob(func, totalTimeout).getOrThrow());
+  }
+
+  /**
+   * Retry all exceptions except circuit breaker / retry budget / concurrency limiter / deadline / rate limiter rejections,
+   * don't retry any results
+   */
+  static class GuardedRetryAlgorithm<V> extends BasicResultRetryAlgorithm<V> {
+    @Override
+    public boolean shouldRetry(Throwable prevThrowable, V prevResponse) {
+      if (isRejection(prevThrowable)) return false;
+      return super.shouldRetry(prevThrowable, prevResponse);
+    }
+  }
+
+  /**
+   * @return exception is a rejection by circuit breaker / retry budget / concurrency limiter / deadline / rate limiter
+   */
+  static boolean isRejection(Throwable e) {
+    return e instanceof CircuitBreaker.OpenException ||
+        e instanceof RetryBudget.BudgetExhaustedException ||
+        e instanceof ConcurrencyLimiter.LimitExceededException ||
+        e instanceof Deadline.DeadlineExceededException ||
+        e instanceof RateLimiter.RateLimitedException;
+  }
+
+  /**
+   * Settings of bulk execution (runAll): every item is retried by {@link #retryJob(Callable, Duration, Guards)},
+   * guards are shared by all items
+   */
+  public static class BulkSettings extends Guards {
+    /**
+     * Total time of one item retries, attempt still running at the end is interrupted, not positive - no limit
+     */
+    public Duration itemTimeout;
+    /**
+     * Progress print interval in seconds
+     */
+    public double progressSec = 10;
+    public String name = "Jobs";
+
+    public BulkSettings(Duration itemTimeout) {
+      this.itemTimeout = itemTimeout;
+    }
+
+    @Override
+    public BulkSettings breaker(CircuitBreaker breaker) {
+      super.breaker(breaker);
+      return this;
+    }
+
+    @Override
+    public BulkSettings budget(RetryBudget budget) {
+      super.budget(budget);
+      return this;
+    }
+
+    @Override
+    public BulkSettings rateLimiter(RateLimiter rateLimiter) {
+      super.rateLimiter(rateLimiter);
+      return this;
+    }
+
+    @Override
+    public BulkSettings concurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+      super.concurrencyLimiter(concurrencyLimiter);
+      return this;
+    }
+
+    @Override
+    public BulkSettings clock(TimeSource clock) {
+      super.clock(clock);
+      return this;
+    }
+
+    public BulkSettings progress(String name, double progressSec) {
+      this.name = name;
+      this.progressSec = progressSec;
+      return this;
+    }
+  }
+
+  /**
+   * Run independent jobs in parallel, every job with retries
+   * @param jobs        jobs to run
+   * @param parallelism max number of jobs running at once
+   * @return job results in input order
+   */
+  public static <V> List<JTry<V>> runAll(Collection<? extends Callable<V>> jobs, int parallelism, BulkSettings settings) {
+    List<JTry<V>> res = new ArrayList<>(Collections.nCopies(jobs.size(), null));
+    runAll(jobs, parallelism, settings, res::set);
+    return res;
+  }
+
+  /**
+   * Streaming bulk execution: results are passed to consumer (on the calling thread) in completion order,
+   * at most 2 * parallelism jobs are submitted at once - jobs collection can be big
+   * @param consumer gets job index (in input order) and job result
+   */
+  public static <V> void runAll(Collection<? extends Callable<V>> jobs, int parallelism, BulkSettings settings,
+                                BiConsumer<Integer, JTry<V>> consumer) {
+    Preconditions.checkArgument(parallelism > 0, "Parallelism have to be positive: " + parallelism);
+    AtomicInteger threadNum = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(parallelism, r -> {
+      Thread t = new Thread(r, "run-all-" + threadNum.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    CompletionService<Map.Entry<Integer, JTry<V>>> completion = new ExecutorCompletionService<>(pool);
+    Timer.IterationTimer timer = new Timer.IterationTimer(settings.progressSec);
+    long failed = 0;
+    int inFlight = 0, index = 0;
+    try {
+      for (Callable<V> job : jobs) {
+        int jobIndex = index++;
+        completion.submit(() -> new AbstractMap.SimpleImmutableEntry<>(jobIndex, runItem(job, settings)));
+        if (++inFlight >= 2 * parallelism) {
+          failed += takeNext(completion, consumer, timer, settings);
+          inFlight--;
+        }
+      }
+      for (; inFlight > 0; inFlight--) failed += takeNext(completion, consumer, timer, settings);
+    } finally {
+      pool.shutdownNow();
+    }
+    long failedJobs = failed;
+    timer.printLast(x -> LOG.info(settings.name + " done: " + x.totalCountTime() + " " + x.totalSpeed() +
+        " failed: " + failedJobs));
+  }
+
+  /**
+   * Retry item, every attempt runs on shared TimeLimiter limited by the item time left - hanging attempt is
+   * interrupted and does not hold the runAll thread
+   */
+  private static <V> JTry<V> runItem(Callable<V> job, BulkSettings settings) {
+    if (settings.itemTimeout.isNegative() || settings.itemTimeout.isZero())
+      return retryJob(job, settings.itemTimeout, settings);
+    long deadline = System.nanoTime() + settings.itemTimeout.toNanos();
+    return retryJob(() -> timeLimitedJob(job, Duration.ofNanos(Math.max(deadline - System.nanoTime(), 1))).getOrThrow(),
+        settings.itemTimeout, settings);
+  }
+
+  /**
+   * @return 1 if taken job failed, 0 otherwise
+   */
+  private static <V> int takeNext(CompletionService<Map.Entry<Integer, JTry<V>>> completion,
+                                  BiConsumer<Integer, JTry<V>> consumer, Timer.IterationTimer timer,
+                                  BulkSettings settings) {
+    Map.Entry<Integer, JTry<V>> res = ExceptionHandler.rethrow(() -> completion.take().get());
+    consumer.accept(res.getKey(), res.getValue());
+    timer.printIter(1, x -> LOG.info(settings.name + ": " + x.totalCount() + " " + x.iterSpeed()));
+    return res.getValue().isOk() ? 0 : 1;
+  }
+
+  /**
+   * Non blocking retries: attempt is a function returning future, backoff delays (with jitter) are timed by
+   * one shared scheduler thread - no thread is blocked while waiting. The first attempt starts on the calling
+   * thread, retries on JTryAsync.defaultExecutor() (inline with non system clock, e.g. VirtualTimeSource).
+   * Cancelling returned future cancels running attempt and stops retries.
+   * Rejections (circuit breaker, retry budget, concurrency / rate limiter, deadline) are not retried.
+   *
+   * @param func         attempt generator, called for every attempt
+   * @param totalTimeout result is failed with TimeoutException after totalTimeout
+   * @see #defaultRetrySttings(Duration)
+   */
+  public static <V> CompletableFuture<V> retryJobAsync(Supplier<CompletableFuture<V>> func, Duration totalTimeout) {
+    return retryJobAsync(func, defaultRetrySttings(totalTimeout));
+  }
+
+  /**
+   * Non blocking retries, see {@link #retryJobAsync(Supplier, Duration)}
+   * @param func          attempt generator, called for every attempt
+   * @param retrySettings max attempts, total timeout, retry delays
+   */
+  public static <V> CompletableFuture<V> retryJobAsync(Supplier<CompletableFuture<V>> func, RetrySettings retrySettings) {
+    return retryJobAsync(func, retrySettings, TimeSource.SYSTEM);
+  }
+
+  /**
+   * Non blocking retries scheduled by the clock: with VirtualTimeSource attempts and timeout run when the clock
+   * is advanced, see {@link #retryJobAsync(Supplier, Duration)}
+   */
+  public static <V> CompletableFuture<V> retryJobAsync(Supplier<CompletableFuture<V>> func, Duration totalTimeout,
+                                                       TimeSource clock) {
+    return retryJobAsync(func, defaultRetrySttings(totalTimeout), clock);
+  }
+
+  public static <V> CompletableFuture<V> retryJobAsync(Supplier<CompletableFuture<V>> func, RetrySettings retrySettings,
+                                                       TimeSource clock) {
+    AsyncRetry<V> retry = new AsyncRetry<>(func, retrySettings, clock);
+    retry.attempt();
+    return retry.result;
+  }
+
+  /**
+   * Non blocking retries with adaptive concurrency limit: every attempt waits (without blocking) for limiter permit,
+   * attempt shed by the limiter (LimitExceededException) fails at once, without further retries
+   * @see #retryJobAsync(Supplier, Duration)
+   */
+  public static <V> CompletableFuture<V> retryJobAsync(Supplier<CompletableFuture<V>> func, Duration totalTimeout,
+                                                       ConcurrencyLimiter limiter) {
+    return retryJobAsync(() -> limiter.callAsync(func), totalTimeout);
+  }
+
+  /**
+   * Non blocking rate limited retries: every attempt waits (without blocking) for a permit not longer than the time
+   * left - if permit can't be taken in time attempt fails with RateLimitedException, nothing is reserved
+   * @see #retryJobAsync(Supplier, Duration)
+   */
+  public static <V> CompletableFuture<V> retryJobAsync(Supplier<CompletableFuture<V>> func, Duration totalTimeout,
+                                                       RateLimiter limiter) {
+    long deadline = System.nanoTime() + Math.max(totalTimeout.toNanos(), 0);
+    return retryJobAsync(() -> limiter.acquireAsync(1, Duration.ofNanos(Math.max(deadline - System.nanoTime(), 0)))
+        .thenComposeAsync(x -> func.get(), JTryAsync.defaultExecutor()), totalTimeout);
+  }
+
+  /**
+   * Non blocking retries, see {@link #retryJobAsync(Supplier, Duration)}
+   * @return future completed (never exceptionally) with JTry of result or last exception
+   */
+  public static <V> CompletableFuture<JTry<V>> retryJobAsyncTry(Supplier<CompletableFuture<V>> func, Duration totalTimeout) {
+    return toJTry(retryJobAsync(func, totalTimeout));
+  }
+
+  /**
+   * @return future completed (never exceptionally) with JTry of result or exception
+   */
+  public static <V> CompletableFuture<JTry<V>> toJTry(CompletableFuture<V> future) {
+    return future.handle((res, e) -> e == null ? JTry.of(() -> res) : JTry.failure(unwrapCompletion(e)));
+  }
+
+  /**
+   * @return cause of CompletionException / ExecutionException
+   */
+  public static Throwable unwrapCompletion(Throwable e) {
+    while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+      e = e.getCause();
+    return e;
+  }
+
   /**
    * To do operation apply using generated resource, close resource after usage
+   * For expensive resources use pooled version withPooledResource
    * @param getResource get closable resource of type A
    * @param apply       use resource to generate result of type B
    * @param ignoreCloseFailure ignore failures when clsosing resource
@@ -56,28 +441,101 @@ public class RetryJob {
    */
   public static <A, B> JTry<B> withResource(Supplier<A> getResource, Function<A,B> apply, boolean ignoreCloseFailure) {
     JTry<A> tryResource = JTry.of(getResource::get);
-    LOG.info("Resource: " + tryResource);
+    LOG.debug(() -> "Resource: " + tryResource);
     AutoCloseable c = (AutoCloseable) tryResource.getOrElse(null);
     JTry<B> tryClc = tryResource.map(apply::apply);
-    LOG.info("Clc: " + tryClc);
-    forceClc(tryClc.var.isPresent());
-    JTry<Object> tryClose = JTry.of(c::close);
-    LOG.info("Close: " + tryClose);
+    LOG.debug(() -> "Clc: " + tryClc);
+    forceClc(tryClc.isOk());
+    JTry<Object> tryClose = c == null ? JTry.of(() -> null) : JTry.of(c::close);
+    LOG.debug(() -> "Close: " + tryClose);
     if (ignoreCloseFailure) return tryClc;
     return tryClose.map(x -> tryClc.getOrThrow());
   }
 
   /**
-   * Run time limited job
+   * Asynchronous withResource: resource is closed when the asynchronous result of apply is done,
+   * close failure fails the result
+   * @param getResource get closable resource of type A
+   * @param apply       start asynchronous use of resource
+   * @return            JTryAsync of result B or exception
+   */
+  public static <A, B> JTryAsync<B> withResourceAsync(Supplier<A> getResource, Function<A, JTryAsync<B>> apply) {
+    JTry<A> tryResource = JTry.of(getResource::get);
+    LOG.debug(() -> "Resource: " + tryResource);
+    A resource = tryResource.getOrElse(null);
+    JTryAsync<B> res = tryResource.map(apply::apply)
+        .recover((Throwable e) -> JTryAsync.completed(JTry.failure(e))).getOrThrow();
+    return new JTryAsync<>(res.future.whenComplete((x, e) -> {
+      if (!(resource instanceof AutoCloseable)) return;
+      JTry<Object> tryClose = JTry.of(((AutoCloseable) resource)::close);
+      LOG.debug(() -> "Close: " + tryClose);
+      tryClose.getOrThrow();
+    }), res.executor);
+  }
+
+  /**
+   * Pooled counterpart of withResource: borrow resource from the pool, apply, return resource to the pool
+   * Resource is closed (not returned to the pool) if apply failed - it could be left in a bad state
+   * @param pool   resource pool
+   * @param apply  use resource to generate result of type B
+   * @return       JTry of result B or exception (borrow TimeoutException included)
+   */
+  public static <A, B> JTry<B> withPooledResource(ResourcePool<A> pool, Function<A,B> apply) {
+    JTry<ResourcePool.Pooled<A>> tryResource = JTry.of(pool::borrow);
+    return tryResource.map(pooled -> {
+      boolean ok = false;
+      try {
+        B res = apply.apply(pooled.resource);
+        ok = true;
+        return res;
+      } finally {
+        pool.release(pooled, !ok);
+      }
+    });
+  }
+
+  /**
+   * Run time limited job on shared TimeLimiter (no per call threads), job is interrupted on timeout
+   * Timeout is limited by the current Deadline scope
    * @param generator        object generator
-   * @param timeOut   abort job after ms
+   * @param timeOut   abort job after timeOut, not positive - no time limit (job runs on the calling thread)
    * @param <T>         generator type
    * @return            generated object
    */
   public static <T> JTry<T> timeLimitedJob(Callable<T> generator, Duration timeOut) {
-     return withResource(TLimitedJob::new, limiter -> limiter.call(generator, timeOut.toMillis()).getOrThrow(),
-             true);
+     if ((timeOut.isNegative() || timeOut.isZero()) && Deadline.current() == null) return JTry.of(generator::call);
+     return TimeLimiter.shared().call(generator, timeOut);
+  }
+  /**
+   * Run time limited job through circuit breaker, timeout is counted as breaker failure
+   * @throws CircuitBreaker.OpenException (in returned JTry) if breaker rejected the job
+   */
+  public static <T> JTry<T> timeLimitedJob(Callable<T> generator, Duration timeOut, CircuitBreaker breaker) {
+    return JTry.of(() -> breaker.call(() -> timeLimitedJob(generator, timeOut).getOrThrow()));
+  }
+
+  /**
+   * Run hedged job: one more attempt is started if the first one is slow, first success wins
+   * @param generator   object generator, has to be safe to run concurrently
+   * @param hedge       hedging policy and statistics, shared between calls to the same backend
+   * @param timeOut     abort job after timeOut, not positive - no time limit
+   * @return            generated object
+   */
+  public static <T> JTry<T> hedgedJob(Callable<T> generator, Hedge hedge, Duration timeOut) {
+    return hedge.call(generator, timeOut);
+  }
+
+  /**
+   * Retry hedged job: every retry attempt is hedged, hedged attempts are limited by the time left
+   * @see #retryJob(Callable, Duration)
+   * @see #hedgedJob(Callable, Hedge, Duration)
+   */
+  public static <V> JTry<V> retryHedgedJob(Callable<V> func, Hedge hedge, Duration totalTimeout) {
+    long deadline = System.nanoTime() + totalTimeout.toNanos();
+    return retryJob(() -> hedge.call(func, totalTimeout.isNegative() ? Duration.ZERO :
+        Duration.ofNanos(Math.max(deadline - System.nanoTime(), 1))).getOrThrow(), totalTimeout);
   }
+
   private static RetrySettings defaultRetrySttings(
       Duration totalTimeout) {
     return defaultRetrySttings(totalTimeout, 3);
@@ -109,14 +567,196 @@ public class RetryJob {
         .build();
   }
 
-  private static <V> V retryJob(Callable<V> callable, RetrySettings retrySettings, ResultRetryAlgorithm<?> retryAlgorithm) {
-      return RetryHelper.runWithRetries(callable, retrySettings, retryAlgorithm, NanoClock.getDefaultClock());
+  private static <V> V retryJob(Callable<V> callable, RetrySettings retrySettings,
+                                ResultRetryAlgorithmWithContext<V> retryAlgorithm) throws InterruptedException {
+    return retryJob(callable, retrySettings, retryAlgorithm, TimeSource.SYSTEM);
+  }
+
+  /**
+   * The same as {@link RetryHelper#runWithRetries(Callable, RetrySettings, ResultRetryAlgorithm, ApiClock)},
+   * but retry delays are slept by the clock (not Thread.sleep) - virtual time does not wait
+   */
+  private static <V> V retryJob(Callable<V> callable, RetrySettings retrySettings,
+                                ResultRetryAlgorithmWithContext<V> retryAlgorithm, TimeSource clock) throws InterruptedException {
+    if (clock == TimeSource.SYSTEM)
+      return RetryHelper.runWithRetries(recordAttempts(callable), retrySettings, retryAlgorithm, clock);
+    RetryingExecutor<V> executor = new DirectRetryingExecutor<V>(
+        new RetryAlgorithm<>(retryAlgorithm, new ExponentialRetryAlgorithm(retrySettings, clock))) {
+      @Override
+      protected void sleep(org.threeten.bp.Duration delay) throws InterruptedException {
+        clock.sleep(delay.toNanos());
+      }
+    };
+    RetryingFuture<V> future = executor.createFuture(recordAttempts(callable));
+    executor.submit(future);
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw retryHelperException(e.getCause());
+    }
+  }
+
+  /**
+   * @return RetryHelperException with the cause, as thrown by the SYSTEM clock path - callers see one exception type
+   * for any clock (its constructor is not public, RetryHelper makes it from one failing attempt)
+   */
+  static RuntimeException retryHelperException(Throwable cause) {
+    try {
+      RetryHelper.runWithRetries(() -> {
+        ExceptionHandler.rethrow(cause);
+        return null;
+      }, defaultRetrySttings(Duration.ofSeconds(1), 1), new BasicResultRetryAlgorithm<>(), TimeSource.SYSTEM);
+    } catch (RetryHelper.RetryHelperException e) {
+      return e;
+    }
+    return new IllegalStateException("Failed attempt did not fail", cause);
+  }
+
+  static final Metrics.Counter ATTEMPTS = Metrics.DEFAULT.counter("boxed_retry_attempts_total", "RetryJob attempts");
+  static final Metrics.Counter FAILED_ATTEMPTS = Metrics.DEFAULT.counter("boxed_retry_attempt_failures_total",
+      "RetryJob failed attempts");
+  static final Timer.Histogram ATTEMPT_LATENCY = Metrics.DEFAULT.histogram("boxed_retry_attempt_seconds",
+      "RetryJob attempt latency");
+
+  /**
+   * Emit Jfr.RetryAttempt event and attempt metrics for every attempt of the callable
+   */
+  private static <V> Callable<V> recordAttempts(Callable<V> callable) {
+    AtomicInteger attempt = new AtomicInteger(0);
+    return () -> {
+      Jfr.RetryAttempt event = new Jfr.RetryAttempt();
+      event.attempt = attempt.incrementAndGet();
+      event.begin();
+      long start = System.nanoTime();
+      try {
+        V res = callable.call();
+        event.ok = true;
+        return res;
+      } catch (Throwable e) {
+        if (event.shouldCommit()) event.exception = e.toString();
+        throw e;
+      } finally {
+        event.commit();
+        recordAttempt(start, event.ok);
+      }
+    };
+  }
+
+  private static void recordAttempt(long startNanos, boolean ok) {
+    ATTEMPTS.increment();
+    if (!ok) FAILED_ATTEMPTS.increment();
+    ATTEMPT_LATENCY.record(System.nanoTime() - startNanos);
+  }
+
+
+  /**
+   * Shared scheduler for non blocking retries: only schedules attempts / timeouts, never runs user code for long
+   */
+  static final ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1, r -> {
+    Thread t = new Thread(r, "retry-job-scheduler");
+    t.setDaemon(true);
+    return t;
+  });
+  static {
+    SCHEDULER.setRemoveOnCancelPolicy(true);
   }
 
+  /**
+   * State of one non blocking retry: attempts are sequential, result completion stops everything
+   */
+  private static class AsyncRetry<V> {
+    final Supplier<CompletableFuture<V>> func;
+    final RetrySettings settings;
+    final TimeSource clock;
+    // retries start off the shared scheduler thread, the scheduler only fires timers
+    final Executor executor;
+    final long startNanos, totalNanos;
+    final CompletableFuture<V> result = new CompletableFuture<>();
+    final ScheduledFuture<?> timeout;
+    volatile int attempts = 0;
+    volatile CompletableFuture<V> current;
+    volatile ScheduledFuture<?> nextAttempt;
+    volatile boolean stopped = false;
+
+    AsyncRetry(Supplier<CompletableFuture<V>> func, RetrySettings settings, TimeSource clock) {
+      this.func = func;
+      this.settings = settings;
+      this.clock = clock;
+      this.executor = clock == TimeSource.SYSTEM ? JTryAsync.defaultExecutor() : Runnable::run;
+      this.startNanos = clock.nanoTime();
+      this.totalNanos = settings.getTotalTimeout().toNanos();
+      this.timeout = clock.schedule(() -> {
+        stop();
+        result.completeExceptionally(new TimeoutException(
+            "Retry total timeout " + settings.getTotalTimeout() + " expired after " + attempts + " attempts"));
+      }, totalNanos);
+      result.whenComplete((res, e) -> stop());
+    }
+
+    /**
+     * Cancel running attempt, scheduled attempt and timeout
+     */
+    void stop() {
+      stopped = true;
+      timeout.cancel(false);
+      ScheduledFuture<?> next = nextAttempt;
+      if (next != null) next.cancel(false);
+      CompletableFuture<V> running = current;
+      if (running != null && !running.isDone()) running.cancel(true);
+    }
+
+    void attempt() {
+      if (stopped || result.isDone()) return;
+      Jfr.RetryAttempt event = new Jfr.RetryAttempt();
+      event.attempt = ++attempts;
+      event.begin();
+      long start = System.nanoTime();
+      CompletableFuture<V> attempt = JTry.of(func::get).recover((Throwable e) -> {
+        return CompletableFuture.<V>failedFuture(e);
+      }).getOrThrow();
+      current = attempt;
+      if (result.isDone()) attempt.cancel(true);
+      attempt.whenComplete((res, e) -> {
+        event.ok = e == null;
+        if (e != null && event.shouldCommit()) event.exception = unwrapCompletion(e).toString();
+        event.commit();
+        recordAttempt(start, e == null);
+        if (e == null) result.complete(res);
+        else onFailure(unwrapCompletion(e));
+      });
+    }
+
+    void startAttempt() {
+      JTry.of(() -> executor.execute(this::attempt)).processException(result::completeExceptionally);
+    }
+
+    void onFailure(Throwable e) {
+      if (stopped || result.isDone()) return;
+      long delay = retryDelayNanos();
+      boolean attemptsLeft = settings.getMaxAttempts() <= 0 || attempts < settings.getMaxAttempts();
+      if (!attemptsLeft || isRejection(e) || clock.nanoTime() - startNanos + delay >= totalNanos) {
+        result.completeExceptionally(e);
+        return;
+      }
+      LOG.debug(() -> "Attempt " + attempts + " failed, retry in " + delay + "ns: " + e);
+      nextAttempt = clock.schedule(this::startAttempt, delay);
+      if (result.isDone()) nextAttempt.cancel(false);
+    }
+
+    /**
+     * Exponential back-off with full jitter: random in [0, min(initial * multiplier^(attempts - 1), max)]
+     */
+    long retryDelayNanos() {
+      double delay = settings.getInitialRetryDelay().toNanos() *
+          Math.pow(settings.getRetryDelayMultiplier(), attempts - 1);
+      long maxDelay = (long) Math.min(delay, settings.getMaxRetryDelay().toNanos());
+      return ThreadLocalRandom.current().nextLong(Math.max(maxDelay, 1) + 1);
+    }
+  }
 
   /**
    * <pre>
-   * Simple time limiter for jobs, usage:
+   * Simple time limiter for jobs, every instance owns a thread - prefer shared TimeLimiter, usage:
    * Using Try block to call limiter close
    * try(TLimitedJob limiter = new TLimitedJob()) {
    *   limiter.call(func, timeOutMS)
@@ -126,16 +766,40 @@ public class RetryJob {
    * </pre>
    */
   public static class TLimitedJob implements AutoCloseable {
-    ExecutorService executor = Executors.newSingleThreadExecutor();
-    SimpleTimeLimiter timeLimiter = SimpleTimeLimiter.create(executor);
+    ExecutorService executor;
+    SimpleTimeLimiter timeLimiter;
+    TimeLimiter clockLimiter;
+
+    public TLimitedJob() {
+      executor = Executors.newSingleThreadExecutor();
+      timeLimiter = SimpleTimeLimiter.create(executor);
+    }
+
+    /**
+     * Timeouts measured by the clock (TimeLimiter with one thread), e.g. VirtualTimeSource in tests
+     */
+    public TLimitedJob(TimeSource clock) {
+      clockLimiter = new TimeLimiter("t-limited-job", 1, clock, true);
+      executor = clockLimiter.executor;
+    }
+
     public <T> JTry<T> call(Callable<T> callable, Long timeOutMS) {
+      if (timeOutMS != null && timeOutMS > 0 && clockLimiter != null)
+        return clockLimiter.call(callable, Duration.ofMillis(timeOutMS));
       if (timeOutMS != null && timeOutMS > 0)
-        return JTry.of(() -> timeLimiter.callWithTimeout(callable, timeOutMS, TimeUnit.MILLISECONDS));
+        return JTry.of(() -> timeLimiter.callWithTimeout(callable, timeOutMS, TimeUnit.MILLISECONDS))
+            .processException(e -> {
+              if (!(e instanceof TimeoutException)) return;
+              Jfr.Timeout event = new Jfr.Timeout();
+              event.timeoutMs = timeOutMS;
+              event.commit();
+            });
       return JTry.of(callable::call);
     }
 
-    @Override public void close() throws Exception {
-      executor.shutdownNow();
+    @Override public void close() {
+      if (clockLimiter != null) clockLimiter.close();
+      else executor.shutdownNow();
     }
   }
 
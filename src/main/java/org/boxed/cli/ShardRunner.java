@@ -0,0 +1,174 @@
+package org.boxed.cli;
+
+import com.google.common.base.Preconditions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.StopOptionHandler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.boxed.cli.ExceptionHandler.exceptionToString;
+import static org.boxed.cli.ExceptionHandler.rethrow;
+import static org.boxed.cli.General.listT;
+import static org.boxed.cli.General.mapKV;
+import static org.boxed.cli.json.JsonTools.str2Obj;
+
+/**
+ * <pre>
+ * Local multi process runner: executes the same mainRun class in N child JVMs,
+ * child i gets extra arguments: --shard i/N --report shardReport.json [--input shardInputFile]
+ * Child logs are streamed to stdout with [shard i/N] prefix, failed shards are rerun up to --retries times,
+ * child json reports are merged into runReport (use --report to save it)
+ * Input file (optional) is split by lines to N contiguous shard files, without input -
+ * child have to select its items by CliBasic.inShard(index)
+ * Usage:
+ * java -cp target/boxed_cli-1.0.1-jar-with-dependencies.jar org.boxed.cli.ShardRunner \
+ *      -c org.boxed.cli.run.Sample -n 8 -p 4 --input data.txt --input-option -i -- -n 5
+ * </pre>
+ */
+public class ShardRunner extends Cli.CliBasic {
+    static final Logger LOG = LogManager.getLogger(ShardRunner.class);
+
+    @Option(name = "-c", aliases = "--class", required = true, usage = "class with main method calling Cli.mainRun",
+            metaVar = "CLASS")
+    public String mainClass;
+    @Option(name = "-n", aliases = "--shards", usage = "number of shards")
+    public int shards = Runtime.getRuntime().availableProcessors();
+    @Option(name = "-p", aliases = "--parallel", usage = "max number of child processes running at once, <= 0 - all shards")
+    public int parallel = 0;
+    @Option(name = "-r", aliases = "--retries", usage = "number of reruns for failed shard")
+    public int retries = 1;
+    @Option(name = "--input", usage = "input file to split by lines into shards", metaVar = "FILE")
+    public String input = null;
+    @Option(name = "--input-option", usage = "child option receiving shard input file")
+    public String inputOption = "--input";
+    @Option(name = "--jvm", usage = "child jvm options, space separated: \"-Xmx4g -XX:+UseG1GC\"")
+    public String jvmOptions = "";
+    @Option(name = "--work-dir", usage = "directory for shard inputs / reports, default - temp directory", metaVar = "DIR")
+    public String workDir = null;
+
+    @Argument
+    @Option(name = "--", handler = StopOptionHandler.class, usage = "child arguments follow")
+    public List<String> childArgs = new ArrayList<>();
+
+    @Override
+    public void run() {
+        Preconditions.checkArgument(shards > 0, "Number of shards have to be positive: " + shards);
+        Path dir = rethrow(() -> workDir == null ? Files.createTempDirectory("shards") :
+                Files.createDirectories(Paths.get(workDir)));
+        List<Path> shardInputs = input == null ? null : splitInput(Paths.get(input), dir, shards);
+        ExecutorService pool = Executors.newFixedThreadPool(parallel <= 0 ? shards : Math.min(parallel, shards));
+        List<Map<String, Object>> reports;
+        try {
+            List<Future<Map<String, Object>>> futures = new ArrayList<>();
+            for (int i = 0; i < shards; i++) {
+                int shard = i;
+                futures.add(pool.submit(() -> runShard(shard, dir, shardInputs == null ? null : shardInputs.get(shard))));
+            }
+            reports = futures.stream().map(x -> rethrow(() -> x.get())).collect(Collectors.toList());
+        } finally {
+            pool.shutdownNow();
+        }
+        List<Object> failed = reports.stream().filter(x -> !Boolean.TRUE.equals(x.get("ok")))
+                .map(x -> x.get("shard")).collect(Collectors.toList());
+        runReport.put("shards", reports);
+        runReport.put("failed", failed);
+        LOG.info("Shards done: " + (shards - failed.size()) + "/" + shards + (failed.isEmpty() ? "" : " failed: " + failed));
+        if (!failed.isEmpty()) throw new RuntimeException("Failed shards: " + failed);
+    }
+
+    /**
+     * Split input file by lines into contiguous shards of (almost) equal number of lines
+     * @return shard files
+     */
+    static List<Path> splitInput(Path input, Path dir, int shards) {
+        return rethrow(() -> {
+            long lines;
+            try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+                lines = reader.lines().count();
+            }
+            List<Path> res = listT();
+            try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+                for (int i = 0; i < shards; i++) {
+                    Path shard = dir.resolve(input.getFileName() + ".shard-" + i + "-of-" + shards);
+                    long shardLines = lines * (i + 1) / shards - lines * i / shards;
+                    try (BufferedWriter writer = Files.newBufferedWriter(shard, StandardCharsets.UTF_8)) {
+                        for (long l = 0; l < shardLines; l++) {
+                            writer.write(reader.readLine());
+                            writer.newLine();
+                        }
+                    }
+                    res.add(shard);
+                }
+            }
+            return res;
+        });
+    }
+
+    /**
+     * Run shard child process, rerun it on failure
+     * @return child json report, with added exit code / attempt number
+     */
+    Map<String, Object> runShard(int shard, Path dir, Path shardInput) {
+        String shardName = shard + "/" + shards;
+        Path reportPath = dir.resolve("report-" + shard + "-of-" + shards + ".json");
+        Map<String, Object> report = null;
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            List<String> command = childCommand(shardName, reportPath, shardInput);
+            LOG.debug(() -> "Starting shard " + shardName + ": " + String.join(" ", command));
+            int attemptNum = attempt;
+            report = JTry.of(() -> {
+                Files.deleteIfExists(reportPath);
+                Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+                try (BufferedReader out = new BufferedReader(
+                        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = out.readLine()) != null) System.out.println("[shard " + shardName + "] " + line);
+                }
+                int exitCode = process.waitFor();
+                Map<String, Object> res = reportPath.toFile().exists() ?
+                        str2Obj(new String(Files.readAllBytes(reportPath), StandardCharsets.UTF_8)) :
+                        mapKV("shard", shardName, "ok", false, "error", "no report written");
+                res.put("ok", exitCode == 0 && Boolean.TRUE.equals(res.get("ok")));
+                res.put("exit_code", exitCode);
+                res.put("attempt", attemptNum);
+                return res;
+            }).recover((Throwable e) -> {
+                return General.<String, Object>mapKV("shard", shardName, "ok", false, "attempt", attemptNum,
+                        "error", exceptionToString(e, 2000));
+            }).getOrThrow();
+            if (Boolean.TRUE.equals(report.get("ok"))) break;
+            LOG.warn("Shard " + shardName + " attempt " + attempt + " failed: " + report.get("error"));
+        }
+        return report;
+    }
+
+    private List<String> childCommand(String shardName, Path reportPath, Path shardInput) {
+        List<String> command = listT(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String opt : jvmOptions.trim().split("\\s+")) if (!opt.isEmpty()) command.add(opt);
+        command.addAll(listT("-cp", System.getProperty("java.class.path"), mainClass));
+        command.addAll(childArgs);
+        if (shardInput != null) command.addAll(listT(inputOption, shardInput.toString()));
+        command.addAll(listT("--shard", shardName, "--report", reportPath.toString()));
+        return command;
+    }
+
+    public static void main(String[] args) {
+        Cli.mainRun(args, new ShardRunner());
+    }
+}
@@ -0,0 +1,165 @@
+package org.boxed.cli;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
+
+/**
+ * <pre>
+ * Request coalescing: concurrent callers with the same key share one execution and get the same JTry result
+ * Optional short TTL cache of successful results (ttl &lt;= 0 - no cache), when cache is over maxSize -
+ * expired entries are evicted, then entries closest to expiration
+ * Usage:
+ * SingleFlight&lt;String, Config&gt; configs = new SingleFlight&lt;&gt;(Duration.ofSeconds(5), 1000);
+ * JTry&lt;Config&gt; res = configs.call(name, () -&gt; loadConfig(name));
+ * JTry&lt;Config&gt; res = RetryJob.retryJob(configs, name, () -&gt; loadConfig(name), Duration.ofSeconds(3));
+ * </pre>
+ */
+public class SingleFlight<K, V> {
+    final Map<K, CompletableFuture<JTry<V>>> inFlight = new ConcurrentHashMap<>();
+    final Map<K, Cached<V>> cache = new ConcurrentHashMap<>();
+    final long ttlNanos;
+    final int maxSize;
+    final LongAdder calls = new LongAdder(), executions = new LongAdder(), shared = new LongAdder(),
+            cacheHits = new LongAdder();
+
+    static class Cached<V> {
+        final JTry<V> value;
+        final long expires;
+
+        Cached(JTry<V> value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * No result cache - only concurrent calls are coalesced
+     */
+    public SingleFlight() {
+        this(Duration.ZERO, 0);
+    }
+
+    /**
+     * @param ttl     successful result is cached for ttl, not positive - no cache
+     * @param maxSize max number of cached results
+     */
+    public SingleFlight(Duration ttl, int maxSize) {
+        this.ttlNanos = ttl.toNanos();
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param key  call key, calls with equal keys are coalesced
+     * @param func job, executed once for all concurrent callers with the key
+     * @return cached result, result of running execution with the key or result of the new execution
+     */
+    public JTry<V> call(K key, Callable<V> func) {
+        calls.increment();
+        JTry<V> cached = cached(key);
+        if (cached != null) return cached;
+        CompletableFuture<JTry<V>> mine = new CompletableFuture<>();
+        CompletableFuture<JTry<V>> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            shared.increment();
+            return running.join();
+        }
+        executions.increment();
+        JTry<V> res = JTry.of(func::call);
+        complete(key, mine, res);
+        return res;
+    }
+
+    /**
+     * Non blocking version of call(key, func)
+     * @return future completed (never exceptionally) with shared JTry result, own copy of every caller -
+     * cancelling it does not affect other callers
+     */
+    public CompletableFuture<JTry<V>> callAsync(K key, Supplier<CompletableFuture<V>> func) {
+        calls.increment();
+        JTry<V> cached = cached(key);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        CompletableFuture<JTry<V>> mine = new CompletableFuture<>();
+        CompletableFuture<JTry<V>> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            shared.increment();
+            return running.copy();
+        }
+        executions.increment();
+        CompletableFuture<V> future;
+        try {
+            future = func.get();
+        } catch (Throwable e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        RetryJob.toJTry(future).thenAccept(res -> complete(key, mine, res));
+        return mine.copy();
+    }
+
+    private JTry<V> cached(K key) {
+        if (ttlNanos <= 0) return null;
+        Cached<V> cached = cache.get(key);
+        if (cached == null) return null;
+        if (System.nanoTime() - cached.expires >= 0) {
+            cache.remove(key, cached);
+            return null;
+        }
+        cacheHits.increment();
+        return cached.value;
+    }
+
+    /**
+     * Cache result (before in flight call is removed - no gap for new callers), release waiting callers
+     */
+    private void complete(K key, CompletableFuture<JTry<V>> mine, JTry<V> res) {
+        if (ttlNanos > 0 && res.isOk()) {
+            cache.put(key, new Cached<>(res, System.nanoTime() + ttlNanos));
+            if (cache.size() > maxSize) evict();
+        }
+        inFlight.remove(key, mine);
+        mine.complete(res);
+    }
+
+    private void evict() {
+        long now = System.nanoTime();
+        cache.entrySet().removeIf(x -> now - x.getValue().expires >= 0);
+        while (cache.size() > maxSize) {
+            Map.Entry<K, Cached<V>> oldest = null;
+            for (Map.Entry<K, Cached<V>> x : cache.entrySet())
+                if (oldest == null || x.getValue().expires - oldest.getValue().expires < 0) oldest = x;
+            if (oldest == null) break;
+            cache.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    /**
+     * Drop cached result of the key
+     */
+    public void invalidate(K key) {
+        cache.remove(key);
+    }
+
+    public long getExecutions() {
+        return executions.sum();
+    }
+
+    public long getShared() {
+        return shared.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public String metrics() {
+        return "Calls " + prettyNumber(calls.sum(), 2) + " executions " + prettyNumber(executions.sum(), 2) +
+                " shared " + prettyNumber(shared.sum(), 2) + " cache hits " + prettyNumber(cacheHits.sum(), 2) +
+                " cached " + cache.size();
+    }
+}
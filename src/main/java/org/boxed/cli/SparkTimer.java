@@ -0,0 +1,212 @@
+package org.boxed.cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.SparkContext;
+import org.apache.spark.util.AccumulatorV2;
+import org.apache.spark.util.LongAccumulator;
+
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+
+/**
+ * <pre>
+ * IterationTimer for Spark jobs: executors count into accumulators, driver publishes cluster wide progress
+ * Executors: plain adds to task local accumulator copies - no synchronization, no clock reads for increment()
+ * Driver: publisher is called every publish time step (TimeSource.schedule), off the scheduler thread and
+ * outside of the timer lock, ETA from known total count
+ * Spark merges accumulators when a task ends - use enough partitions for smooth progress
+ * Usage (driver):
+ * SparkTimer timer = new SparkTimer(spark.sparkContext(), "load", 10., rdd.count(),
+ *         count -&gt; LOG.info(count.iterSpeed() + " " + count.totalCount() + " " + count.eta()));
+ * rdd.map(row -&gt; {
+ *     long start = System.nanoTime();
+ *     Row res = process(row);
+ *     timer.record(System.nanoTime() - start);   // or timer.increment()
+ *     return res;
+ * }).saveAsTextFile(out);
+ * timer.printLast(count -&gt; LOG.info("Done " + count.totalCountTime() + " " + count.busyThreads() + " " + count.latencyPercentiles()));
+ * </pre>
+ */
+public class SparkTimer implements Serializable, AutoCloseable {
+    static final Logger LOG = LogManager.getLogger(SparkTimer.class);
+    final LongAccumulator iterations, busyNanos;
+    final HistogramAccumulator latency = new HistogramAccumulator();
+    final long totalCount, publishTimeStep;
+    // driver only state
+    transient Consumer<Timer.IterationData> publisher;
+    transient TimeSource clock;
+    // publisher runs outside of the timer lock and off the shared scheduler thread, in publish order
+    transient Executor publishExecutor;
+    transient CompletableFuture<Void> lastPublish;
+    transient long startTime, publishTime, publishIter;
+    transient ScheduledFuture<?> nextPublish;
+    transient boolean closed;
+
+    public SparkTimer(SparkContext sc, String name, double publishTimeStepInSec, long totalCount,
+                      Consumer<Timer.IterationData> publisher) {
+        this(sc, name, publishTimeStepInSec, totalCount, publisher, TimeSource.SYSTEM);
+    }
+
+    /**
+     * Create on the driver
+     * @param name       accumulators name prefix (Spark UI)
+     * @param totalCount expected iterations for ETA, 0 - unknown
+     * @param publisher  called in publish order by JTryAsync.defaultExecutor() (by the thread advancing the clock
+     *                   for other time sources, e.g. VirtualTimeSource)
+     * @param clock      time source of driver measurements and publishing
+     */
+    public SparkTimer(SparkContext sc, String name, double publishTimeStepInSec, long totalCount,
+                      Consumer<Timer.IterationData> publisher, TimeSource clock) {
+        this.iterations = sc.longAccumulator(name + ".iterations");
+        this.busyNanos = sc.longAccumulator(name + ".busy_ns");
+        sc.register(latency, name + ".latency");
+        this.totalCount = totalCount;
+        this.publishTimeStep = Math.max((long) (publishTimeStepInSec * 1e9), 1);
+        this.publisher = publisher;
+        this.clock = clock;
+        this.publishExecutor = clock == TimeSource.SYSTEM ? JTryAsync.defaultExecutor() : Runnable::run;
+        synchronized (this) {
+            this.lastPublish = CompletableFuture.completedFuture(null);
+            this.startTime = this.publishTime = clock.nanoTime();
+            this.nextPublish = clock.schedule(this::publish, publishTimeStep);
+        }
+    }
+
+    /**
+     * Executor: count iteration
+     */
+    public void increment() {
+        iterations.add(1);
+    }
+
+    public SparkTimer addIterations(long add) {
+        iterations.add(add);
+        return this;
+    }
+
+    /**
+     * Executor: count iteration, add its time to busy time and latency histogram
+     */
+    public void record(long nanos) {
+        iterations.add(1);
+        busyNanos.add(nanos);
+        latency.add(nanos);
+    }
+
+    synchronized void publish() {
+        if (closed) return;
+        long curTime = clock.nanoTime();
+        Timer.IterationData data = getIterationData(curTime);
+        Timer.recordPublish(data);
+        publishIter = data.run_count;
+        publishTime = curTime;
+        nextPublish = clock.schedule(this::publish, publishTimeStep);
+        // publisher failure must not stop publishing
+        lastPublish = lastPublish.thenRunAsync(() -> JTry.of(() -> publisher.accept(data))
+                .processException(e -> LOG.warn("Timer publisher failed", e)), publishExecutor);
+    }
+
+    /**
+     * Driver: progress of finished tasks, latency histogram of the whole run (if record was used)
+     */
+    public synchronized Timer.IterationData getIterationData() {
+        return getIterationData(clock.nanoTime());
+    }
+
+    synchronized Timer.IterationData getIterationData(long curTime) {
+        long count = iterations.value();
+        Timer.IterationData data = new Timer.IterationData(curTime - publishTime, count - publishIter,
+                curTime - startTime, count);
+        data.total_count = totalCount;
+        data.busy_nanosecond_time = busyNanos.value();
+        Timer.Histogram.Snapshot all = latency.value();
+        if (all.count > 0) data.latency = all;
+        return data;
+    }
+
+    /**
+     * Driver: stop publishing, wait for publishes in flight, publish overall statistics
+     */
+    public void printLast(Consumer<Timer.IterationData> publisher) {
+        close();
+        CompletableFuture<Void> inFlight;
+        synchronized (this) {
+            inFlight = lastPublish;
+        }
+        inFlight.join();
+        publisher.accept(getIterationData());
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        nextPublish.cancel(false);
+    }
+
+    /**
+     * <pre>
+     * Timer.Histogram buckets as Spark accumulator: task copy is used by one thread - plain array adds,
+     * merge / value run on the driver (synchronized - publisher reads while tasks are merged)
+     * </pre>
+     */
+    public static class HistogramAccumulator extends AccumulatorV2<Long, Timer.Histogram.Snapshot> {
+        // null while empty - no buckets shipped for empty copies
+        long[] counts;
+        long sum, max;
+
+        @Override
+        public synchronized boolean isZero() {
+            return counts == null;
+        }
+
+        @Override
+        public synchronized HistogramAccumulator copy() {
+            HistogramAccumulator res = new HistogramAccumulator();
+            res.counts = counts == null ? null : counts.clone();
+            res.sum = sum;
+            res.max = max;
+            return res;
+        }
+
+        @Override
+        public synchronized void reset() {
+            counts = null;
+            sum = max = 0;
+        }
+
+        @Override
+        public void add(Long nanos) {
+            add((long) nanos);
+        }
+
+        /**
+         * Not synchronized: called by the task thread only
+         */
+        public void add(long nanos) {
+            if (counts == null) counts = new long[Timer.Histogram.BUCKETS];
+            counts[Timer.Histogram.index(nanos)]++;
+            sum += nanos;
+            if (nanos > max) max = nanos;
+        }
+
+        @Override
+        public synchronized void merge(AccumulatorV2<Long, Timer.Histogram.Snapshot> other) {
+            HistogramAccumulator histogram = (HistogramAccumulator) other;
+            if (histogram.counts == null) return;
+            if (counts == null) counts = new long[Timer.Histogram.BUCKETS];
+            for (int i = 0; i < counts.length; i++) counts[i] += histogram.counts[i];
+            sum += histogram.sum;
+            max = Math.max(max, histogram.max);
+        }
+
+        @Override
+        public synchronized Timer.Histogram.Snapshot value() {
+            return counts == null ? Timer.Histogram.Snapshot.empty() : new Timer.Histogram.Snapshot(counts.clone(), sum, max);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package org.boxed.cli;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
+
+/**
+ * <pre>
+ * Shared time limiter: jobs run on bounded daemon thread pool, deadlines are tracked by one hashed wheel timer thread
+ * On timeout job result fails with TimeoutException, job is cancelled:
+ *   cooperative - job can check TimeLimiter.isCancelled() / TimeLimiter.checkCancelled()
+ *   interrupt   - job thread is interrupted (if interruptOnTimeout)
+ * Usage:
+ * JTry&lt;T&gt; res = TimeLimiter.shared().call(job, Duration.ofSeconds(1));
+ * CompletableFuture&lt;T&gt; res = TimeLimiter.shared().callAsync(job, Duration.ofSeconds(1));
+ * LOG.info(TimeLimiter.shared().metrics());
+ * Timeouts by TimeSource (instead of the wheel), deterministic tests with VirtualTimeSource:
+ * TimeLimiter limiter = new TimeLimiter("test", 4, clock, true);
+ * Own limiter has to be closed (stops its wheel and job threads):
+ * try (TimeLimiter limiter = new TimeLimiter("backend", 16, Duration.ofMillis(1), true)) {...}
+ * </pre>
+ */
+public class TimeLimiter implements AutoCloseable {
+    static final Logger LOG = LogManager.getLogger(TimeLimiter.class);
+    private static volatile TimeLimiter shared;
+    private static final ThreadLocal<LimitedTask<?>> CURRENT = new ThreadLocal<>();
+
+    final ThreadPoolExecutor executor;
+    final Wheel wheel;
+    final TimeSource clock;
+    final boolean interruptOnTimeout;
+    final LongAdder submitted = new LongAdder(), succeeded = new LongAdder(), failed = new LongAdder(),
+            timeouts = new LongAdder();
+    final AtomicInteger inFlight = new AtomicInteger(), running = new AtomicInteger();
+
+    /**
+     * @param name               thread names prefix
+     * @param threads            max number of job threads (jobs are queued when all threads are busy)
+     * @param tick               deadline timer precision
+     * @param interruptOnTimeout interrupt job thread on timeout
+     */
+    public TimeLimiter(String name, int threads, Duration tick, boolean interruptOnTimeout) {
+        this(name, threads, new Wheel(name + "-wheel", tick.toNanos(), 512), TimeSource.SYSTEM, interruptOnTimeout);
+    }
+
+    /**
+     * Timeouts are scheduled by the clock
+     * @param clock time source, e.g. VirtualTimeSource - timeouts fire when the clock is advanced
+     * @see #TimeLimiter(String, int, Duration, boolean)
+     */
+    public TimeLimiter(String name, int threads, TimeSource clock, boolean interruptOnTimeout) {
+        this(name, threads, null, clock, interruptOnTimeout);
+    }
+
+    private TimeLimiter(String name, int threads, Wheel wheel, TimeSource clock, boolean interruptOnTimeout) {
+        AtomicInteger threadNum = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, name + "-" + threadNum.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.wheel = wheel;
+        this.clock = clock;
+        this.interruptOnTimeout = interruptOnTimeout;
+    }
+
+    /**
+     * @return time limiter shared by RetryJob.timeLimitedJob: 8 threads per core, 1ms deadline precision, interrupting
+     */
+    public static TimeLimiter shared() {
+        if (shared == null) {
+            synchronized (TimeLimiter.class) {
+                if (shared == null) shared = new TimeLimiter("time-limiter",
+                        Math.max(64, 8 * Runtime.getRuntime().availableProcessors()), Duration.ofMillis(1), true);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Run job with timeout, wait for result
+     * @param callable job
+     * @param timeout  job timeout (queue time included), not positive - no timeout
+     * @return job result, TimeoutException if job did not finish in time
+     */
+    public <T> JTry<T> call(Callable<T> callable, Duration timeout) {
+        CompletableFuture<T> res = callAsync(callable, timeout);
+        return JTry.of(() -> {
+            try {
+                return res.get();
+            } catch (InterruptedException e) {
+                res.cancel(true);
+                throw e;
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    /**
+     * Run job with timeout
+     * @param callable job
+     * @param timeout  job timeout (queue time included), not positive - no timeout,
+     *                 limited by the current Deadline scope, the scope is passed to the job
+     * @return future of job result, failed with TimeoutException if job did not finish in time,
+     * cancelling future cancels job
+     */
+    public <T> CompletableFuture<T> callAsync(Callable<T> callable, Duration timeout) {
+        Deadline scope = Deadline.current();
+        LimitedTask<T> task = new LimitedTask<>(callable, scope);
+        submitted.increment();
+        inFlight.incrementAndGet();
+        if (timeout == null || timeout.isNegative() || timeout.isZero()) timeout = null;
+        // job has to be done by the deadline of caller scope too
+        if (scope != null) timeout = Duration.ofNanos(Math.max(
+                timeout == null ? scope.remainingNanos() : Math.min(timeout.toNanos(), scope.remainingNanos()), 1));
+        Duration limit = timeout;
+        if (limit != null) task.cancelTimeout = schedule(() -> task.timeout(limit), limit.toNanos());
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // closed limiter: done() cleans timeout and in flight count up
+            task.result.completeExceptionally(e);
+            task.cancel(false);
+        }
+        return task.result;
+    }
+
+    /**
+     * Run short task after delayNanos on the wheel (or the clock of the limiter)
+     * @return cancels the task
+     */
+    Runnable schedule(Runnable task, long delayNanos) {
+        if (wheel != null) return wheel.schedule(task, delayNanos)::cancel;
+        ScheduledFuture<?> scheduled = clock.schedule(task, delayNanos);
+        return () -> scheduled.cancel(false);
+    }
+
+    /**
+     * @return if job running by this thread was cancelled (timeout) - cooperative cancellation check
+     */
+    public static boolean isCancelled() {
+        LimitedTask<?> task = CURRENT.get();
+        return task != null && task.isCancelled();
+    }
+
+    /**
+     * Cooperative cancellation: throw CancellationException if job running by this thread was cancelled
+     */
+    public static void checkCancelled() {
+        if (isCancelled()) throw new CancellationException("Time limited job cancelled");
+    }
+
+    /**
+     * Stop the wheel thread and job threads: running jobs are interrupted, queued jobs are cancelled,
+     * new jobs are rejected (RejectedExecutionException). Closing shared() limiter does nothing
+     */
+    @Override
+    public void close() {
+        if (this == shared) return;
+        if (wheel != null) wheel.stop();
+        for (Runnable task : executor.shutdownNow()) ((FutureTask<?>) task).cancel(false);
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    public String metrics() {
+        return "Submitted " + prettyNumber(submitted.sum(), 2) + " succeeded " + prettyNumber(succeeded.sum(), 2) +
+                " failed " + prettyNumber(failed.sum(), 2) + " timeouts " + prettyNumber(timeouts.sum(), 2) +
+                " in flight " + inFlight.get() + " running " + running.get() + " threads " + executor.getPoolSize();
+    }
+
+    /**
+     * Job wrapper: FutureTask gives interrupt based cancellation, result - completion for callers
+     */
+    class LimitedTask<T> extends FutureTask<T> {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        volatile Runnable cancelTimeout;
+
+        @SuppressWarnings("try")
+        LimitedTask(Callable<T> callable, Deadline scope) {
+            super(() -> {
+                running.incrementAndGet();
+                try {
+                    if (scope == null) return callable.call();
+                    try (Deadline.Scope s = scope.enter()) {
+                        return callable.call();
+                    }
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+            result.whenComplete((res, e) -> {
+                if (result.isCancelled()) cancel(interruptOnTimeout);
+            });
+        }
+
+        @Override
+        public void run() {
+            CURRENT.set(this);
+            try {
+                super.run();
+            } finally {
+                CURRENT.remove();
+                // do not leak timeout interrupt to the next job of pool thread
+                if (isCancelled()) Thread.interrupted();
+            }
+        }
+
+        void timeout(Duration timeout) {
+            if (result.completeExceptionally(new TimeoutException("Job timeout " + timeout))) {
+                timeouts.increment();
+                Jfr.Timeout event = new Jfr.Timeout();
+                event.timeoutMs = timeout.toMillis();
+                event.commit();
+                cancel(interruptOnTimeout);
+            }
+        }
+
+        @Override
+        protected void done() {
+            inFlight.decrementAndGet();
+            Runnable cancel = cancelTimeout;
+            if (cancel != null) cancel.run();
+            if (isCancelled()) {
+                result.completeExceptionally(new CancellationException("Time limited job cancelled"));
+                return;
+            }
+            try {
+                T res = get();
+                succeeded.increment();
+                result.complete(res);
+            } catch (Throwable e) {
+                failed.increment();
+                result.completeExceptionally(e instanceof ExecutionException ? e.getCause() : e);
+            }
+        }
+    }
+
+    /**
+     * <pre>
+     * Hashed wheel timer: timeouts are put into wheel buckets by expiration tick,
+     * one thread advances the wheel and fires expired timeouts, ticks of empty buckets are skipped -
+     * the thread sleeps until the next non empty bucket (without timeouts until one is scheduled)
+     * schedule / cancel are lock free and O(1), fired tasks have to be short (they run on wheel thread)
+     * </pre>
+     */
+    static class Wheel {
+        final long tickNanos;
+        final List<List<Timeout>> buckets = new ArrayList<>();
+        final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+        final long start = System.nanoTime();
+        final AtomicLong pending = new AtomicLong();
+        final Thread thread;
+        volatile boolean stopped = false;
+        // tick the parked thread wakes up at, Long.MIN_VALUE - running (it checks added before parking)
+        volatile long wakeTick = Long.MIN_VALUE;
+        long tick = 0;
+
+        Wheel(String name, long tickNanos, int size) {
+            this.tickNanos = Math.max(tickNanos, 1);
+            for (int i = 0; i < size; i++) buckets.add(new ArrayList<>());
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Stop the wheel thread, scheduled tasks are dropped
+         */
+        void stop() {
+            stopped = true;
+            LockSupport.unpark(thread);
+        }
+
+        static class Timeout {
+            final Runnable task;
+            final long when;
+            long rounds;
+            volatile boolean cancelled = false;
+
+            Timeout(Runnable task, long when) {
+                this.task = task;
+                this.when = when;
+            }
+
+            void cancel() {
+                cancelled = true;
+            }
+        }
+
+        Timeout schedule(Runnable task, long delayNanos) {
+            Timeout timeout = new Timeout(task, System.nanoTime() + delayNanos);
+            pending.incrementAndGet();
+            added.add(timeout);
+            // wake the thread parked past the tick of the new timeout
+            if (tickOf(timeout.when) < wakeTick) LockSupport.unpark(thread);
+            return timeout;
+        }
+
+        long tickOf(long nanos) {
+            return (nanos - start) / tickNanos;
+        }
+
+        private void run() {
+            while (!stopped) {
+                // ticks which ended before now are due
+                long due = tickOf(System.nanoTime());
+                long busy = nextBusyTick();
+                // buckets of skipped ticks are empty
+                tick = busy < 0 ? Math.max(tick, due) : Math.min(busy, Math.max(tick, due));
+                for (Timeout t = added.poll(); t != null; t = added.poll()) {
+                    if (t.cancelled) {
+                        pending.decrementAndGet();
+                        continue;
+                    }
+                    long ticks = Math.max(tickOf(t.when), tick);
+                    t.rounds = (ticks - tick) / buckets.size();
+                    buckets.get((int) (ticks % buckets.size())).add(t);
+                }
+                busy = nextBusyTick();
+                if (busy >= 0 && busy < due) {
+                    tick = busy;
+                    expire();
+                    tick++;
+                    continue;
+                }
+                wakeTick = busy < 0 ? Long.MAX_VALUE : busy;
+                if (added.isEmpty() && !stopped) {
+                    if (busy < 0) LockSupport.park(this);
+                    else LockSupport.parkNanos(this, start + (busy + 1) * tickNanos - System.nanoTime());
+                }
+                wakeTick = Long.MIN_VALUE;
+            }
+        }
+
+        /**
+         * @return the first tick from the current one with non empty bucket, -1 - all buckets are empty
+         */
+        private long nextBusyTick() {
+            for (int i = 0; i < buckets.size(); i++) {
+                if (!buckets.get((int) ((tick + i) % buckets.size())).isEmpty()) return tick + i;
+            }
+            return -1;
+        }
+
+        /**
+         * Fire expired timeouts of the current tick bucket, timeouts of later rounds wait for the next pass
+         */
+        private void expire() {
+            long now = System.nanoTime();
+            Iterator<Timeout> it = buckets.get((int) (tick % buckets.size())).iterator();
+            while (it.hasNext()) {
+                Timeout t = it.next();
+                if (t.cancelled) {
+                    it.remove();
+                    pending.decrementAndGet();
+                } else if (t.rounds <= 0 && t.when <= now) {
+                    it.remove();
+                    pending.decrementAndGet();
+                    JTry.of(t.task::run).processException(e -> LOG.error("Wheel task failed", e));
+                } else if (t.rounds > 0) {
+                    t.rounds--;
+                }
+            }
+        }
+    }
+}
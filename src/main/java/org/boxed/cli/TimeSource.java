@@ -0,0 +1,72 @@
+package org.boxed.cli;
+
+import com.google.api.core.ApiClock;
+
+import java.io.Serializable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <pre>
+ * Clock and scheduler used by RetryJob, TimeLimiter and Timer: time reads, sleeps and delayed tasks go through it
+ * TimeSource.SYSTEM - production clock: System.nanoTime, Thread.sleep, RetryJob scheduler thread
+ * (one final implementation, calls are monomorphic and inlined - no overhead compared to direct calls)
+ * VirtualTimeSource - virtual time for deterministic tests, time moves only by sleep / advance
+ * Usage:
+ * VirtualTimeSource clock = new VirtualTimeSource();
+ * // retry delays take no real time
+ * JTry&lt;T&gt; res = RetryJob.retryJob(job, Duration.ofSeconds(10), new RetryJob.Guards().clock(clock));
+ * Timer.IterationTimer timer = new Timer.IterationTimer(10., clock);
+ * clock.advance(Duration.ofSeconds(10));
+ * </pre>
+ */
+public abstract class TimeSource implements ApiClock, Serializable {
+    public static final TimeSource SYSTEM = new SystemTimeSource();
+
+    /**
+     * @return current time in nanoseconds, only differences are meaningful
+     */
+    @Override
+    public abstract long nanoTime();
+
+    @Override
+    public long millisTime() {
+        return TimeUnit.NANOSECONDS.toMillis(nanoTime());
+    }
+
+    /**
+     * Block current thread for nanos
+     */
+    public abstract void sleep(long nanos) throws InterruptedException;
+
+    /**
+     * Run task after delayNanos, task has to be short - it runs on scheduler thread
+     */
+    public abstract ScheduledFuture<?> schedule(Runnable task, long delayNanos);
+
+    static final class SystemTimeSource extends TimeSource {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long nanos) throws InterruptedException {
+            if (nanos > 0) TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+            return RetryJob.SCHEDULER.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private Object readResolve() {
+            return SYSTEM;
+        }
+
+        @Override
+        public String toString() {
+            return "System time";
+        }
+    }
+}
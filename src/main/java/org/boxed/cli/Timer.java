@@ -1,12 +1,24 @@
 package org.boxed.cli;
 
+import com.sun.management.ThreadMXBean;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.Serializable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
+import static org.boxed.cli.PrettyNumberFormater.prettyBytes;
 import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
 import static org.boxed.cli.PrettyNumberFormater.prettyTime;
 
@@ -25,24 +37,53 @@ import static org.boxed.cli.PrettyNumberFormater.prettyTime;
  * //Print overall, general statistics
  * timer.printLast(count->LOG.info("Done " + count.runCountTime()));
  *
+ * Deterministic test of publishing: new Timer.IterationTimer(10., virtualTimeSource)
+ * Allocation / GC per published period: new Timer.IterationTimer(10.).trackGc(), count.gcStats()
+ * Bytes, smoothed MiB/s and ETA: Timer.ThroughputTimer, count.throughput() + " " + count.eta()
+ *
+ * Many worker threads: ConcurrentIterationTimer - striped counter, published by background scheduler every 10 sec
+ * Timer.ConcurrentIterationTimer timer = new Timer.ConcurrentIterationTimer(10., count->LOG.info(count.iterSpeed()));
+ * workers: timer.increment();
+ * timer.printLast(count->LOG.info("Done " + count.totalCountTime()));
+ *
+ * Latency percentiles: Histogram - lock free record, interval snapshots
+ * Timer.Histogram latency = new Timer.Histogram();
+ * Timer.IterationTimer.measure(() -&gt; handle(request), latency, data -&gt; {});
+ * LOG.info(latency.intervalSnapshot());   // Count 10K mean 1ms 200mks p50 ... p99 ... p99.9 ... max ...
+ *
+ * Spark jobs: SparkTimer - executors count into accumulators, driver publishes cluster wide progress and ETA
  * </pre>
  */
 public class Timer {
     static Logger LOG = LogManager.getLogger(Timer.class);
     public static class IterationTimer implements Serializable {
         Long startTime, publishTime, publishIter, currentIter, publishTimeStep;
+        final TimeSource clock;
+        // allocation / GC counters at the last publish, null - not tracked
+        GcSample gcPublish;
         public IterationTimer(double publishTimeStepInSec) {
+            this(publishTimeStepInSec, TimeSource.SYSTEM);
+        }
+        /**
+         * @param clock time source of measurements, TimeSource.SYSTEM - System.nanoTime
+         */
+        public IterationTimer(double publishTimeStepInSec, TimeSource clock) {
             this.publishTimeStep = ((Double)(publishTimeStepInSec * 1e9)).longValue();
+            this.clock = clock;
             reset();
         }
         public void  printIter(int iterationDone, String message) {
             printIter(iterationDone, x->LOG.info(message + " " + x.iterSpeed() + " " + x.totalCount()));
         }
         public void  printIter(int iterationDone, Consumer<IterationData> publisher) {
-            long curTime = System.nanoTime();
+            long curTime = clock.nanoTime();
             currentIter += iterationDone;
             if(curTime - publishTime >= publishTimeStep) {
-                publisher.accept(getIterationData(curTime));
+                IterationData data = getIterationData(curTime);
+                if (gcPublish != null) gcPublish = gcPublish.next(data);
+                onPublish(data);
+                recordPublish(data);
+                publisher.accept(data);
                 publishIter = currentIter;
                 publishTime = curTime;
             }
@@ -55,33 +96,496 @@ public class Timer {
             currentIter += add;
             return this;
         }
+        /**
+         * Add run time done before (e.g. restored from checkpoint), the current publish period is not changed
+         */
+        public IterationTimer addRunTime(long nanos) {
+            startTime -= nanos;
+            return this;
+        }
+        /**
+         * Called for published data before publisher gets it
+         */
+        void onPublish(IterationData data) {
+        }
+        /**
+         * Sample allocated bytes of the thread calling printIter and GC of the JVM at every publish
+         * (IterationData.gcStats), nothing is added to not publishing printIter calls
+         */
+        public IterationTimer trackGc() {
+            gcPublish = GcSample.take();
+            return this;
+        }
+        /**
+         * @return counts since the last publish, allocation / GC since the last publish if tracked
+         */
         public IterationData getIterationData() {
-            return getIterationData(System.nanoTime());
+            IterationData data = getIterationData(clock.nanoTime());
+            if (gcPublish != null) gcPublish.next(data);
+            return data;
         }
         public IterationData getIterationData(long curTime) {
             return new IterationData(curTime - publishTime, currentIter - publishIter, curTime - startTime, currentIter);
         }
         public void reset() {
-            startTime = System.nanoTime();
+            startTime = clock.nanoTime();
             publishTime = startTime;
             publishIter = currentIter = 0L;
+            if (gcPublish != null) gcPublish = GcSample.take();
         }
+        /**
+         * Histogram of measure calls without own histogram, exported as boxed_timer_measure_seconds
+         */
+        static final Histogram MEASURED = Metrics.DEFAULT.histogram("boxed_timer_measure_seconds",
+                "IterationTimer.measure time");
+        /**
+         * Measure and record time in the default histogram (Metrics.DEFAULT boxed_timer_measure_seconds)
+         */
         static public <T> T measure(Supplier<T> measureFunc, Consumer<IterationData> publisher) {
+            return measure(measureFunc, MEASURED, publisher);
+        }
+        static public void measure(Runnable measureFunc, Consumer<IterationData> publisher) {
+            measure(measureFunc, MEASURED, publisher);
+        }
+        /**
+         * Measure and record time in histogram, published data gets histogram snapshot (all measures so far)
+         * from data.latency() - snapshot is taken only if publisher asks for it
+         * @param histogram latency recorder, null - no recording
+         */
+        static public <T> T measure(Supplier<T> measureFunc, Histogram histogram, Consumer<IterationData> publisher) {
             IterationTimer timer = new IterationTimer(100);
             T res = measureFunc.get();
-            publisher.accept(timer.getIterationData());
+            publisher.accept(timer.measured(histogram));
             return res;
         }
-        static public void measure(Runnable measureFunc, Consumer<IterationData> publisher) {
+        static public void measure(Runnable measureFunc, Histogram histogram, Consumer<IterationData> publisher) {
             IterationTimer timer = new IterationTimer(100);
             measureFunc.run();
-            publisher.accept(timer.getIterationData());
+            publisher.accept(timer.measured(histogram));
+        }
+        private IterationData measured(Histogram histogram) {
+            IterationData data = getIterationData();
+            if (histogram != null) {
+                histogram.record(data.run_nanosecond_time);
+                data.measuredLatency = histogram;
+            }
+            return data;
+        }
+    }
+
+    /**
+     * <pre>
+     * IterationTimer counting bytes too: exponentially smoothed items / bytes rates and ETA of known total
+     * Rates are smoothed at publish: rate += (1 - exp(-period / smoothing)) * (period rate - rate)
+     * Timer.ThroughputTimer timer = new Timer.ThroughputTimer(10., 0, Files.size(input));
+     * while ((n = in.read(buf)) &gt; 0) {
+     *     timer.printIter(1, n, count -&gt; LOG.info(count.throughput() + " " + count.eta()));
+     * }
+     * Existing printIter(items, publisher) call sites work as is (no bytes), publisher can use throughput() / eta()
+     * </pre>
+     */
+    public static class ThroughputTimer extends IterationTimer {
+        long currentBytes, publishBytes;
+        final long totalItems, totalBytes;
+        double smoothingSec = 30;
+        // smoothed rates per second, negative - no publish yet
+        double itemsRate = -1, bytesRate = -1;
+
+        /**
+         * @param totalItems expected items for ETA, 0 - unknown
+         * @param totalBytes expected bytes for ETA (used if known), 0 - unknown
+         */
+        public ThroughputTimer(double publishTimeStepInSec, long totalItems, long totalBytes) {
+            this(publishTimeStepInSec, totalItems, totalBytes, TimeSource.SYSTEM);
+        }
+
+        public ThroughputTimer(double publishTimeStepInSec, long totalItems, long totalBytes, TimeSource clock) {
+            super(publishTimeStepInSec, clock);
+            this.totalItems = totalItems;
+            this.totalBytes = totalBytes;
+        }
+
+        /**
+         * @param seconds rate smoothing time constant, default 30 seconds
+         */
+        public ThroughputTimer smoothing(double seconds) {
+            this.smoothingSec = seconds;
+            return this;
+        }
+
+        public void printIter(int iterationDone, long bytesDone, Consumer<IterationData> publisher) {
+            currentBytes += bytesDone;
+            printIter(iterationDone, publisher);
+        }
+
+        @Override
+        public void printIter(int iterationDone, String message) {
+            printIter(iterationDone, x -> LOG.info(message + " " + x.throughput() + " " + x.eta()));
+        }
+
+        public ThroughputTimer addBytes(long add) {
+            currentBytes += add;
+            return this;
+        }
+
+        @Override
+        public IterationData getIterationData(long curTime) {
+            IterationData data = super.getIterationData(curTime);
+            data.bytes_count = currentBytes - publishBytes;
+            data.run_bytes = currentBytes;
+            data.total_count = totalItems;
+            data.total_bytes = totalBytes;
+            data.items_per_second = Math.max(itemsRate, 0);
+            data.bytes_per_second = Math.max(bytesRate, 0);
+            return data;
+        }
+
+        @Override
+        void onPublish(IterationData data) {
+            double period = data.iteration_nanosecond_time / 1e9;
+            if (period > 0) {
+                double items = data.iteration_count / period, bytes = data.bytes_count / period;
+                double alpha = itemsRate < 0 ? 1 : 1 - Math.exp(-period / smoothingSec);
+                itemsRate = itemsRate < 0 ? items : itemsRate + alpha * (items - itemsRate);
+                bytesRate = bytesRate < 0 ? bytes : bytesRate + alpha * (bytes - bytesRate);
+                data.items_per_second = itemsRate;
+                data.bytes_per_second = bytesRate;
+            }
+            publishBytes = currentBytes;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            // called by super constructor too - rates are set by their initializers after it
+            currentBytes = publishBytes = 0;
+            itemsRate = bytesRate = -1;
+        }
+    }
+
+    /**
+     * Allocation / GC counters: allocated bytes of the sampling thread, collections and their time of all collectors
+     */
+    static class GcSample implements Serializable {
+        static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+        final long threadId, allocatedBytes, gcCount, gcMillis;
+
+        GcSample(long threadId, long allocatedBytes, long gcCount, long gcMillis) {
+            this.threadId = threadId;
+            this.allocatedBytes = allocatedBytes;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        static GcSample take() {
+            long count = 0, millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                // pauses only: G1 Concurrent GC, ZGC / Shenandoah Cycles beans count work done beside the application
+                if (isConcurrent(gc.getName())) continue;
+                count += Math.max(gc.getCollectionCount(), 0);
+                millis += Math.max(gc.getCollectionTime(), 0);
+            }
+            long allocated = THREADS instanceof ThreadMXBean threads && threads.isThreadAllocatedMemoryEnabled() ?
+                    threads.getCurrentThreadAllocatedBytes() : -1;
+            return new GcSample(Thread.currentThread().threadId(), allocated, count, millis);
+        }
+
+        static boolean isConcurrent(String collector) {
+            return collector.contains("Concurrent") || collector.contains("Cycles");
+        }
+
+        /**
+         * Take new sample, set data allocation / GC fields to the difference from this one
+         * @return new sample
+         */
+        GcSample next(IterationData data) {
+            GcSample now = take();
+            // allocations of another thread are not comparable
+            data.allocated_bytes = now.threadId == threadId && allocatedBytes >= 0 && now.allocatedBytes >= 0 ?
+                    now.allocatedBytes - allocatedBytes : -1;
+            data.gc_count = now.gcCount - gcCount;
+            data.gc_nanosecond_time = TimeUnit.MILLISECONDS.toNanos(now.gcMillis - gcMillis);
+            return now;
+        }
+    }
+
+    static void recordPublish(IterationData data) {
+        Jfr.TimerPublish event = new Jfr.TimerPublish();
+        if (event.shouldCommit()) {
+            event.iterationCount = data.iteration_count;
+            event.iterationNanos = data.iteration_nanosecond_time;
+            event.runCount = data.run_count;
+            event.runNanos = data.run_nanosecond_time;
+            event.commit();
+        }
+    }
+
+    /**
+     * <pre>
+     * Thread safe IterationTimer: workers only add to striped counter (LongAdder) - no clock reads, no locks,
+     * record(nanos) also keeps latency histogram,
+     * publisher is called every publish time step by background scheduler (TimeSource.schedule)
+     * </pre>
+     */
+    public static class ConcurrentIterationTimer implements AutoCloseable {
+        final LongAdder currentIter = new LongAdder();
+        final Histogram latency = new Histogram();
+        Histogram.Snapshot totalLatency = Histogram.Snapshot.empty();
+        final long publishTimeStep;
+        final Consumer<IterationData> publisher;
+        final TimeSource clock;
+        // publisher runs outside of the timer lock and off the shared scheduler thread, in publish order
+        final Executor publishExecutor;
+        CompletableFuture<Void> lastPublish = CompletableFuture.completedFuture(null);
+        long startTime, publishTime, publishIter;
+        ScheduledFuture<?> nextPublish;
+        boolean closed = false;
+
+        public ConcurrentIterationTimer(double publishTimeStepInSec, Consumer<IterationData> publisher) {
+            this(publishTimeStepInSec, publisher, TimeSource.SYSTEM);
+        }
+
+        /**
+         * @param publisher called in publish order by JTryAsync.defaultExecutor() (by the thread advancing the clock
+         *                  for other time sources, e.g. VirtualTimeSource)
+         * @param clock     time source of measurements and publishing
+         */
+        public ConcurrentIterationTimer(double publishTimeStepInSec, Consumer<IterationData> publisher, TimeSource clock) {
+            this.publishTimeStep = Math.max((long) (publishTimeStepInSec * 1e9), 1);
+            this.publisher = publisher;
+            this.clock = clock;
+            this.publishExecutor = clock == TimeSource.SYSTEM ? JTryAsync.defaultExecutor() : Runnable::run;
+            this.startTime = this.publishTime = clock.nanoTime();
+            this.publishIter = 0;
+            this.nextPublish = clock.schedule(this::publish, publishTimeStep);
+        }
+
+        public void increment() {
+            currentIter.increment();
+        }
+
+        public ConcurrentIterationTimer addIterations(long add) {
+            currentIter.add(add);
+            return this;
+        }
+
+        /**
+         * Count iteration and record its latency: published data gets latency histogram of the period
+         */
+        public void record(long nanos) {
+            currentIter.increment();
+            latency.record(nanos);
+        }
+
+        synchronized void publish() {
+            if (closed) return;
+            long curTime = clock.nanoTime();
+            IterationData data = getIterationData(curTime);
+            Histogram.Snapshot interval = latency.intervalSnapshot();
+            totalLatency = totalLatency.merge(interval);
+            if (totalLatency.count > 0) data.latency = interval;
+            recordPublish(data);
+            publishIter = data.run_count;
+            publishTime = curTime;
+            nextPublish = clock.schedule(this::publish, publishTimeStep);
+            // publisher failure must not stop publishing
+            lastPublish = lastPublish.thenRunAsync(() -> JTry.of(() -> publisher.accept(data))
+                    .processException(e -> LOG.warn("Timer publisher failed", e)), publishExecutor);
+        }
+
+        public synchronized IterationData getIterationData() {
+            return getIterationData(clock.nanoTime());
+        }
+
+        synchronized IterationData getIterationData(long curTime) {
+            long count = currentIter.sum();
+            return new IterationData(curTime - publishTime, count - publishIter, curTime - startTime, count);
+        }
+
+        /**
+         * Stop publishing, wait for publishes in flight, publish overall statistics (latency histogram of the whole run)
+         */
+        public void printLast(Consumer<IterationData> publisher) {
+            close();
+            CompletableFuture<Void> inFlight;
+            synchronized (this) {
+                inFlight = lastPublish;
+            }
+            inFlight.join();
+            IterationData data = getIterationData();
+            Histogram.Snapshot all = latencySnapshot();
+            if (all.count > 0) data.latency = all;
+            publisher.accept(data);
+        }
+
+        /**
+         * @return latency histogram of the whole run (locks out publish only, record is not blocked)
+         */
+        synchronized Histogram.Snapshot latencySnapshot() {
+            return totalLatency.merge(latency.snapshot());
+        }
+
+        /**
+         * Stop publishing, publish in flight can still reach the publisher (printLast waits for it)
+         */
+        @Override
+        public synchronized void close() {
+            closed = true;
+            nextPublish.cancel(false);
+        }
+    }
+
+    /**
+     * <pre>
+     * Log bucketed latency histogram: values below 64 are exact, above that every power of 2 is split into
+     * 64 buckets (relative error below 1.6%), nanoseconds up to Long.MAX_VALUE fit into 3712 buckets
+     * record is lock free (one atomic increment per bucket + striped sum), snapshots are mergeable,
+     * intervalSnapshot resets the histogram - every record goes into exactly one interval
+     * </pre>
+     */
+    public static class Histogram {
+        static final int SUB_BITS = 6, SUB = 1 << SUB_BITS, BUCKETS = SUB * (64 - SUB_BITS);
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final LongAdder sum = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+
+        static int index(long value) {
+            if (value < SUB) return (int) Math.max(value, 0);
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return SUB * (shift + 1) + (int) (value >>> shift) - SUB;
+        }
+
+        /**
+         * @return the highest value of the bucket
+         */
+        static long highest(int index) {
+            if (index < SUB) return index;
+            int shift = index / SUB - 1;
+            long lowest = (long) (SUB + index % SUB) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        public void record(long nanos) {
+            counts.incrementAndGet(index(nanos));
+            sum.add(nanos);
+            if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+        }
+
+        /**
+         * @return all values recorded since the last reset
+         */
+        public Snapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) copy[i] = counts.get(i);
+            return new Snapshot(copy, sum.sum(), max.get());
+        }
+
+        /**
+         * @return values recorded since the last interval snapshot (or reset), histogram is reset
+         */
+        public Snapshot intervalSnapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) if (counts.get(i) != 0) copy[i] = counts.getAndSet(i, 0);
+            return new Snapshot(copy, sum.sumThenReset(), max.getAndSet(0));
+        }
+
+        public void reset() {
+            intervalSnapshot();
+        }
+
+        /**
+         * Immutable histogram state
+         */
+        public static class Snapshot implements Serializable {
+            final long[] counts;
+            public final long count, sum, max;
+
+            Snapshot(long[] counts, long sum, long max) {
+                this.counts = counts;
+                this.count = Arrays.stream(counts).sum();
+                this.sum = sum;
+                this.max = max;
+            }
+
+            public static Snapshot empty() {
+                return new Snapshot(new long[BUCKETS], 0, 0);
+            }
+
+            public Snapshot merge(Snapshot other) {
+                long[] merged = counts.clone();
+                for (int i = 0; i < BUCKETS; i++) merged[i] += other.counts[i];
+                return new Snapshot(merged, sum + other.sum, Math.max(max, other.max));
+            }
+
+            /**
+             * @param percentile 0 - 100
+             * @return value at percentile (highest value of its bucket, not more than max), 0 if empty
+             */
+            public long percentile(double percentile) {
+                if (count == 0) return 0;
+                long rank = Math.max(1, (long) Math.ceil(percentile / 100. * count)), seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) return Math.min(highest(i), max);
+                }
+                return max;
+            }
+
+            /**
+             * @return number of values not above value (bucket precision: buckets are counted by their highest value)
+             */
+            public long countAtMost(long value) {
+                long res = 0;
+                for (int i = 0; i < BUCKETS && highest(i) <= value; i++) res += counts[i];
+                return res;
+            }
+
+            public long mean() {
+                return count == 0 ? 0 : sum / count;
+            }
+
+            @Override
+            public String toString() {
+                return "Count " + prettyNumber(count, 2) + " mean " + prettyTime(mean(), 2) +
+                        " p50 " + prettyTime(percentile(50), 2) + " p99 " + prettyTime(percentile(99), 2) +
+                        " p99.9 " + prettyTime(percentile(99.9), 2) + " max " + prettyTime(max, 2);
+            }
         }
     }
 
     public static class IterationData {
         public long iteration_nanosecond_time, iteration_count,
                 run_nanosecond_time, run_count;
+        /**
+         * Latency histogram of published period, null - not recorded (or not taken yet, see latency())
+         */
+        public Histogram.Snapshot latency;
+        // IterationTimer.measure: histogram of all measures, its snapshot is taken by latency() on demand
+        Histogram measuredLatency;
+        /**
+         * Expected run count for ETA, 0 - unknown
+         */
+        public long total_count;
+        /**
+         * Sum of measured iteration times (all threads / executors), 0 - not measured
+         */
+        public long busy_nanosecond_time;
+        /**
+         * Allocated bytes of the timer thread in the iteration period, -1 - not tracked (see IterationTimer.trackGc)
+         */
+        public long allocated_bytes = -1;
+        /**
+         * JVM stop the world collections and their pause time (ms precision) in the iteration period, gc_count -1 - not tracked
+         */
+        public long gc_count = -1, gc_nanosecond_time;
+        /**
+         * Bytes of the iteration period / of the run, expected run bytes for ETA (0 - unknown), see ThroughputTimer
+         */
+        public long bytes_count, run_bytes, total_bytes;
+        /**
+         * Smoothed rates per second, 0 - not known (average run speed is used)
+         */
+        public double items_per_second, bytes_per_second;
 
         public IterationData(long iteration_nanosecond_time, long iteration_count, long run_nanosecond_time, long run_count) {
             this.iteration_nanosecond_time = iteration_nanosecond_time;
@@ -111,6 +615,63 @@ public class Timer {
             return "ItCount " + prettyNumber(iteration_count, 2) + " in " + prettyTime(iteration_nanosecond_time, 2);
         }
 
+        /**
+         * @return time left for total bytes (if known) or total count at smoothed rate (average run speed if unknown),
+         * empty if totals are unknown
+         */
+        public String eta() {
+            if (total_bytes > 0 && run_bytes > 0) return eta(run_bytes, total_bytes, bytes_per_second);
+            if (total_count > 0 && run_count > 0) return eta(run_count, total_count, items_per_second);
+            return "";
+        }
+
+        private String eta(long done, long total, double rate) {
+            double perSec = rate > 0 ? rate : 1e9 * done / Math.max(run_nanosecond_time, 1);
+            double left = Math.max(total - done, 0) / perSec * 1e9;
+            return "ETA " + prettyTime((long) left, 2) + " done " + String.format("%.1f%%", 100. * done / total);
+        }
+
+        /**
+         * @return smoothed items / bytes speed and run bytes (average run speed if not smoothed)
+         */
+        public String throughput() {
+            double seconds = Math.max(run_nanosecond_time, 1) / 1e9;
+            double items = items_per_second > 0 ? items_per_second : run_count / seconds;
+            double bytes = bytes_per_second > 0 ? bytes_per_second : run_bytes / seconds;
+            return "I/s " + String.format("%3.2e", items) + " " + prettyBytes((long) bytes) + "/s RunBytes " +
+                    prettyBytes(run_bytes);
+        }
+
+        /**
+         * @return average number of busy threads: busy time / run time
+         */
+        public String busyThreads() {
+            return "Busy threads " + String.format("%.2f", (double) busy_nanosecond_time / Math.max(run_nanosecond_time, 1));
+        }
+
+        /**
+         * @return allocation per iteration (if known), GC count, GC time share of the iteration period, empty if not tracked
+         */
+        public String gcStats() {
+            if (gc_count < 0) return "";
+            return (allocated_bytes < 0 ? "" : "Alloc/I " + prettyBytes(allocated_bytes / Math.max(iteration_count, 1)) + " ") +
+                    "GC " + gc_count +
+                    " " + String.format("%.1f%%", 100. * gc_nanosecond_time / Math.max(iteration_nanosecond_time, 1)) +
+                    " " + prettyTime(gc_nanosecond_time, 2);
+        }
+
+        /**
+         * @return latency histogram of published period or of all measures (IterationTimer.measure), null - not recorded
+         */
+        public Histogram.Snapshot latency() {
+            if (latency == null && measuredLatency != null) latency = measuredLatency.snapshot();
+            return latency;
+        }
+
+        public String latencyPercentiles() {
+            return latency() == null ? "" : "Latency " + latency;
+        }
+
         public String iterSpeed() {
             double iPerSec = 1e9 * Math.max(iteration_count, 1) / iteration_nanosecond_time;
             return "I/s " + String.format("%3.2e", iPerSec) + " s/I " + prettyTime(((Double) (1e9 / iPerSec)).longValue(), 2);
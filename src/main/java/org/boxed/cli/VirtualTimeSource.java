@@ -0,0 +1,123 @@
+package org.boxed.cli;
+
+import java.time.Duration;
+import java.util.PriorityQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.boxed.cli.PrettyNumberFormater.prettyTime;
+
+/**
+ * <pre>
+ * Virtual time for deterministic tests: time stands still until sleep / advance moves it
+ * advance runs scheduled tasks in time order on the calling thread, clock shows task time while it runs
+ * sleep advances the clock by itself - retry delays, backoff and progress steps take no real time
+ * Usage:
+ * VirtualTimeSource clock = new VirtualTimeSource();
+ * CompletableFuture&lt;T&gt; res = RetryJob.retryJobAsync(job, Duration.ofSeconds(10), clock);
+ * clock.advance(Duration.ofSeconds(1));   // runs retries due within the second
+ * </pre>
+ */
+public class VirtualTimeSource extends TimeSource {
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long now, sequence;
+
+    public VirtualTimeSource() {
+        this(0);
+    }
+
+    /**
+     * @param startNanos initial clock value
+     */
+    public VirtualTimeSource(long startNanos) {
+        this.now = startNanos;
+    }
+
+    @Override
+    public synchronized long nanoTime() {
+        return now;
+    }
+
+    /**
+     * Sleeping thread moves the clock itself (running tasks due meanwhile)
+     */
+    @Override
+    public void sleep(long nanos) {
+        advance(Math.max(nanos, 0));
+    }
+
+    @Override
+    public synchronized ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+        Task scheduled = new Task(task, now + Math.max(delayNanos, 0), sequence++);
+        tasks.add(scheduled);
+        return scheduled;
+    }
+
+    public void advance(Duration duration) {
+        advance(duration.toNanos());
+    }
+
+    /**
+     * Move the clock forward by nanos, run tasks due by then in time (then scheduling) order,
+     * tasks run outside of the lock - they can read the clock and schedule new tasks
+     */
+    public void advance(long nanos) {
+        long target;
+        synchronized (this) {
+            target = now + nanos;
+        }
+        while (true) {
+            Task next;
+            synchronized (this) {
+                next = tasks.peek();
+                if (next == null || next.time - target > 0) {
+                    if (target - now > 0) now = target;
+                    return;
+                }
+                tasks.poll();
+                if (next.time - now > 0) now = next.time;
+            }
+            next.run();
+        }
+    }
+
+    /**
+     * @return number of scheduled, not cancelled tasks
+     */
+    public synchronized int pending() {
+        tasks.removeIf(Task::isCancelled);
+        return tasks.size();
+    }
+
+    @Override
+    public String toString() {
+        return "Virtual time " + prettyTime(nanoTime(), 2);
+    }
+
+    class Task extends FutureTask<Void> implements ScheduledFuture<Void> {
+        final long time, order;
+
+        Task(Runnable task, long time, long order) {
+            super(task, null);
+            this.time = time;
+            this.order = order;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other instanceof Task) {
+                Task task = (Task) other;
+                int res = Long.compare(time, task.time);
+                return res != 0 ? res : Long.compare(order, task.order);
+            }
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.google.gson.annotations.Expose;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.boxed.cli.JTry;
+import org.boxed.cli.Jfr;
 
 import java.io.File;
 import java.lang.reflect.Type;
@@ -118,9 +119,13 @@ public class Box {
    * @return  build object
    */
   public static <T> T str2Box(String str, Class<T> classOf, Boolean logCreation) {
-    T ret = JTry.of(() ->
+    Jfr.Parse event = JsonTools.parseEvent("Box.str2Box", str);
+    JTry<T> parsed = JTry.of(() ->
       getGsonBuilder().create().fromJson(sdPatternDecode(str), classOf)
-    ).recover((Throwable e) -> {
+    );
+    event.ok = parsed.isOk();
+    event.commit();
+    T ret = parsed.recover((Throwable e) -> {
       throw new RuntimeException("Failed parsing json: <" + str + "> exception:\n", e);
     }).getOrThrow();
     T rett = ret;
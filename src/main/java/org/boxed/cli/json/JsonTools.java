@@ -12,6 +12,7 @@ import com.google.common.collect.Sets;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.boxed.cli.ExceptionHandler;
+import org.boxed.cli.Jfr;
 import org.boxed.cli.JTry;
 
 import java.lang.reflect.Field;
@@ -55,7 +56,24 @@ public class JsonTools {
    */
   //Get object from string
   public static <T> T str2Obj(String data) {
-    return JTry.<T>of(() -> OBJECT_READER.readValue(data)).getOrThrow();
+    Jfr.Parse event = parseEvent("JsonTools.str2Obj", data);
+    JTry<T> res = JTry.of(() -> OBJECT_READER.readValue(data));
+    event.ok = res.isOk();
+    event.commit();
+    return res.getOrThrow();
+  }
+
+  /**
+   * @param parser parser name
+   * @param data   string to parse
+   * @return started Jfr.Parse event, to be committed by the parser
+   */
+  static Jfr.Parse parseEvent(String parser, String data) {
+    Jfr.Parse event = new Jfr.Parse();
+    event.parser = parser;
+    event.length = data == null ? 0 : data.length();
+    event.begin();
+    return event;
   }
 
   /** Similar to @obj2Str - with pretty format of json string
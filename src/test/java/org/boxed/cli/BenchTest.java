@@ -0,0 +1,30 @@
+package org.boxed.cli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.boxed.cli.SupLog.setDebugTest;
+
+public class BenchTest extends BaseTest {
+
+    @Test
+    public void benchTest() {
+        setDebugTest("WARN");
+        Bench.Result res = Bench.bench(CliTest.CliApp::new, new String[]{"-i", "bench", "-n", "3"}, 5, 20);
+        LOG.warn("Bench result:\n" + res);
+        Assert.assertEquals("All measured iterations counted", 20, res.latencies.size());
+        Assert.assertEquals("Task arguments parsed for every instance", "bench", CliTest.appInput);
+        Assert.assertTrue("Percentiles are ordered", res.percentile(50) <= res.percentile(99));
+        Assert.assertTrue("Percentiles are ordered", res.percentile(99) <= res.max());
+        Assert.assertTrue("Throughput is positive", res.throughputConfidence()[0] > 0);
+    }
+
+    @Test
+    public void benchCliTest() {
+        setDebugTest("WARN");
+        Assert.assertTrue("Bench command line have to work", Cli.mainRunInternal(new String[]{
+                "-c", CliTest.CliApp.class.getName(), "-w", "1", "-m", "3", "--", "-i", "cli", "-o"}, new Bench.BenchCli()));
+        Assert.assertEquals("Task arguments after -- passed to the task", "cli", CliTest.appInput);
+        Assert.assertTrue("Task arguments after -- passed to the task", CliTest.appOption);
+    }
+}
@@ -0,0 +1,81 @@
+package org.boxed.cli;
+
+import com.google.gson.annotations.Expose;
+import org.boxed.cli.json.Box;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kohsuke.args4j.Option;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class CheckpointTest extends BaseTest {
+    static long itemsProcessed;
+    static long result;
+
+    public static class SumState extends Box {
+        @Expose
+        Long sum = 0L;
+
+        SumState copy() {
+            SumState res = new SumState();
+            res.sum = sum;
+            return res;
+        }
+    }
+
+    /**
+     * Sums numbers 0 until n, fails once at item failAt
+     */
+    public static class SumJob extends Checkpoint.CheckpointCli {
+        @Option(name = "-n")
+        long n = 100;
+        static long failAt = -1;
+
+        @Override
+        public void run(Checkpoint checkpoint) {
+            SumState restored = checkpoint.restore(SumState.class);
+            SumState state = restored == null ? new SumState() : restored;
+            Timer.IterationTimer timer = checkpoint.restoreTimer(new Timer.IterationTimer(10.));
+            // frozen clock: run time is the restored one only
+            Timer.IterationTimer frozen = checkpoint.restoreTimer(new Timer.IterationTimer(10., new VirtualTimeSource()));
+            for (long i = checkpoint.restoredItems(); i < n; i++) {
+                if (i == failAt) {
+                    failAt = -1;
+                    throw new RuntimeException("Job failed at " + i);
+                }
+                state.sum += i;
+                itemsProcessed++;
+                timer.addIterations(1);
+                checkpoint.maybeSave(i + 1, state::copy);
+            }
+            Timer.IterationData data = timer.getIterationData();
+            Assert.assertEquals("Timer counts restored items", n, data.run_count);
+            Assert.assertEquals("Timer counts restored run time", checkpoint.restoredRunNanos(),
+                    frozen.getIterationData().run_nanosecond_time);
+            if (checkpoint.restoredItems() > 0) Assert.assertTrue(checkpoint.restoredRunNanos() > 0);
+            result = state.sum;
+        }
+    }
+
+    @Test
+    public void resumeTest() throws Exception {
+        Path dir = Files.createTempDirectory("checkpoint_test");
+        String[] args = {"-n", "100", "--checkpoint-dir", dir.toString(), "--checkpoint-items", "10"};
+        SumJob.failAt = 65;
+        itemsProcessed = 0;
+        testMethodFailure(() -> Cli.mainRunInternal(args, new SumJob()), "First run have to fail");
+        Assert.assertEquals(65, itemsProcessed);
+        Assert.assertEquals("Checkpoint saved", 1, dir.toFile().list().length);
+
+        itemsProcessed = 0;
+        Assert.assertTrue(Cli.mainRunInternal(args, new SumJob()));
+        Assert.assertEquals("Second run resumes from the last checkpoint", 40, itemsProcessed);
+        Assert.assertEquals(4950L, result);
+        Assert.assertEquals("Checkpoint removed after success", 0, dir.toFile().list().length);
+
+        itemsProcessed = 0;
+        Assert.assertTrue(Cli.mainRunInternal(args, new SumJob()));
+        Assert.assertEquals("Completed job starts from scratch", 100, itemsProcessed);
+    }
+}
@@ -0,0 +1,108 @@
+package org.boxed.cli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.boxed.cli.RetryJob.retryJob;
+import static org.boxed.cli.RetryJob.timeLimitedJob;
+
+public class CircuitBreakerTest extends BaseTest {
+    Callable<Integer> failing(AtomicInteger calls) {
+        return () -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("backend down");
+        };
+    }
+
+    @Test
+    public void testBreakerStates() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 10, 4, 0.5, Duration.ofMillis(50), 2);
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < 4; i++) Assert.assertEquals(1, (int) breaker.call(() -> 1));
+        for (int i = 0; i < 4; i++) Assert.assertFalse(JTry.of(() -> breaker.call(failing(calls))).isOk());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertTrue(JTry.of(() -> breaker.call(() -> 1)).throwable.get() instanceof CircuitBreaker.OpenException);
+        Assert.assertEquals(4, calls.get());
+        Assert.assertEquals(1, breaker.getRejected());
+
+        Thread.sleep(60);
+        // failed probe - open again
+        Assert.assertFalse(JTry.of(() -> breaker.call(failing(calls))).isOk());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(60);
+        Assert.assertEquals(1, (int) breaker.call(() -> 1));
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertEquals(1, (int) breaker.call(() -> 1));
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertEquals(2, breaker.getOpened());
+        LOG.info(breaker.metrics());
+    }
+
+    @Test
+    public void testProbePermits() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test-probes", 10, 2, 0.5, Duration.ofMillis(50), 2);
+        long closedPermit = breaker.tryAcquire();
+        Assert.assertTrue(closedPermit >= 0);
+        for (int i = 0; i < 2; i++) Assert.assertFalse(JTry.of(() -> breaker.call(failing(new AtomicInteger()))).isOk());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(60);
+        long probe = breaker.tryAcquire(), probe2 = breaker.tryAcquire();
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertTrue(probe >= 0 && probe2 >= 0);
+        for (int i = 0; i < 100; i++) Assert.assertEquals(-1, breaker.tryAcquire());
+        Assert.assertEquals("Rejected calls do not take probes", 0, breaker.probesLeft.get());
+        breaker.onFailure(closedPermit);
+        Assert.assertEquals("Call permitted while CLOSED is not a probe", CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess(probe);
+        breaker.onSuccess(probe2);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testRetryBudget() {
+        RetryBudget budget = new RetryBudget("test", 0.5, 2);
+        Assert.assertTrue(budget.tryRetry());
+        Assert.assertTrue(budget.tryRetry());
+        Assert.assertFalse(budget.tryRetry());
+        budget.onCall();
+        budget.onCall();
+        Assert.assertTrue(budget.tryRetry());
+        Assert.assertFalse(budget.tryRetry());
+        Assert.assertEquals(2, budget.getExhausted());
+        LOG.info(budget.metrics());
+    }
+
+    @Test
+    public void testRetryJobGuarded() {
+        AtomicInteger calls = new AtomicInteger();
+        RetryBudget budget = new RetryBudget("test-retry", 0.1, 1);
+        // 3 attempts allowed by retry settings, budget allows one retry
+        Assert.assertFalse(retryJob(failing(calls), Duration.ofSeconds(1), new RetryJob.Guards().budget(budget)).isOk());
+        Assert.assertEquals(2, calls.get());
+        calls.set(0);
+        Assert.assertFalse(retryJob(failing(calls), Duration.ofSeconds(1), new RetryJob.Guards().budget(budget)).isOk());
+        Assert.assertEquals(1, calls.get());
+
+        CircuitBreaker breaker = new CircuitBreaker("test-retry", 10, 2, 0.5, Duration.ofSeconds(10), 1);
+        calls.set(0);
+        Assert.assertFalse(retryJob(failing(calls), Duration.ofSeconds(1), new RetryJob.Guards().breaker(breaker)).isOk());
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(timeLimitedJob(() -> 1, Duration.ofSeconds(1), breaker).isOk());
+        Assert.assertEquals(1, (int) retryJob(() -> 1, Duration.ofSeconds(1), new RetryJob.Guards().budget(budget)).getOrThrow());
+        Assert.assertEquals("No guards", 2, (int) retryJob(() -> 2, Duration.ofSeconds(1), null).getOrThrow());
+
+        // shed by concurrency limiter is rejected before the breaker - not counted as breaker failure
+        CircuitBreaker counting = new CircuitBreaker("test-shed", 10, 1, 0.5, Duration.ofSeconds(10), 1);
+        ConcurrencyLimiter full = new ConcurrencyLimiter(1, 1, 1, 0, 2, 0.9);
+        ConcurrencyLimiter.Permit permit = full.acquire().join();
+        Assert.assertFalse(retryJob(() -> 1, Duration.ofSeconds(1),
+                new RetryJob.Guards().breaker(counting).concurrencyLimiter(full)).isOk());
+        permit.release(true);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, counting.getState());
+    }
+}
@@ -10,6 +10,7 @@ import org.kohsuke.args4j.spi.SubCommand;
 import org.kohsuke.args4j.spi.SubCommandHandler;
 import org.kohsuke.args4j.spi.SubCommands;
 
+import java.io.File;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -64,6 +65,16 @@ public class CliTest extends BaseTest {
 
 
 
+    @Test
+    public void jfrRun() throws Exception {
+        File jfr = File.createTempFile("cli_test", ".jfr");
+        jfr.deleteOnExit();
+        AssertRun("-i jfr --jfr " + jfr.getAbsolutePath(), "jfr", 10, false);
+        String summary = Jfr.summary(jfr.toPath(), 10);
+        LOG.info(summary);
+        assertTrue("Run phase have to be recorded", summary.contains("org.boxed.cli.CliPhase"));
+    }
+
     public static class CliMulti extends Cli.MultiTaskBasic {
 
 
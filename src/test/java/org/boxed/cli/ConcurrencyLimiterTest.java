@@ -0,0 +1,135 @@
+package org.boxed.cli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.boxed.cli.RetryJob.retryJob;
+import static org.boxed.cli.RetryJob.retryJobAsync;
+
+public class ConcurrencyLimiterTest extends BaseTest {
+    /**
+     * Simulated backend with capacity jobs at once: latency grows quadratically with overload,
+     * job slower than deadlineMs is failed by the (simulated) client timeout
+     */
+    static class Backend {
+        final int capacity, baseMs, deadlineMs;
+        final AtomicInteger running = new AtomicInteger();
+
+        Backend(int capacity, int baseMs, int deadlineMs) {
+            this.capacity = capacity;
+            this.baseMs = baseMs;
+            this.deadlineMs = deadlineMs;
+        }
+
+        Callable<Integer> job() {
+            return () -> {
+                int n = running.incrementAndGet();
+                try {
+                    double overload = Math.max(1., n / (double) capacity);
+                    long latency = (long) (baseMs * overload * overload);
+                    Thread.sleep(Math.min(latency, deadlineMs));
+                    if (latency > deadlineMs) throw new IllegalStateException("Timeout, latency " + latency);
+                    return n;
+                } finally {
+                    running.decrementAndGet();
+                }
+            };
+        }
+    }
+
+    /**
+     * @return number of successful jobs done by clients in runMs
+     */
+    long goodput(ConcurrencyLimiter limiter, int clients, long runMs) throws Exception {
+        Backend backend = new Backend(8, 5, 30);
+        LongAdder ok = new LongAdder();
+        long end = System.nanoTime() + runMs * 1000000;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        for (int i = 0; i < clients; i++) {
+            pool.execute(() -> {
+                while (System.nanoTime() < end) {
+                    if (JTry.of(() -> limiter.call(backend.job())).isOk()) ok.increment();
+                }
+            });
+        }
+        pool.shutdown();
+        Assert.assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        LOG.info("Goodput " + ok.sum() + " " + limiter.metrics());
+        return ok.sum();
+    }
+
+    @Test
+    public void testGoodputUnderOverload() throws Exception {
+        long fixed = goodput(new ConcurrencyLimiter(64, 64, 64, 64, 2, 0.9), 64, 1000);
+        long adaptive = goodput(ConcurrencyLimiter.create(1, 64, 64), 64, 1000);
+        Assert.assertTrue("Adaptive goodput " + adaptive + " fixed " + fixed, adaptive > 2 * fixed);
+    }
+
+    @Test
+    public void testShedAndRetry() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0, 2, 0.9);
+        ConcurrencyLimiter.Permit permit = limiter.acquire().get();
+        AtomicInteger calls = new AtomicInteger();
+        JTry<Integer> res = retryJob(calls::incrementAndGet, Duration.ofSeconds(1), new RetryJob.Guards().concurrencyLimiter(limiter));
+        Assert.assertFalse(res.isOk());
+        Assert.assertEquals(0, calls.get());
+        Assert.assertEquals(1, limiter.getShed());
+        permit.release(true);
+        Assert.assertEquals(1, (int) retryJob(calls::incrementAndGet, Duration.ofSeconds(1), new RetryJob.Guards().concurrencyLimiter(limiter)).getOrThrow());
+
+        ConcurrencyLimiter queued = new ConcurrencyLimiter(1, 1, 1, 10, 2, 0.9);
+        permit = queued.acquire().get();
+        List<CompletableFuture<Integer>> async = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            async.add(retryJobAsync(() -> CompletableFuture.completedFuture(calls.incrementAndGet()),
+                    Duration.ofSeconds(1), queued));
+        Assert.assertEquals(1, calls.get());
+        permit.release(true);
+        for (CompletableFuture<Integer> x : async) Assert.assertTrue(x.get() > 1);
+        Assert.assertEquals(0, queued.getInFlight());
+    }
+
+    @Test
+    public void testAsyncCancelAndShed() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 1, 2, 0.9);
+        ConcurrencyLimiter.Permit permit = limiter.acquire().get();
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<Integer> cancelled = limiter.callAsync(() -> CompletableFuture.completedFuture(calls.incrementAndGet()));
+        cancelled.cancel(true);
+        Assert.assertTrue("Queue slot is freed", limiter.waiters.isEmpty());
+        CompletableFuture<Integer> queued = limiter.callAsync(() -> CompletableFuture.completedFuture(calls.incrementAndGet()));
+        Assert.assertEquals(0, limiter.getShed());
+        permit.release(true);
+        Assert.assertEquals("Cancelled job is not run", 1, (int) queued.get());
+        Assert.assertEquals(0, limiter.getInFlight());
+
+        // running job is cancelled with the returned future, its permit is released
+        CompletableFuture<Integer> hanging = new CompletableFuture<>();
+        limiter.callAsync(() -> hanging).cancel(true);
+        Assert.assertTrue(hanging.isCancelled());
+        Assert.assertEquals(0, limiter.getInFlight());
+
+        // shed async attempt is not retried
+        permit = limiter.acquire().get();
+        CompletableFuture<ConcurrencyLimiter.Permit> waiting = limiter.acquire();
+        CompletableFuture<Integer> shed = retryJobAsync(() -> CompletableFuture.completedFuture(1), Duration.ofSeconds(1),
+                limiter);
+        Assert.assertTrue(RetryJob.unwrapCompletion(JTry.of(() -> shed.get()).throwable.get())
+                instanceof ConcurrencyLimiter.LimitExceededException);
+        Assert.assertEquals(1, limiter.getShed());
+        permit.release(true);
+        waiting.get().release(true);
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,77 @@
+package org.boxed.cli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.boxed.cli.RetryJob.retryJob;
+import static org.boxed.cli.RetryJob.timeLimitedJob;
+
+public class DeadlineTest extends BaseTest {
+    @Test
+    @SuppressWarnings("try")
+    public void testScope() throws Exception {
+        Assert.assertNull(Deadline.current());
+        Deadline outer = Deadline.after(Duration.ofMillis(100));
+        try (Deadline.Scope s1 = outer.enter()) {
+            Assert.assertSame(outer, Deadline.current());
+            // looser nested deadline does not extend the scope
+            try (Deadline.Scope s2 = Deadline.after(Duration.ofSeconds(10)).enter()) {
+                Assert.assertSame(outer, Deadline.current());
+            }
+            Deadline inner = Deadline.after(Duration.ofMillis(10));
+            try (Deadline.Scope s2 = inner.enter()) {
+                Assert.assertSame(inner, Deadline.current());
+                // other threads see the scope only if it is passed explicitly
+                AtomicReference<Deadline> seen = new AtomicReference<>(inner);
+                Thread child = new Thread(() -> seen.set(Deadline.current()));
+                child.start();
+                child.join();
+                Assert.assertNull(seen.get());
+                child = new Thread(Deadline.wrap(() -> seen.set(Deadline.current())));
+                child.start();
+                child.join();
+                Assert.assertSame(inner, seen.get());
+                Assert.assertSame(inner, JTryAsync.of(Deadline::current).toFuture().get());
+                Assert.assertEquals(List.of(inner, inner), JTry.traverse(List.of(1, 2), x -> Deadline.current(), 2,
+                        JTryAsync.defaultExecutor(), false).getOrThrow());
+            }
+            Assert.assertSame(outer, Deadline.current());
+            // time limited job is limited by the scope and sees it
+            Assert.assertSame(outer, timeLimitedJob(Deadline::current, Duration.ofSeconds(10)).getOrThrow());
+            JTry<Object> timedOut = timeLimitedJob(() -> {
+                Thread.sleep(10000);
+                return null;
+            }, Duration.ofSeconds(10));
+            Assert.assertTrue(timedOut.throwable.get() instanceof TimeoutException);
+            Assert.assertTrue(outer.isExpired());
+        }
+        Assert.assertNull(Deadline.current());
+    }
+
+    @Test
+    public void testRetryJobDeadline() {
+        Assert.assertEquals(3, (int) retryJob(deadline -> 3, Duration.ofSeconds(1), Duration.ofMillis(1)).getOrThrow());
+        Assert.assertFalse(retryJob(deadline -> 3, Duration.ofMillis(10), Duration.ofMillis(20)).isOk());
+        AtomicInteger attempts = new AtomicInteger();
+        long start = System.nanoTime();
+        JTry<Integer> res = retryJob(deadline -> {
+            attempts.incrementAndGet();
+            Assert.assertSame(deadline, Deadline.current());
+            Assert.assertTrue(deadline.remainingNanos() <= 100000000);
+            Thread.sleep(40);
+            throw new IllegalStateException("attempt failed");
+        }, Duration.ofMillis(100), Duration.ofMillis(1));
+        long ms = (System.nanoTime() - start) / 1000000;
+        LOG.info("Deadline retries " + attempts.get() + " in " + ms + "ms " + res);
+        Assert.assertFalse(res.isOk());
+        // third 40ms attempt can't fit into 100ms - skipped
+        Assert.assertEquals(2, attempts.get());
+        Assert.assertTrue(ms < 100);
+    }
+}
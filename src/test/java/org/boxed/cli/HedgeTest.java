@@ -0,0 +1,76 @@
+package org.boxed.cli;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.boxed.cli.RetryJob.hedgedJob;
+import static org.boxed.cli.RetryJob.retryHedgedJob;
+
+public class HedgeTest extends BaseTest {
+    final TimeLimiter limiter = new TimeLimiter("test-hedge", 16, Duration.ofMillis(1), true);
+
+    @After
+    public void close() {
+        limiter.close();
+    }
+
+    /**
+     * Backend: attempt number n sleeps slowMs if n % slowEvery == 0, fastMs otherwise
+     */
+    Callable<Integer> backend(AtomicInteger attempts, int slowEvery, int slowMs, int fastMs) {
+        return () -> {
+            int n = attempts.getAndIncrement();
+            Thread.sleep(n % slowEvery == 0 ? slowMs : fastMs);
+            return n;
+        };
+    }
+
+    @Test
+    public void testFixedHedge() {
+        Hedge hedge = new Hedge(limiter, Duration.ofMillis(20), 0, null, 1., 1);
+        AtomicInteger attempts = new AtomicInteger();
+        long start = System.nanoTime();
+        // first attempt is slow, hedge is fast
+        Assert.assertEquals(1, (int) hedgedJob(backend(attempts, 2, 2000, 1), hedge, Duration.ofSeconds(5)).getOrThrow());
+        long ms = (System.nanoTime() - start) / 1000000;
+        LOG.info("Hedged call " + ms + "ms " + hedge.metrics());
+        Assert.assertTrue(ms >= 20 && ms < 1000);
+        Assert.assertEquals(1, hedge.getHedges());
+        Assert.assertEquals(1, hedge.getHedgeWins());
+        // fast call - no hedge
+        attempts.set(1);
+        Assert.assertEquals(1, (int) hedge.call(backend(attempts, 1000, 2000, 1), Duration.ofSeconds(5)).getOrThrow());
+        Assert.assertEquals(1, hedge.getHedges());
+        // failing call fails
+        Assert.assertFalse(hedge.call(() -> {
+            throw new IllegalStateException("backend down");
+        }, Duration.ofSeconds(1)).isOk());
+    }
+
+    @Test
+    public void testLoadCapAndAdaptiveDelay() {
+        Hedge hedge = new Hedge(limiter, null, 90, Duration.ofMillis(1), 0.1, 1);
+        AtomicInteger attempts = new AtomicInteger();
+        Callable<Integer> slow = backend(attempts, 1, 5, 5);
+        for (int i = 0; i < 200; i++) Assert.assertTrue(hedge.call(slow, Duration.ofSeconds(5)).isOk());
+        LOG.info(hedge.metrics());
+        Assert.assertTrue(hedge.getHedges() <= 20);
+        Assert.assertTrue("Adaptive delay follows latency", hedge.delayNanos() >= 4000000);
+    }
+
+    @Test
+    public void testRetryHedged() {
+        Hedge hedge = new Hedge(limiter, Duration.ofMillis(10), 0, null, 1., 1);
+        AtomicInteger calls = new AtomicInteger();
+        JTry<Integer> res = retryHedgedJob(() -> {
+            if (calls.incrementAndGet() == 1) throw new IllegalStateException("first call fails");
+            return 7;
+        }, hedge, Duration.ofSeconds(2));
+        Assert.assertEquals(7, (int) res.getOrThrow());
+    }
+}
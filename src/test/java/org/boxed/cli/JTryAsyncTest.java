@@ -0,0 +1,127 @@
+package org.boxed.cli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.boxed.cli.RetryJob.withResourceAsync;
+
+public class JTryAsyncTest extends BaseTest {
+    static long ms(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    @Test
+    public void testComposition() {
+        long start = System.nanoTime();
+        JTryAsync<Integer> a = JTryAsync.of(() -> {
+            Thread.sleep(200);
+            return 1;
+        });
+        JTryAsync<Integer> b = JTryAsync.of(() -> {
+            Thread.sleep(200);
+            return 2;
+        });
+        int sum = a.zip(b, Integer::sum).map(x -> x * 10).flatMap(x -> JTryAsync.of(() -> x + 1)).getOrThrow();
+        Assert.assertEquals(31, sum);
+        Assert.assertTrue("Steps overlap: " + ms(start), ms(start) < 380);
+
+        AtomicInteger processed = new AtomicInteger();
+        JTryAsync<Integer> failed = JTryAsync.<Integer>of(() -> {
+            throw new IllegalStateException("BAD");
+        }).map(x -> x + 1).processException(e -> processed.incrementAndGet());
+        Assert.assertTrue(failed.get().throwable.get() instanceof IllegalStateException);
+        Assert.assertEquals(5, (int) failed.getOrElse(5));
+        Assert.assertEquals(7, (int) failed.recover((Throwable e) -> e instanceof IllegalStateException ? 7 : 0)
+                .getOrThrow());
+        Assert.assertNull(failed.recover((Throwable e) -> {
+            LOG.info("Handled " + e);
+        }).getOrThrow());
+        Assert.assertEquals(1, processed.get());
+        Assert.assertEquals(JTry.success(3), JTryAsync.completed(JTry.success(3)).toJTry().join());
+    }
+
+    @Test
+    public void testTimeoutAndCancel() throws Exception {
+        VirtualTimeSource clock = new VirtualTimeSource();
+        CountDownLatch started = new CountDownLatch(1), interrupted = new CountDownLatch(1);
+        JTryAsync<Integer> slow = JTryAsync.of(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return 1;
+        });
+        JTryAsync<Integer> limited = slow.withTimeout(Duration.ofSeconds(1), clock);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        clock.advance(Duration.ofMillis(999));
+        Assert.assertFalse(limited.isDone());
+        clock.advance(Duration.ofMillis(1));
+        Assert.assertTrue(limited.get().throwable.get() instanceof TimeoutException);
+        Assert.assertTrue("Timed out job is interrupted", interrupted.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch mappedStarted = new CountDownLatch(1), mappedInterrupted = new CountDownLatch(1);
+        JTryAsync<Integer> source = JTryAsync.of(() -> {
+            mappedStarted.countDown();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                mappedInterrupted.countDown();
+                throw e;
+            }
+            return 1;
+        });
+        JTryAsync<Integer> other = JTryAsync.from(new CompletableFuture<>());
+        JTryAsync<Integer> mapped = source.map(x -> x + 1).recover((Throwable e) -> 0).zip(other, Integer::sum);
+        Assert.assertTrue(mappedStarted.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(mapped.cancel());
+        Assert.assertTrue("Cancel of a derived step interrupts the source job", mappedInterrupted.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(source.toFuture().isCancelled());
+        Assert.assertTrue("zip cancels both", other.toFuture().isCancelled());
+
+        JTryAsync<Integer> fast = JTryAsync.of(() -> 2).withTimeout(Duration.ofSeconds(1), clock);
+        Assert.assertEquals(2, (int) fast.getOrThrow());
+        Assert.assertEquals(0, clock.pending());
+    }
+
+    @Test
+    public void testRetryAndResource() {
+        AtomicInteger attempts = new AtomicInteger();
+        JTryAsync<Integer> retried = JTryAsync.retry(() -> attempts.incrementAndGet() < 3 ?
+                CompletableFuture.failedFuture(new IllegalStateException("not yet")) :
+                CompletableFuture.completedFuture(attempts.get()), Duration.ofSeconds(5));
+        Assert.assertEquals(3, (int) retried.getOrThrow());
+        attempts.set(0);
+        Assert.assertEquals(3, (int) JTryAsync.retry(() -> {
+            if (attempts.incrementAndGet() < 3) throw new IllegalStateException("not yet");
+            return attempts.get();
+        }, Duration.ofSeconds(5), JTryAsync.defaultExecutor()).getOrThrow());
+
+        AtomicBoolean closed = new AtomicBoolean();
+        CountDownLatch release = new CountDownLatch(1);
+        JTryAsync<String> res = withResourceAsync(() -> (AutoCloseable) () -> closed.set(true),
+                r -> JTryAsync.of(() -> {
+                    release.await();
+                    return "done";
+                }));
+        Assert.assertFalse("Resource is open while used", closed.get());
+        release.countDown();
+        Assert.assertEquals("done", res.getOrThrow());
+        Assert.assertTrue(closed.get());
+
+        JTryAsync<String> badClose = withResourceAsync(() -> (AutoCloseable) () -> {
+            throw new IllegalStateException("close failed");
+        }, r -> JTryAsync.of(() -> "done"));
+        Assert.assertTrue(badClose.get().throwable.get() instanceof IllegalStateException);
+    }
+}
@@ -4,7 +4,15 @@ import org.boxed.cli.json.JsonTools;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.boxed.cli.General.forceClc;
 import static org.boxed.cli.General.mapKV;
@@ -47,4 +55,138 @@ public class JTryTest extends BaseTest {
         Assert.assertNull(JsonTools.<String>getProperty(m2, "root1"));
         Assert.assertNull(JsonTools.<Integer>getProperty(m2, "root1"));
     }
-}
\ No newline at end of file
+
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    @Test
+    public void successFailureTest() {
+        JTry<Integer> ok = JTry.success(3);
+        JTry<Integer> failed = JTry.failure(new IllegalStateException("BAD"));
+        Assert.assertSame(ok, ok.recover(e -> 5));
+        Assert.assertSame(failed, failed.map(x -> x + 1));
+        Assert.assertEquals(Integer.valueOf(3), ok.var.get());
+        Assert.assertFalse(ok.throwable.isPresent());
+        Assert.assertTrue(failed.throwable.get() instanceof IllegalStateException);
+        Assert.assertFalse(JTry.of(() -> null).var.isPresent());
+        Assert.assertEquals(JTry.success(3), ok);
+        Assert.assertEquals(JTry.failure(new RuntimeException()), failed);
+        Assert.assertNotEquals(ok, failed);
+        Assert.assertEquals("value: null", JTry.success(null).toString());
+        Assert.assertTrue(ok.map(x -> x / (x - 3)).throwable.get() instanceof ArithmeticException);
+        Assert.assertTrue(failed.recover((Throwable e) -> {
+            throw new IllegalArgumentException(e);
+        }).throwable.get() instanceof IllegalArgumentException);
+        Assert.assertSame(JTry.success(null), JTry.of(() -> {}));
+        Assert.assertEquals("Source compatible constructors", ok, new JTry<>(() -> 3));
+        Assert.assertEquals(failed, new JTry<Integer>(new IllegalStateException("BAD")));
+    }
+
+    /**
+     * Success path map / recover cost, logged only - allocation depends on JIT escape analysis and warm up
+     */
+    @Test
+    public void allocationTest() {
+        JTry<Integer> ok = JTry.success(1);
+        int n = 1_000_000;
+        long sum = 0;
+        for (int warm = 0; warm < 3; warm++) {
+            long bytes = allocatedBytes(), start = System.nanoTime();
+            for (int i = 0; i < n; i++) sum += ok.recover(e -> 0).map(x -> x + 1).getOrThrow();
+            long time = System.nanoTime() - start;
+            bytes = allocatedBytes() - bytes;
+            LOG.info("Success map + recover: " + (double) bytes / n + " bytes/op " + (double) time / n + " ns/op");
+        }
+        Assert.assertEquals(6L * n, sum);
+    }
+
+    @Test
+    public void traverseTest() {
+        List<Integer> items = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+        Assert.assertEquals(items.stream().map(x -> x * 2).collect(Collectors.toList()),
+                JTry.traverse(items, x -> x * 2, 8).getOrThrow());
+        Assert.assertEquals(List.of(), JTry.traverse(List.<Integer>of(), x -> x, 8).getOrThrow());
+
+        JTry<List<Integer>> failed = JTry.traverse(items, x -> {
+            if (x % 10 == 3) throw new IllegalArgumentException("bad " + x);
+            return x;
+        }, 8);
+        Throwable e = failed.throwable.get();
+        Assert.assertEquals("bad 3", e.getMessage());
+        Assert.assertEquals(9, e.getSuppressed().length);
+
+        JTry.Partition<Integer, Integer> parts = JTry.partition(items, x -> {
+            if (x % 10 == 3) throw new IllegalArgumentException("bad " + x);
+            return x;
+        }, 8);
+        Assert.assertEquals(90, parts.successes.size());
+        Assert.assertEquals(Integer.valueOf(2), parts.successes.get(2));
+        Assert.assertEquals(Integer.valueOf(13), parts.failures.get(1).getKey());
+        Assert.assertEquals("bad 13", parts.failures.get(1).getValue().getMessage());
+
+        Assert.assertEquals(List.of(1, 2), JTry.sequence(List.of(JTry.success(1), JTry.success(2))).getOrThrow());
+        Assert.assertFalse(JTry.sequence(List.of(JTry.success(1), JTry.<Integer>failure(new RuntimeException())))
+                .isOk());
+    }
+
+    @Test
+    public void traverseShortCircuitTest() {
+        List<Integer> items = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+        AtomicInteger started = new AtomicInteger(), interrupted = new AtomicInteger(), finished = new AtomicInteger();
+        long start = System.nanoTime();
+        JTry<List<Integer>> res = JTry.traverse(items, x -> {
+            started.incrementAndGet();
+            if (x == 5) throw new IllegalStateException("stop");
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                interrupted.incrementAndGet();
+                throw e;
+            }
+            finished.incrementAndGet();
+            return x;
+        }, 4, JTryAsync.defaultExecutor(), true);
+        long ms = (System.nanoTime() - start) / 1000000;
+        LOG.info("Short circuit after " + started.get() + " items, interrupted " + interrupted.get() + " in " + ms + "ms");
+        Assert.assertEquals("stop", res.throwable.get().getMessage());
+        Assert.assertTrue(started.get() < 20);
+        Assert.assertTrue(interrupted.get() > 0);
+        Assert.assertEquals("Started items are done, interrupted or failed", started.get(),
+                finished.get() + interrupted.get() + 1);
+        Assert.assertFalse("Caller interrupt flag is cleared", Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void traverseKeepsCallerInterruptTest() {
+        List<Integer> items = IntStream.range(0, 10).boxed().collect(Collectors.toList());
+        for (int parallelism : new int[]{1, 4}) {
+            Thread.currentThread().interrupt();
+            JTry<List<Integer>> res = JTry.traverse(items, x -> {
+                if (x == 0) throw new IllegalStateException("stop");
+                return x;
+            }, parallelism, JTryAsync.defaultExecutor(), true);
+            Assert.assertEquals("stop", res.throwable.get().getMessage());
+            Assert.assertTrue("Interrupt set before the call is kept", Thread.interrupted());
+        }
+    }
+
+    @Test
+    public void nestedTraverseTest() throws Exception {
+        List<Integer> outer = IntStream.range(0, 8).boxed().collect(Collectors.toList());
+        List<Integer> inner = IntStream.range(0, 10).boxed().collect(Collectors.toList());
+        for (int threads : new int[]{1, 2}) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                // helpers queued behind busy pool threads must not be waited for
+                JTry<List<Integer>> res = CompletableFuture.supplyAsync(() -> JTry.traverse(outer, x ->
+                        JTry.traverse(inner, y -> x * y, 2, pool, false).getOrThrow().stream()
+                                .mapToInt(Integer::intValue).sum(), 4, pool, false), pool).get(10, TimeUnit.SECONDS);
+                Assert.assertEquals(IntStream.range(0, 8).map(x -> x * 45).boxed().collect(Collectors.toList()),
+                        res.getOrThrow());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+}
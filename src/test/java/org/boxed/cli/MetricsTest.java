@@ -0,0 +1,141 @@
+package org.boxed.cli;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.boxed.cli.RetryJob.retryJob;
+
+public class MetricsTest extends BaseTest {
+    @Test
+    public void exportFormatTest() {
+        Metrics metrics = new Metrics();
+        Metrics.Counter rows = metrics.counter("rows_total", "Rows processed", "table", "us\"ers");
+        rows.add(41);
+        metrics.counter("rows_total", "Rows processed", "table", "us\"ers").increment();
+        metrics.counter("rows_total", "Rows processed", "table", "orders");
+        metrics.gauge("queue_size", "Queue size", () -> 2.5);
+        Timer.Histogram latency = metrics.histogram("request_seconds", "Request latency");
+        latency.record(2_000_000);
+        latency.record(3_000_000_000L);
+        String text = metrics.scrape();
+        LOG.info(text);
+        Assert.assertTrue(text.contains("# TYPE rows_total counter\n"));
+        Assert.assertEquals("HELP / TYPE once per name", text.indexOf("# TYPE rows_total"),
+                text.lastIndexOf("# TYPE rows_total"));
+        Assert.assertTrue(text.contains("rows_total{table=\"us\\\"ers\"} 42\n"));
+        Assert.assertTrue(text.contains("rows_total{table=\"orders\"} 0\n"));
+        Assert.assertTrue(text.contains("queue_size 2.5\n"));
+        Assert.assertTrue(text.contains("request_seconds_bucket{le=\"0.001\"} 0\n"));
+        Assert.assertTrue(text.contains("request_seconds_bucket{le=\"0.0025\"} 1\n"));
+        Assert.assertTrue(text.contains("request_seconds_bucket{le=\"1\"} 1\n"));
+        Assert.assertTrue(text.contains("request_seconds_bucket{le=\"5\"} 2\n"));
+        Assert.assertTrue(text.contains("request_seconds_bucket{le=\"+Inf\"} 2\n"));
+        Assert.assertTrue(text.contains("request_seconds_count 2\n"));
+        Assert.assertTrue(text.contains("request_seconds_sum 3.002\n"));
+
+        Assert.assertTrue(JTry.of(() -> metrics.gauge("rows_total", "x", () -> 1, "table", "orders"))
+                .throwable.get() instanceof IllegalArgumentException);
+        Assert.assertTrue(JTry.of(() -> metrics.counter("bad-name", "x")).throwable.get() instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void familyGroupingTest() {
+        Metrics metrics = new Metrics();
+        metrics.counter("jobs_total", "Jobs").increment();
+        metrics.counter("jobs_total", "Jobs", "kind", "x").add(2);
+        metrics.counter("jobs_total_failed", "Failed jobs").add(3);
+        Assert.assertEquals("# HELP jobs_total Jobs\n" +
+                "# TYPE jobs_total counter\n" +
+                "jobs_total 1\n" +
+                "jobs_total{kind=\"x\"} 2\n" +
+                "# HELP jobs_total_failed Failed jobs\n" +
+                "# TYPE jobs_total_failed counter\n" +
+                "jobs_total_failed 3\n", metrics.scrape());
+    }
+
+    @Test
+    public void builtInMetricsTest() {
+        long attempts = RetryJob.ATTEMPTS.get(), failed = RetryJob.FAILED_ATTEMPTS.get();
+        AtomicInteger calls = new AtomicInteger();
+        retryJob(() -> {
+            if (calls.incrementAndGet() < 3) throw new IllegalStateException("not yet");
+            return 1;
+        }, Duration.ofSeconds(5));
+        Assert.assertEquals(3, RetryJob.ATTEMPTS.get() - attempts);
+        Assert.assertEquals(2, RetryJob.FAILED_ATTEMPTS.get() - failed);
+        Assert.assertTrue(Metrics.DEFAULT.scrape().contains("# TYPE boxed_retry_attempt_seconds histogram"));
+
+        VirtualTimeSource clock = new VirtualTimeSource();
+        try (Timer.ConcurrentIterationTimer timer = new Timer.ConcurrentIterationTimer(1., x -> {}, clock)) {
+            Metrics metrics = new Metrics();
+            metrics.register("load", timer);
+            timer.record(1000);
+            clock.advance(Duration.ofSeconds(1));
+            timer.record(2000);
+            String text = metrics.scrape();
+            Assert.assertTrue(text.contains("boxed_timer_iterations_total{timer=\"load\"} 2\n"));
+            Assert.assertTrue(text.contains("boxed_timer_latency_seconds_count{timer=\"load\"} 2\n"));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    public void endpointAndDumpTest() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.counter("jobs_total", "Jobs").add(7);
+        HttpServer server = metrics.serve(0);
+        try {
+            HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:" + server.getAddress().getPort() +
+                    "/metrics").openConnection();
+            Assert.assertEquals(200, con.getResponseCode());
+            Assert.assertTrue(con.getContentType().startsWith("text/plain"));
+            try (InputStream in = con.getInputStream()) {
+                Assert.assertEquals(metrics.scrape(), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            server.stop(0);
+        }
+
+        File file = File.createTempFile("metrics", ".prom");
+        file.deleteOnExit();
+        Path path = file.toPath();
+        VirtualTimeSource clock = new VirtualTimeSource();
+        try (Metrics.FileDump dump = metrics.dumpEvery(path, Duration.ofSeconds(10), clock)) {
+            clock.advance(Duration.ofSeconds(10));
+            Assert.assertTrue(Files.readString(path).contains("jobs_total 7\n"));
+            metrics.counter("jobs_total", "Jobs").increment();
+            clock.advance(Duration.ofSeconds(9));
+            Assert.assertTrue(Files.readString(path).contains("jobs_total 7\n"));
+            clock.advance(Duration.ofSeconds(1));
+            Assert.assertTrue(Files.readString(path).contains("jobs_total 8\n"));
+            metrics.counter("jobs_total", "Jobs").increment();
+        }
+        Assert.assertTrue("Closed dump writes the last state", Files.readString(path).contains("jobs_total 9\n"));
+        Assert.assertEquals(0, clock.pending());
+    }
+
+    @Test
+    public void cliOptionsTest() throws Exception {
+        Assert.assertTrue(JTry.of(() -> new Metrics().dumpEvery(Files.createTempFile("metrics", ".prom"), Duration.ZERO))
+                .throwable.get() instanceof IllegalArgumentException);
+        Assert.assertFalse("Period under 1 second is rejected",
+                CliTest.CliMulti.main(new String[]{"test-cmd", "-i", "x", "--metrics-period", "0"}));
+
+        File file = File.createTempFile("metrics", ".prom");
+        file.deleteOnExit();
+        Files.delete(file.toPath());
+        Assert.assertTrue(CliTest.CliMulti.main(new String[]{"--metrics-file", file.getPath(), "test-cmd", "-i", "x"}));
+        Assert.assertTrue("Top level --metrics-file is used in MultiTaskRunner mode", file.exists());
+    }
+}
@@ -7,6 +7,7 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.stream.IntStream;
 
+import static org.boxed.cli.PrettyNumberFormater.prettyBytes;
 import static org.boxed.cli.PrettyNumberFormater.prettyNumber;
 import static org.boxed.cli.PrettyNumberFormater.prettyTime;
 
@@ -22,5 +23,11 @@ public class PrettyNumberFormaterTest extends BaseTest {
             Assert.assertEquals(timeArr.get(i), prettyTime(x.get(i), 2));
             Assert.assertEquals(countArr.get(i), prettyNumber(x.get(i), 2));
         });
+        Assert.assertEquals("0B", prettyBytes(0L));
+        Assert.assertEquals("1023B", prettyBytes(1023L));
+        Assert.assertEquals("1.00KiB", prettyBytes(1024L));
+        Assert.assertEquals("1.50MiB", prettyBytes(1572864L));
+        Assert.assertEquals("-2.00GiB", prettyBytes(-2L << 30));
+        Assert.assertEquals("8.00EiB", prettyBytes(Long.MAX_VALUE));
     }
 }
\ No newline at end of file
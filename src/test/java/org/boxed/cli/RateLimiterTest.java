@@ -0,0 +1,129 @@
+package org.boxed.cli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.boxed.cli.RetryJob.retryJob;
+import static org.boxed.cli.RetryJob.retryJobAsync;
+import static org.boxed.cli.RetryJob.runAll;
+
+public class RateLimiterTest extends BaseTest {
+    static long ms(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    @Test
+    public void testRateAndBurst() {
+        RateLimiter limiter = new RateLimiter(100, 10);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) limiter.acquire(1);
+        Assert.assertTrue("Burst does not wait", ms(start) < 20);
+        for (int i = 0; i < 50; i++) limiter.acquire(1);
+        long ms = ms(start);
+        LOG.info("60 permits in " + ms + "ms " + limiter.metrics());
+        Assert.assertTrue(ms >= 450 && ms < 1000);
+        // big reservation is paid by the next callers
+        limiter.acquire(10);
+        Assert.assertFalse(limiter.tryAcquire(1, Duration.ofMillis(10)));
+        Assert.assertTrue(limiter.tryAcquire(1, Duration.ofMillis(200)));
+
+        RateLimiter warm = new RateLimiter(100, 1, Duration.ofSeconds(1), 4);
+        start = System.nanoTime();
+        for (int i = 0; i < 10; i++) warm.acquire(1);
+        Assert.assertTrue("Warm up is slower: " + ms(start), ms(start) >= 200);
+    }
+
+    @Test
+    public void testInterruptedAcquire() {
+        RateLimiter limiter = new RateLimiter(1, 1);
+        limiter.acquire(1);
+        Thread.currentThread().interrupt();
+        testMethodFailure(() -> limiter.acquire(5), "Interrupted wait");
+        Assert.assertTrue("Interrupt flag is kept", Thread.interrupted());
+        Assert.assertEquals("Permits are given back", 1, limiter.getPermits());
+        Assert.assertTrue("Next caller does not pay for given back permits", limiter.reserve(1, Long.MAX_VALUE) < 1.5e9);
+
+        RateLimiter.Keyed<String> keyed = new RateLimiter.Keyed<>(x -> new RateLimiter(1, 1), new RateLimiter(1, 1));
+        keyed.acquire("a", 1);
+        Thread.currentThread().interrupt();
+        testMethodFailure(() -> keyed.tryAcquire("a", 5, Duration.ofSeconds(10)), "Interrupted wait");
+        Assert.assertTrue(Thread.interrupted());
+        Assert.assertEquals(1, keyed.limiter("a").getPermits());
+        Assert.assertEquals(1, keyed.global.getPermits());
+    }
+
+    @Test
+    public void testKeyedAndAsync() throws Exception {
+        RateLimiter.Keyed<String> keyed = new RateLimiter.Keyed<>(x -> new RateLimiter(50, 1), new RateLimiter(1000, 1));
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            keyed.acquire("a", 1);
+            keyed.acquire("b", 1);
+        }
+        long ms = ms(start);
+        Assert.assertTrue("Keys are limited separately: " + ms, ms >= 160 && ms < 400);
+        Assert.assertEquals(10, keyed.limiter("a").getPermits());
+
+        RateLimiter limiter = new RateLimiter(20, 1);
+        start = System.nanoTime();
+        List<CompletableFuture<Void>> permits = IntStream.range(0, 5).mapToObj(i -> limiter.acquireAsync(1))
+                .collect(Collectors.toList());
+        Assert.assertTrue("Async acquire does not block", ms(start) < 20);
+        for (CompletableFuture<Void> permit : permits) permit.get();
+        Assert.assertTrue(ms(start) >= 190);
+        Assert.assertEquals(3, (int) retryJobAsync(() -> CompletableFuture.completedFuture(3), Duration.ofSeconds(1),
+                limiter).get());
+
+        // attempt waits for a permit not longer than the time left, nothing is reserved otherwise
+        RateLimiter slow = new RateLimiter(1, 1);
+        slow.acquire(1);
+        Assert.assertTrue(JTry.of(() -> slow.acquireAsync(1, Duration.ofMillis(10)).get()).throwable.get().getCause()
+                instanceof RateLimiter.RateLimitedException);
+        Assert.assertFalse(JTry.of(() -> retryJobAsync(() -> CompletableFuture.completedFuture(3),
+                Duration.ofMillis(100), slow).get()).isOk());
+        Assert.assertEquals(1, slow.getPermits());
+    }
+
+    @Test
+    public void testKeyedRollback() {
+        RateLimiter global = new RateLimiter(1, 1);
+        RateLimiter.Keyed<String> keyed = new RateLimiter.Keyed<>(x -> new RateLimiter(50, 1), global);
+        keyed.acquire("a", 1);
+        Assert.assertFalse("Global permit is taken", keyed.tryAcquire("b", 1, Duration.ofMillis(10)));
+        Assert.assertEquals("Key permit is given back", 0, keyed.limiter("b").getPermits());
+        Assert.assertTrue(keyed.limiter("b").tryAcquire(1, Duration.ZERO));
+        Assert.assertEquals(1, global.getPermits());
+    }
+
+    @Test
+    public void testRetryIntegration() {
+        // first retryJob call in JVM initializes retry helper - do not count it
+        retryJob(() -> 1, Duration.ofSeconds(1), new RetryJob.Guards().rateLimiter(new RateLimiter(1, 1)));
+        RateLimiter limiter = new RateLimiter(20, 1);
+        AtomicInteger attempts = new AtomicInteger();
+        long start = System.nanoTime();
+        JTry<Integer> res = retryJob(() -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("quota exceeded");
+        }, Duration.ofMillis(70), new RetryJob.Guards().rateLimiter(limiter));
+        LOG.info("Rate limited retries " + attempts.get() + " in " + ms(start) + "ms " + res);
+        Assert.assertFalse(res.isOk());
+        Assert.assertTrue("Attempts are paced by the limiter", attempts.get() <= 2);
+
+        RateLimiter quota = new RateLimiter(200, 1);
+        List<Callable<Integer>> jobs = IntStream.range(0, 50).mapToObj(i -> (Callable<Integer>) () -> i)
+                .collect(Collectors.toList());
+        start = System.nanoTime();
+        List<JTry<Integer>> all = runAll(jobs, 8, new RetryJob.BulkSettings(Duration.ofSeconds(5)).rateLimiter(quota));
+        Assert.assertTrue(all.stream().allMatch(JTry::isOk));
+        Assert.assertTrue("Bulk run is rate limited: " + ms(start), ms(start) >= 200);
+    }
+}
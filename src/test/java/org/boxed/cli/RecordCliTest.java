@@ -0,0 +1,76 @@
+package org.boxed.cli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class RecordCliTest extends BaseTest {
+
+    /**
+     * Upper case records, drop records divisible by 10
+     */
+    public static class Upper extends RecordCli {
+        @Override
+        public String processRecord(String record) {
+            if (Integer.parseInt(record.substring(4)) % 10 == 0) return null;
+            return record.toUpperCase();
+        }
+    }
+
+    public static class Failing extends RecordCli {
+        @Override
+        public String processRecord(String record) {
+            if (record.equals("rec-5000")) throw new IllegalStateException("Bad record " + record);
+            return record;
+        }
+    }
+
+    List<String> run(Path input, boolean ordered) throws Exception {
+        Path output = Files.createTempFile("record_out", ".txt");
+        output.toFile().deleteOnExit();
+        String args = "--input " + input + " --output " + output + " --threads 4 --chunk-size 1000" +
+                (ordered ? " --ordered" : "");
+        Upper upper = new Upper();
+        Assert.assertTrue("Record cli have to succeed", Cli.mainRunInternal(args.split(" "), upper));
+        Assert.assertEquals("All records counted", 10000L, upper.runReport.get("records"));
+        return Files.readAllLines(output, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void recordTest() throws Exception {
+        Path input = Files.createTempFile("record_in", ".txt");
+        input.toFile().deleteOnExit();
+        List<String> lines = IntStream.range(0, 10000).mapToObj(i -> "rec-" + i).collect(Collectors.toList());
+        // no line separator at the end of the file, windows separator in the middle
+        Files.write(input, (String.join("\n", lines.subList(0, 5000)) + "\r\n" +
+                String.join("\n", lines.subList(5000, 10000))).getBytes(StandardCharsets.UTF_8));
+        List<String> expected = IntStream.range(0, 10000).filter(i -> i % 10 != 0)
+                .mapToObj(i -> "REC-" + i).collect(Collectors.toList());
+
+        Assert.assertEquals("Ordered output", expected, run(input, true));
+        List<String> unordered = run(input, false);
+        Assert.assertEquals("Unordered output have the same records",
+                expected.stream().sorted().collect(Collectors.toList()),
+                unordered.stream().sorted().collect(Collectors.toList()));
+
+        for (boolean ordered : new boolean[]{true, false}) {
+            Failing failing = new Failing();
+            failing.input = input.toString();
+            failing.output = Files.createTempFile("record_out", ".txt").toString();
+            failing.threads = 4;
+            failing.chunkSize = 1000;
+            failing.ordered = ordered;
+            Throwable e = JTry.of(failing::run).throwable.get();
+            Assert.assertEquals("processRecord exception, ordered " + ordered, IllegalStateException.class, e.getClass());
+            Assert.assertEquals("ordered " + ordered, "Bad record rec-5000", e.getMessage());
+            new File(failing.output).delete();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.boxed.cli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.boxed.cli.RetryJob.withPooledResource;
+
+public class ResourcePoolTest extends BaseTest {
+    static class Resource implements AutoCloseable {
+        static final AtomicInteger created = new AtomicInteger(), closed = new AtomicInteger();
+        final int id = created.incrementAndGet();
+        boolean valid = true;
+
+        @Override
+        public void close() {
+            closed.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testReuseAndLimit() throws Exception {
+        ResourcePool<Resource> pool = new ResourcePool<>(Resource::new, x -> x.valid, 4, Duration.ofSeconds(10),
+                Duration.ofSeconds(10), Duration.ofMillis(50));
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 200; i++) {
+            threads.execute(() -> withPooledResource(pool, r -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                JTry.of(() -> Thread.sleep(1));
+                running.decrementAndGet();
+                return r.id;
+            }));
+        }
+        threads.shutdown();
+        Assert.assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+        LOG.info(pool.metrics());
+        Assert.assertTrue(maxRunning.get() <= 4);
+        Assert.assertTrue(pool.getCreations() <= 4);
+        Assert.assertEquals(200, pool.getCreations() + pool.getReuses() + pool.timeouts.sum());
+
+        // failed apply - resource is closed, invalid resource is not borrowed
+        int closed = Resource.closed.get();
+        Assert.assertFalse(withPooledResource(pool, r -> {
+            throw new IllegalStateException("broken");
+        }).isOk());
+        Assert.assertEquals(closed + 1, Resource.closed.get());
+        pool.idle.forEach(x -> x.resource.valid = false);
+        int idle = pool.getIdle();
+        long creations = pool.getCreations();
+        Assert.assertTrue(withPooledResource(pool, r -> r.valid).getOrThrow());
+        Assert.assertEquals(creations + 1, pool.getCreations());
+        Assert.assertEquals(closed + 1 + idle, Resource.closed.get());
+
+        // borrowed resources count in utilization
+        ResourcePool.Pooled<Resource> held = pool.borrow();
+        ResourcePool<Resource> single = ResourcePool.create(Resource::new, 1);
+        ResourcePool.Pooled<Resource> one = single.borrow();
+        Assert.assertEquals(1., single.utilization(), 0);
+        pool.release(held, false);
+        single.release(one, false);
+        pool.close();
+        single.close();
+    }
+
+    @Test
+    public void testIdleEvictionAndTimeout() throws Exception {
+        ResourcePool<Resource> pool = new ResourcePool<>(Resource::new, null, 1, Duration.ofMillis(20),
+                Duration.ofSeconds(10), Duration.ofMillis(20));
+        int first = withPooledResource(pool, r -> r.id).getOrThrow();
+        Assert.assertEquals(first, (int) withPooledResource(pool, r -> r.id).getOrThrow());
+        Thread.sleep(30);
+        Assert.assertNotEquals(first, (int) withPooledResource(pool, r -> r.id).getOrThrow());
+
+        ResourcePool.Pooled<Resource> held = pool.borrow();
+        JTry<Integer> res = withPooledResource(pool, r -> r.id);
+        Assert.assertTrue(res.throwable.get() instanceof TimeoutException);
+        pool.release(held, false);
+        LOG.info(pool.metrics());
+    }
+}
@@ -1,15 +1,34 @@
 package org.boxed.cli;
 
+import com.google.api.gax.retrying.RetrySettings;
+import org.junit.Assert;
 import org.junit.Test;
 
 import java.time.Duration;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static org.boxed.cli.General.listT;
 import static org.boxed.cli.RetryJob.retryJob;
+import static org.boxed.cli.RetryJob.retryJobAsync;
+import static org.boxed.cli.RetryJob.runAll;
 import static org.boxed.cli.RetryJob.timeLimitedJob;
+import static org.boxed.cli.RetryJob.toJTry;
 import static org.boxed.cli.Timer.IterationTimer.measure;
 
 public class RetryJobTest extends BaseTest {
+    // virtual time tests: retry delays, job run times and timeouts take no real time, exact timings
+    final VirtualTimeSource clock = new VirtualTimeSource();
+
     Callable<Boolean> build(String mes, int runTimeMs, boolean fail) {
         return () -> {
             JTry.of(() -> Thread.sleep(runTimeMs)).getOrThrow();
@@ -17,6 +36,15 @@ public class RetryJobTest extends BaseTest {
             return true;
         };
     }
+
+    Callable<Boolean> buildVirtual(String mes, int runTimeMs, boolean fail) {
+        return () -> {
+            clock.sleep(TimeUnit.MILLISECONDS.toNanos(runTimeMs));
+            if (fail) throw new RuntimeException("After " + runTimeMs + " failing job:" + mes);
+            return true;
+        };
+    }
+
     @Test
     public void testRetryJob() {
         Callable<Boolean> testOkFunc = build("OK func", 10, false);
@@ -35,5 +63,131 @@ public class RetryJobTest extends BaseTest {
 
     }
 
+    @Test
+    public void testRetryJobVirtual() {
+        Callable<Boolean> testOkFunc = buildVirtual("OK func", 10, false);
+        Callable<Boolean> testFailFunc = buildVirtual("Fail func", 11, true);
+        long start = clock.nanoTime();
+        JTry<Boolean> res = retryJob(testFailFunc, Duration.ofMillis(100), new RetryJob.Guards().clock(clock));
+        long t = TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - start);
+        LOG.info("Retry 100 got " + t);
+        Assert.assertNull(res.getOrElse(null));
+        Assert.assertTrue("3 attempts of 11ms and delays within total timeout: " + t, t >= 33 && t <= 111);
+        Assert.assertEquals("Any clock fails with the same exception type",
+                retryJob(testFailFunc, Duration.ofMillis(100)).throwable.get().getClass(), res.throwable.get().getClass());
+        Assert.assertEquals("After 11 failing job:Fail func", res.throwable.get().getCause().getMessage());
+        Assert.assertTrue(retryJob(testOkFunc, Duration.ofMillis(4), new RetryJob.Guards().clock(clock)).getOrElse(null));
+        try (RetryJob.TLimitedJob limited = new RetryJob.TLimitedJob(clock)) {
+            Assert.assertTrue(limited.call(testOkFunc, 100L).getOrElse(null));
+            Assert.assertTrue(limited.call(testOkFunc, 4L).throwable.get() instanceof TimeoutException);
+            Assert.assertNull(limited.call(testFailFunc, 100L).getOrElse(null));
+        }
+    }
+
+    Supplier<CompletableFuture<Integer>> failFirst(AtomicInteger attempts, int failures) {
+        return () -> attempts.incrementAndGet() <= failures ?
+                CompletableFuture.failedFuture(new RuntimeException("Attempt " + attempts.get() + " failed")) :
+                CompletableFuture.completedFuture(attempts.get());
+    }
 
-}
\ No newline at end of file
+    @Test
+    public void testRetryJobAsync() {
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<Integer> res = retryJobAsync(failFirst(attempts, 2), Duration.ofMillis(1000), clock);
+        clock.advance(Duration.ofMillis(1000));
+        Assert.assertEquals(3, (int) res.join());
+        attempts.set(0);
+        CompletableFuture<JTry<Integer>> failed = toJTry(retryJobAsync(failFirst(attempts, 5), Duration.ofMillis(1000), clock));
+        clock.advance(Duration.ofMillis(1000));
+        Assert.assertFalse("Default settings allow 3 attempts", failed.join().isOk());
+        Assert.assertEquals(3, attempts.get());
+
+        CompletableFuture<Integer> never = new CompletableFuture<>();
+        CompletableFuture<JTry<Integer>> timeout = toJTry(retryJobAsync(() -> never, Duration.ofMillis(50), clock));
+        clock.advance(Duration.ofMillis(49));
+        Assert.assertFalse(timeout.isDone());
+        clock.advance(Duration.ofMillis(1));
+        Assert.assertTrue("Total timeout have to fail hanging attempt",
+                timeout.join().map(x -> false).recover((Throwable e) -> e instanceof TimeoutException).getOrThrow());
+        Assert.assertTrue("Hanging attempt have to be cancelled", never.isCancelled());
+
+        List<CompletableFuture<Integer>> many = IntStream.range(0, 2000).mapToObj(i ->
+                retryJobAsync(failFirst(new AtomicInteger(), 1), Duration.ofMillis(5000), clock)).collect(Collectors.toList());
+        clock.advance(Duration.ofMillis(5000));
+        Assert.assertTrue("Thousands of retries complete",
+                many.stream().allMatch(x -> JTry.of(x::join).getOrElse(0) == 2));
+        Assert.assertEquals(0, clock.pending());
+
+        List<String> threads = new CopyOnWriteArrayList<>();
+        CompletableFuture<Integer> system = retryJobAsync(() -> {
+            threads.add(Thread.currentThread().getName());
+            return threads.size() < 3 ? CompletableFuture.failedFuture(new IllegalStateException("not yet")) :
+                    CompletableFuture.completedFuture(threads.size());
+        }, RetrySettings.newBuilder().setTotalTimeout(org.threeten.bp.Duration.ofSeconds(5))
+                .setInitialRetryDelay(org.threeten.bp.Duration.ofMillis(1)).setRetryDelayMultiplier(1)
+                .setMaxRetryDelay(org.threeten.bp.Duration.ofMillis(1)).build());
+        Assert.assertEquals(3, (int) system.join());
+        Assert.assertFalse("Retries run off the scheduler thread: " + threads, threads.contains("retry-job-scheduler"));
+    }
+
+    @Test
+    public void testRetryJobAsyncCancel() {
+        AtomicInteger attempts = new AtomicInteger();
+        RetrySettings settings = RetrySettings.newBuilder().setMaxAttempts(100)
+                .setTotalTimeout(org.threeten.bp.Duration.ofSeconds(10))
+                .setInitialRetryDelay(org.threeten.bp.Duration.ofMillis(50))
+                .setMaxRetryDelay(org.threeten.bp.Duration.ofMillis(50)).setRetryDelayMultiplier(1).build();
+        CompletableFuture<Integer> res = retryJobAsync(failFirst(attempts, 100), settings, clock);
+        clock.advance(Duration.ofMillis(20));
+        res.cancel(true);
+        int done = attempts.get();
+        clock.advance(Duration.ofSeconds(10));
+        Assert.assertEquals("No attempts after cancel", done, attempts.get());
+        Assert.assertEquals("Cancel stops retry timers", 0, clock.pending());
+    }
+
+    @Test
+    public void testRunAll() {
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        List<Callable<Integer>> jobs = IntStream.range(0, 500).mapToObj(i -> {
+            AtomicInteger attempts = new AtomicInteger();
+            return (Callable<Integer>) () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(1);
+                    if (i % 10 == 0 && attempts.incrementAndGet() == 1) throw new IllegalStateException("First attempt");
+                    if (i % 100 == 1) throw new IllegalStateException("Always failing");
+                    return i;
+                } finally {
+                    running.decrementAndGet();
+                }
+            };
+        }).collect(Collectors.toList());
+        List<JTry<Integer>> res = runAll(jobs, 8, new RetryJob.BulkSettings(Duration.ofSeconds(5)).progress("Test jobs", 0.1));
+        Assert.assertEquals(500, res.size());
+        for (int i = 0; i < res.size(); i++) {
+            if (i % 100 == 1) Assert.assertFalse(res.get(i).isOk());
+            else Assert.assertEquals(i, (int) res.get(i).getOrThrow());
+        }
+        Assert.assertTrue("Parallelism is bounded: " + maxRunning.get(), maxRunning.get() <= 8);
+
+        RetryBudget budget = new RetryBudget("run-all", 0, 2);
+        AtomicInteger attempts = new AtomicInteger();
+        List<Callable<Integer>> failing = IntStream.range(0, 10).mapToObj(i -> (Callable<Integer>) () -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("Failing");
+        }).collect(Collectors.toList());
+        Assert.assertTrue(runAll(failing, 2, new RetryJob.BulkSettings(Duration.ofSeconds(5)).budget(budget))
+                .stream().noneMatch(JTry::isOk));
+        Assert.assertEquals("Shared budget allows 2 retries", 12, attempts.get());
+
+        CountDownLatch never = new CountDownLatch(1);
+        List<Callable<Integer>> hanging = listT(() -> {
+            never.await();
+            return 0;
+        }, () -> 1);
+        List<JTry<Integer>> done = runAll(hanging, 1, new RetryJob.BulkSettings(Duration.ofMillis(200)));
+        Assert.assertFalse("Hanging item times out", done.get(0).isOk());
+        Assert.assertEquals("and does not hold the only runAll thread", 1, (int) done.get(1).getOrThrow());
+    }
+}
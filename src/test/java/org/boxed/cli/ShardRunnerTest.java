@@ -0,0 +1,109 @@
+package org.boxed.cli;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.apache.commons.lang3.tuple.Pair;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.SubCommand;
+import org.kohsuke.args4j.spi.SubCommandHandler;
+import org.kohsuke.args4j.spi.SubCommands;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.boxed.cli.ExceptionHandler.rethrow;
+import static org.boxed.cli.General.listT;
+import static org.boxed.cli.json.JsonTools.getPropertyLong;
+import static org.boxed.cli.json.JsonTools.str2Obj;
+
+public class ShardRunnerTest extends BaseTest {
+
+    /**
+     * Counts lines of the input shard, shard 1 fails once if --fail-once marker file does not exist
+     */
+    public static class LineCount extends Cli.CliBasic {
+        @Option(name = "--input")
+        String input;
+        @Option(name = "--fail-once")
+        String failMarker;
+
+        @Override
+        public void run() {
+            if (failMarker != null && shardIndex == 1 && new File(failMarker).mkdir())
+                throw new RuntimeException("Failing shard 1 first time");
+            long lines = rethrow(() -> Files.lines(new File(input).toPath()).count());
+            runReport.put("lines", lines);
+        }
+
+        public static void main(String[] args) {
+            Cli.mainRun(args, new LineCount());
+        }
+    }
+
+    @Test
+    public void shardRun() throws Exception {
+        Path dir = Files.createTempDirectory("shard_test");
+        Path input = dir.resolve("input.txt");
+        Files.write(input, IntStream.range(0, 10).mapToObj(Integer::toString).collect(Collectors.toList()));
+        Path report = dir.resolve("report.json");
+        String[] args = {"-c", LineCount.class.getName(), "-n", "3", "-r", "1", "--input", input.toString(),
+                "--work-dir", dir.toString(), "--report", report.toString(), "--",
+                "--fail-once", dir.resolve("failed").toString(), "-d", "WARN"};
+        Assert.assertTrue("Shard runner have to succeed", Cli.mainRunInternal(args, new ShardRunner()));
+
+        Map<String, Object> merged = str2Obj(new String(Files.readAllBytes(report)));
+        Assert.assertEquals(true, merged.get("ok"));
+        List<Map<String, Object>> shards = shardReports(merged);
+        Assert.assertEquals("All shards reported", 3, shards.size());
+        long lines = shards.stream().mapToLong(x -> getPropertyLong(x, "report", "lines")).sum();
+        Assert.assertEquals("Every input line processed once", 10, lines);
+        Assert.assertEquals("Failed shard rerun once", 1L, (long) getPropertyLong(shards.get(1), "attempt"));
+    }
+
+    /**
+     * Counts items 0..9 of its shard
+     */
+    public static class ItemCount extends Cli.CliBasic {
+        @Override
+        public void run() {
+            runReport.put("items", IntStream.range(0, 10).filter(this::inShard).count());
+        }
+    }
+
+    public static class ItemCountMulti extends Cli.MultiTaskBasic {
+        @Argument(required = true, handler = SubCommandHandler.class, usage = "set run mode")
+        @SubCommands({@SubCommand(name = "count", impl = ItemCount.class)})
+        Cli.CliBasic current = null;
+
+        @Override
+        public List<Pair<String, Class<?>>> getSubcommands() {
+            return listT(Pair.of("count", ItemCount.class));
+        }
+
+        @Override
+        public Cli.CliBasic getCurrentCli() {
+            return current;
+        }
+    }
+
+    @Test
+    public void multiTaskShard() {
+        Cli.MultiTaskRunner topLevel = new Cli.MultiTaskRunner(new ItemCountMulti());
+        Assert.assertTrue(Cli.mainRunInternal(new String[]{"--shard", "1/3", "count"}, topLevel));
+        Assert.assertEquals("Top level --shard reaches the chosen mode", 3L, topLevel.runReport.get("items"));
+        Cli.MultiTaskRunner modeLevel = new Cli.MultiTaskRunner(new ItemCountMulti());
+        Assert.assertTrue(Cli.mainRunInternal(new String[]{"count", "--shard", "0/3"}, modeLevel));
+        Assert.assertEquals(4L, modeLevel.runReport.get("items"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> shardReports(Map<String, Object> merged) {
+        return (List<Map<String, Object>>) ((Map<String, Object>) merged.get("report")).get("shards");
+    }
+}
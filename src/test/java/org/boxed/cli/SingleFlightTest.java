@@ -0,0 +1,86 @@
+package org.boxed.cli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.boxed.cli.RetryJob.retryJob;
+
+public class SingleFlightTest extends BaseTest {
+    @Test
+    public void testCoalescing() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<JTry<Integer>>> res = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            res.add(pool.submit(() -> retryJob(flight, "key", () -> {
+                executions.incrementAndGet();
+                release.await();
+                return 42;
+            }, Duration.ofSeconds(5))));
+        }
+        while (flight.getExecutions() + flight.getShared() < 8) Thread.sleep(1);
+        release.countDown();
+        for (Future<JTry<Integer>> x : res) Assert.assertEquals(42, (int) x.get().getOrThrow());
+        pool.shutdown();
+        Assert.assertEquals(1, executions.get());
+        Assert.assertEquals(7, flight.getShared());
+        // no cache - next call executes again
+        Assert.assertEquals(1, (int) flight.call("key", () -> 1).getOrThrow());
+        LOG.info(flight.metrics());
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>(Duration.ofMillis(50), 2);
+        AtomicInteger executions = new AtomicInteger();
+        Assert.assertEquals(1, (int) flight.call("a", executions::incrementAndGet).getOrThrow());
+        Assert.assertEquals(1, (int) flight.call("a", executions::incrementAndGet).getOrThrow());
+        Assert.assertEquals(1, flight.getCacheHits());
+        // failures are not cached
+        Assert.assertFalse(flight.call("fail", () -> {
+            throw new IllegalStateException("failed");
+        }).isOk());
+        Assert.assertEquals(3, (int) flight.call("fail", () -> 3).getOrThrow());
+        // eviction keeps max size
+        flight.call("b", () -> 4);
+        Assert.assertTrue(flight.cache.size() <= 2);
+        Thread.sleep(60);
+        Assert.assertEquals(2, (int) flight.call("a", executions::incrementAndGet).getOrThrow());
+
+        CompletableFuture<Integer> slow = new CompletableFuture<>();
+        CompletableFuture<JTry<Integer>> first = flight.callAsync("async", () -> slow);
+        CompletableFuture<JTry<Integer>> second = flight.callAsync("async", () -> CompletableFuture.completedFuture(0));
+        slow.complete(5);
+        Assert.assertEquals(5, (int) first.get().getOrThrow());
+        Assert.assertEquals(5, (int) second.get().getOrThrow());
+        LOG.info(flight.metrics());
+    }
+
+    @Test
+    public void testAsyncCancelOne() {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        CompletableFuture<Integer> slow = new CompletableFuture<>();
+        CompletableFuture<JTry<Integer>> owner = flight.callAsync("key", () -> slow);
+        CompletableFuture<JTry<Integer>> cancelled = flight.callAsync("key", () -> slow);
+        CompletableFuture<JTry<Integer>> waiter = flight.callAsync("key", () -> slow);
+        Assert.assertTrue(cancelled.cancel(true));
+        Assert.assertFalse("Other callers are not cancelled", owner.isDone() || waiter.isDone() || slow.isDone());
+        slow.complete(7);
+        Assert.assertEquals(7, (int) owner.join().getOrThrow());
+        Assert.assertEquals(7, (int) waiter.join().getOrThrow());
+        Assert.assertTrue(cancelled.isCancelled());
+        Assert.assertTrue(flight.inFlight.isEmpty());
+    }
+}
@@ -0,0 +1,56 @@
+package org.boxed.cli;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class SparkTimerTest extends BaseTest {
+    @Test
+    public void localModeTest() {
+        Assume.assumeTrue("Spark 3.2 does not start on Java 21+", Runtime.version().feature() < 21);
+        SparkConf conf = new SparkConf().setMaster("local[4]").setAppName("SparkTimerTest")
+                .set("spark.ui.enabled", "false");
+        try (JavaSparkContext sc = new JavaSparkContext(conf)) {
+            VirtualTimeSource clock = new VirtualTimeSource();
+            List<Timer.IterationData> published = Collections.synchronizedList(new ArrayList<>());
+            SparkTimer timer = new SparkTimer(sc.sc(), "test", 10., 2000, published::add, clock);
+            List<Integer> items = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+            long mapped = sc.parallelize(items, 20).map(x -> {
+                timer.record(1000L * (x + 1));
+                return x;
+            }).count();
+            Assert.assertEquals(1000, mapped);
+            clock.advance(Duration.ofSeconds(10));
+            Assert.assertEquals(1, published.size());
+            Timer.IterationData first = published.get(0);
+            LOG.info(first.iterSpeed() + " " + first.totalCount() + " " + first.eta() + " " + first.busyThreads());
+            Assert.assertEquals(1000, first.run_count);
+            Assert.assertEquals(1000L * 1000 * 1001 / 2, first.busy_nanosecond_time);
+            Assert.assertEquals(1000, first.latency.count);
+            Assert.assertEquals(1_000_000, first.latency.max);
+            Assert.assertTrue(first.eta(), first.eta().startsWith("ETA 10s") && first.eta().endsWith("50.0%"));
+
+            sc.parallelize(items, 20).foreach(x -> timer.increment());
+            clock.advance(Duration.ofSeconds(10));
+            Assert.assertEquals(2, published.size());
+            Assert.assertEquals(1000, published.get(1).iteration_count);
+            Assert.assertEquals(2000, published.get(1).run_count);
+
+            List<Timer.IterationData> last = new ArrayList<>();
+            timer.printLast(last::add);
+            LOG.info("Done " + last.get(0).totalCountTime() + " " + last.get(0).latencyPercentiles());
+            Assert.assertEquals(2000, last.get(0).run_count);
+            Assert.assertEquals(1000, last.get(0).latency.count);
+            Assert.assertEquals(0, clock.pending());
+        }
+    }
+}
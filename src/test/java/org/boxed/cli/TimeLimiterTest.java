@@ -0,0 +1,143 @@
+package org.boxed.cli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TimeLimiterTest extends BaseTest {
+    @Test
+    public void testTimeout() throws Exception {
+        try (TimeLimiter limiter = new TimeLimiter("test-limiter", 4, Duration.ofMillis(1), true)) {
+            Assert.assertEquals(5, (int) limiter.call(() -> 5, Duration.ofMillis(100)).getOrThrow());
+            Assert.assertFalse(limiter.call(() -> {
+                throw new IllegalStateException("failing job");
+            }, Duration.ofMillis(100)).isOk());
+
+            CountDownLatch interrupted = new CountDownLatch(1);
+            long start = System.nanoTime();
+            JTry<Object> res = limiter.call(() -> {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return null;
+            }, Duration.ofMillis(20));
+            long ms = (System.nanoTime() - start) / 1000000;
+            LOG.info("Timeout after " + ms + "ms " + res);
+            Assert.assertTrue(res.throwable.get() instanceof TimeoutException);
+            Assert.assertTrue(ms >= 20 && ms < 1000);
+            Assert.assertTrue("Job thread interrupted", interrupted.await(1, TimeUnit.SECONDS));
+            Assert.assertEquals(1, limiter.getTimeouts());
+            LOG.info(limiter.metrics());
+        }
+    }
+
+    @Test
+    public void testCooperativeCancel() throws Exception {
+        try (TimeLimiter limiter = new TimeLimiter("test-cooperative", 2, Duration.ofMillis(1), false)) {
+            AtomicBoolean cancelSeen = new AtomicBoolean(false);
+            CountDownLatch done = new CountDownLatch(1);
+            CompletableFuture<Integer> res = limiter.callAsync(() -> {
+                try {
+                    while (true) {
+                        TimeLimiter.checkCancelled();
+                        Thread.onSpinWait();
+                    }
+                } catch (RuntimeException e) {
+                    cancelSeen.set(true);
+                    throw e;
+                } finally {
+                    done.countDown();
+                }
+            }, Duration.ofMillis(10));
+            Assert.assertTrue(JTry.of(() -> res.get()).throwable.get().getCause() instanceof TimeoutException);
+            Assert.assertTrue(done.await(1, TimeUnit.SECONDS));
+            Assert.assertTrue(cancelSeen.get());
+            Assert.assertFalse(TimeLimiter.isCancelled());
+        }
+    }
+
+    @Test
+    public void testSharedPool() {
+        try (TimeLimiter limiter = new TimeLimiter("test-shared", 4, Duration.ofMillis(1), true)) {
+            List<CompletableFuture<Integer>> res = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                int x = i;
+                res.add(limiter.callAsync(() -> x, Duration.ofSeconds(10)));
+            }
+            for (int i = 0; i < res.size(); i++) Assert.assertEquals(i, (int) res.get(i).join());
+            Assert.assertTrue(limiter.executor.getLargestPoolSize() <= 4);
+            Assert.assertEquals(0, limiter.getTimeouts());
+            Assert.assertEquals(0, limiter.getInFlight());
+            LOG.info(limiter.metrics());
+        }
+    }
+
+    @Test
+    public void testWheel() throws Exception {
+        TimeLimiter.Wheel wheel = new TimeLimiter.Wheel("test-wheel", TimeUnit.MILLISECONDS.toNanos(1), 8);
+        try {
+            long start = System.nanoTime();
+            long[] fired = new long[3];
+            CountDownLatch done = new CountDownLatch(2);
+            long[] delays = {5, 30, 10};
+            for (int i = 0; i < delays.length; i++) {
+                int x = i;
+                TimeLimiter.Wheel.Timeout timeout = wheel.schedule(() -> {
+                    fired[x] = System.nanoTime() - start;
+                    done.countDown();
+                }, TimeUnit.MILLISECONDS.toNanos(delays[i]));
+                if (i == 2) timeout.cancel();
+            }
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue("Not before its delay", fired[0] >= TimeUnit.MILLISECONDS.toNanos(5));
+            Assert.assertTrue("Later round of the wheel", fired[1] >= TimeUnit.MILLISECONDS.toNanos(30));
+            Assert.assertEquals("Cancelled", 0, fired[2]);
+            for (int i = 0; i < 500 && wheel.thread.getState() != Thread.State.WAITING; i++) Thread.sleep(10);
+            Assert.assertEquals("Idle wheel does not tick", Thread.State.WAITING, wheel.thread.getState());
+            Assert.assertEquals(0, wheel.pending.get());
+
+            CountDownLatch again = new CountDownLatch(1);
+            wheel.schedule(again::countDown, TimeUnit.MILLISECONDS.toNanos(5));
+            Assert.assertTrue("Idle wheel wakes up on schedule", again.await(5, TimeUnit.SECONDS));
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        TimeLimiter limiter = new TimeLimiter("test-close", 1, Duration.ofMillis(1), true);
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Integer> running = limiter.callAsync(() -> {
+            started.countDown();
+            Thread.sleep(10000);
+            return 1;
+        }, Duration.ofSeconds(10));
+        CompletableFuture<Integer> queued = limiter.callAsync(() -> 2, Duration.ofSeconds(10));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        limiter.close();
+        Assert.assertTrue(JTry.of(() -> queued.get()).throwable.get() instanceof CancellationException);
+        Assert.assertTrue("Running job is interrupted",
+                JTry.of(() -> running.get()).throwable.get().getCause() instanceof InterruptedException);
+        Assert.assertTrue(limiter.executor.awaitTermination(5, TimeUnit.SECONDS));
+        limiter.wheel.thread.join(5000);
+        Assert.assertFalse("Wheel thread is stopped", limiter.wheel.thread.isAlive());
+        Assert.assertTrue(JTry.of(() -> limiter.callAsync(() -> 3, Duration.ofSeconds(1)).get()).throwable.get()
+                .getCause() instanceof RejectedExecutionException);
+        Assert.assertEquals(0, limiter.getInFlight());
+        TimeLimiter.shared().close();
+        Assert.assertEquals(4, (int) TimeLimiter.shared().call(() -> 4, Duration.ofSeconds(1)).getOrThrow());
+    }
+}
@@ -3,6 +3,14 @@ package org.boxed.cli;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.boxed.cli.PrettyNumberFormater.prettyTime;
@@ -35,5 +43,214 @@ public class TimerTest extends BaseTest {
 
     }
 
+    @Test
+    public void concurrentTimerTest() throws Exception {
+        int threads = 32, perThread = 100_000;
+        Timer.ConcurrentIterationTimer timer = new Timer.ConcurrentIterationTimer(0.01, data -> {});
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                for (int i = 0; i < perThread; i++) timer.increment();
+            });
+        }
+        pool.shutdown();
+        Assert.assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        LOG.info("Concurrent timer: " + threads * perThread + " increments in " +
+                prettyTime(System.nanoTime() - start, 2));
+        timer.printLast(count -> {
+            LOG.info("Done " + count.totalCountTime());
+            Assert.assertEquals("No lost counts", (long) threads * perThread, count.run_count);
+        });
+    }
+
+    @Test
+    public void concurrentTimerVirtualTimeTest() {
+        VirtualTimeSource clock = new VirtualTimeSource();
+        List<Timer.IterationData> published = new ArrayList<>();
+        Timer.ConcurrentIterationTimer timer = new Timer.ConcurrentIterationTimer(10., published::add, clock);
+        timer.addIterations(5);
+        clock.advance(Duration.ofMillis(9999));
+        Assert.assertTrue(published.isEmpty());
+        clock.advance(Duration.ofMillis(1));
+        Assert.assertEquals(1, published.size());
+        Assert.assertEquals(5, published.get(0).iteration_count);
+        Assert.assertEquals(10_000_000_000L, published.get(0).iteration_nanosecond_time);
+        timer.addIterations(3);
+        clock.advance(Duration.ofSeconds(25));
+        Assert.assertEquals(3, published.size());
+        Assert.assertEquals(3, published.get(1).iteration_count);
+        Assert.assertEquals(0, published.get(2).iteration_count);
+        Assert.assertEquals(published.stream().mapToLong(x -> x.iteration_count).sum(), published.get(2).run_count);
+        timer.addIterations(2);
+        List<Timer.IterationData> last = new ArrayList<>();
+        timer.printLast(last::add);
+        Assert.assertEquals(10, last.get(0).run_count);
+        clock.advance(Duration.ofSeconds(30));
+        Assert.assertEquals("No publishing after printLast", 3, published.size());
+        Assert.assertEquals(0, clock.pending());
+    }
+
+    @Test
+    public void concurrentTimerPublisherTest() throws Exception {
+        // slow publisher does not hold the timer lock or the shared scheduler thread
+        CountDownLatch release = new CountDownLatch(1), called = new CountDownLatch(1);
+        Timer.ConcurrentIterationTimer timer = new Timer.ConcurrentIterationTimer(0.001, data -> {
+            called.countDown();
+            JTry.of(() -> release.await());
+        });
+        Assert.assertTrue(called.await(10, TimeUnit.SECONDS));
+        timer.increment();
+        Assert.assertEquals(1, timer.getIterationData().run_count);
+        CompletableFuture<Boolean> scheduled = new CompletableFuture<>();
+        TimeSource.SYSTEM.schedule(() -> scheduled.complete(true), 0);
+        Assert.assertTrue(scheduled.get(10, TimeUnit.SECONDS));
+        release.countDown();
+        timer.printLast(data -> Assert.assertEquals(1, data.run_count));
+    }
+
+    @Test
+    public void histogramTest() throws Exception {
+        for (int i = 0; i < Timer.Histogram.BUCKETS; i++) {
+            Assert.assertEquals(i, Timer.Histogram.index(Timer.Histogram.highest(i)));
+            if (i > 0) Assert.assertEquals(i, Timer.Histogram.index(Timer.Histogram.highest(i - 1) + 1));
+        }
+        Assert.assertEquals(Timer.Histogram.BUCKETS - 1, Timer.Histogram.index(Long.MAX_VALUE));
+
+        Timer.Histogram histogram = new Timer.Histogram();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            pool.execute(() -> {
+                for (long v = 1; v <= 100_000; v++) histogram.record(v * 1000);
+            });
+        }
+        pool.shutdown();
+        Assert.assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        Timer.Histogram.Snapshot all = histogram.snapshot();
+        LOG.info("Histogram " + all);
+        Assert.assertEquals(800_000, all.count);
+        Assert.assertEquals(100_000_000L, all.max);
+        Assert.assertEquals(50_000_500L, all.mean());
+        Assert.assertEquals(50_000_000, all.percentile(50), 50_000_000 * 0.016);
+        Assert.assertEquals(99_000_000, all.percentile(99), 99_000_000 * 0.016);
+        Assert.assertEquals(99_900_000, all.percentile(99.9), 99_900_000 * 0.016);
+        Assert.assertEquals(100_000_000L, all.percentile(100));
+
+        Timer.Histogram.Snapshot interval = histogram.intervalSnapshot();
+        Assert.assertEquals(800_000, interval.count);
+        Assert.assertEquals(0, histogram.snapshot().count);
+        histogram.record(7);
+        Timer.Histogram.Snapshot merged = interval.merge(histogram.intervalSnapshot());
+        Assert.assertEquals(800_001, merged.count);
+        Assert.assertEquals(7, merged.percentile(0));
+        Assert.assertEquals(0, Timer.Histogram.Snapshot.empty().percentile(99));
+
+        Timer.Histogram measured = new Timer.Histogram();
+        for (int i = 0; i < 3; i++)
+            Timer.IterationTimer.measure(() -> JTry.of(() -> Thread.sleep(2)), measured, data -> {
+                LOG.info(data.totalTime() + " " + data.latencyPercentiles());
+            });
+        Assert.assertEquals(3, measured.snapshot().count);
+        Assert.assertTrue(measured.snapshot().percentile(50) >= 2_000_000);
+        Timer.IterationTimer.measure(() -> {}, data -> {
+            Assert.assertNull("Snapshot is taken on demand", data.latency);
+            Assert.assertTrue(data.latency().count > 0);
+        });
+        Assert.assertTrue(Metrics.DEFAULT.scrape().contains("boxed_timer_measure_seconds_count"));
+    }
+
+    @Test
+    public void concurrentTimerLatencyTest() {
+        VirtualTimeSource clock = new VirtualTimeSource();
+        List<Timer.IterationData> published = new ArrayList<>();
+        Timer.ConcurrentIterationTimer timer = new Timer.ConcurrentIterationTimer(1., published::add, clock);
+        for (int i = 1; i <= 100; i++) timer.record(i * 1_000_000L);
+        clock.advance(Duration.ofSeconds(1));
+        timer.record(500_000_000L);
+        clock.advance(Duration.ofSeconds(1));
+        Assert.assertEquals(100, published.get(0).latency.count);
+        Assert.assertEquals(100_000_000L, published.get(0).latency.max);
+        Assert.assertEquals(1, published.get(1).latency.count);
+        timer.printLast(data -> {
+            LOG.info(data.totalCount() + " " + data.latencyPercentiles());
+            Assert.assertEquals(101, data.latency.count);
+            Assert.assertEquals(101, data.run_count);
+            Assert.assertEquals(500_000_000L, data.latency.percentile(100));
+        });
+    }
+
+    static volatile byte[] sink;
+
+    @Test
+    public void gcTrackingTest() {
+        VirtualTimeSource clock = new VirtualTimeSource();
+        Timer.IterationTimer timer = new Timer.IterationTimer(1., clock).trackGc();
+        List<Timer.IterationData> published = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            sink = new byte[10_000];
+            timer.printIter(1, published::add);
+        }
+        System.gc();
+        clock.advance(Duration.ofSeconds(1));
+        timer.printIter(1, published::add);
+        Assert.assertEquals(1, published.size());
+        Timer.IterationData data = published.get(0);
+        LOG.info(data.iterSpeed() + " " + data.gcStats());
+        Assert.assertTrue("Allocated " + data.allocated_bytes, data.allocated_bytes >= 100 * 10_000);
+        Assert.assertTrue(data.gc_count >= 1);
+        Assert.assertTrue(data.gcStats(), data.gcStats().startsWith("Alloc/I 9.") || data.gcStats().startsWith("Alloc/I 10."));
 
-}
\ No newline at end of file
+        timer.printIter(1, published::add);
+        Timer.IterationData last = timer.getIterationData();
+        Assert.assertTrue("Counted since the last publish: " + last.allocated_bytes, last.allocated_bytes < 100 * 10_000);
+        Assert.assertEquals("", new Timer.IterationTimer(1.).getIterationData().gcStats());
+
+        Assert.assertTrue(Timer.GcSample.isConcurrent("G1 Concurrent GC"));
+        Assert.assertTrue(Timer.GcSample.isConcurrent("ZGC Major Cycles"));
+        Assert.assertFalse(Timer.GcSample.isConcurrent("G1 Young Generation"));
+        Assert.assertFalse(Timer.GcSample.isConcurrent("ZGC Minor Pauses"));
+        Timer.IterationData otherThread = new Timer.IterationData(1_000_000_000, 1, 1_000_000_000, 1);
+        JTryAsync.of(Timer.GcSample::take).getOrThrow().next(otherThread);
+        Assert.assertEquals(-1, otherThread.allocated_bytes);
+        Assert.assertTrue("GC counts without allocation: " + otherThread.gcStats(), otherThread.gcStats().startsWith("GC "));
+    }
+
+    @Test
+    public void throughputTimerTest() {
+        VirtualTimeSource clock = new VirtualTimeSource();
+        long mib = 1 << 20;
+        Timer.ThroughputTimer timer = new Timer.ThroughputTimer(1., 0, 200 * mib, clock).smoothing(1.);
+        List<Timer.IterationData> published = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            clock.advance(Duration.ofMillis(100));
+            timer.printIter(1, mib, published::add);
+        }
+        Assert.assertEquals(10, published.size());
+        Timer.IterationData data = published.get(9);
+        LOG.info(data.throughput() + " " + data.eta());
+        Assert.assertEquals(10. * mib, data.bytes_per_second, 1e-6);
+        Assert.assertEquals(10., data.items_per_second, 1e-9);
+        Assert.assertEquals(100 * mib, data.run_bytes);
+        Assert.assertEquals("I/s 1.00e+01 10.00MiB/s RunBytes 100.00MiB", data.throughput());
+        Assert.assertEquals("ETA 10s done 50.0%", data.eta());
+
+        // rate doubles: smoothed rate moves by 1 - exp(-1) of the difference in one smoothing period
+        for (int i = 0; i < 10; i++) {
+            clock.advance(Duration.ofMillis(100));
+            timer.printIter(1, 2 * mib, published::add);
+        }
+        Assert.assertEquals(11, published.size());
+        Assert.assertEquals((10 + 10 * (1 - Math.exp(-1))) * mib, published.get(10).bytes_per_second, 1);
+
+        // items total is used when bytes total is unknown, existing call sites count items only
+        Timer.ThroughputTimer items = new Timer.ThroughputTimer(1., 40, 0, clock);
+        List<Timer.IterationData> itemsPublished = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            clock.advance(Duration.ofMillis(100));
+            items.printIter(1, itemsPublished::add);
+        }
+        Assert.assertEquals("ETA 3s done 25.0%", itemsPublished.get(0).eta());
+        Assert.assertEquals(0, itemsPublished.get(0).run_bytes);
+        Assert.assertEquals("", new Timer.IterationTimer(1., clock).getIterationData().eta());
+    }
+}
@@ -0,0 +1,152 @@
+package org.boxed.cli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.boxed.cli.RetryJob.retryJob;
+import static org.boxed.cli.RetryJob.retryJobAsync;
+
+public class VirtualTimeSourceTest extends BaseTest {
+    @Test
+    public void testRetrySchedule() {
+        VirtualTimeSource clock = new VirtualTimeSource();
+        AtomicInteger attempts = new AtomicInteger();
+        long start = System.nanoTime();
+        // an hour of retry delays in virtual time
+        JTry<Integer> res = retryJob(() -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("backend down");
+        }, Duration.ofHours(1), new RetryJob.Guards().clock(clock));
+        Assert.assertEquals(3, attempts.get());
+        Assert.assertTrue(res.throwable.get().getCause() instanceof IllegalStateException);
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+        // total timeout is measured by the clock: the second 40 minute attempt ends after an hour
+        attempts.set(0);
+        retryJob(() -> {
+            attempts.incrementAndGet();
+            clock.sleep(Duration.ofMinutes(40).toNanos());
+            throw new IllegalStateException("slow backend");
+        }, Duration.ofHours(1), new RetryJob.Guards().clock(clock));
+        Assert.assertEquals(2, attempts.get());
+
+        attempts.set(0);
+        Assert.assertEquals(7, (int) retryJob(() -> {
+            if (attempts.incrementAndGet() < 3) throw new IllegalStateException("not yet");
+            return 7;
+        }, Duration.ofHours(1), new RetryJob.Guards().clock(clock)).getOrThrow());
+    }
+
+    @Test
+    public void testAsyncRetryAndTimeout() {
+        VirtualTimeSource clock = new VirtualTimeSource();
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<Integer> res = retryJobAsync(() -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.failedFuture(new IllegalStateException("backend down"));
+        }, Duration.ofHours(1), clock);
+        Assert.assertEquals(1, attempts.get());
+        Assert.assertFalse("Retries wait for the clock", res.isDone());
+        clock.advance(Duration.ofHours(1));
+        Assert.assertEquals(3, attempts.get());
+        Assert.assertTrue(JTry.of(res::join).throwable.get().getCause() instanceof IllegalStateException);
+        Assert.assertEquals(0, clock.pending());
+
+        CompletableFuture<Integer> hanging = retryJobAsync(CompletableFuture::new, Duration.ofSeconds(10), clock);
+        clock.advance(Duration.ofMillis(9999));
+        Assert.assertFalse(hanging.isDone());
+        clock.advance(Duration.ofMillis(1));
+        Assert.assertTrue(JTry.of(hanging::join).throwable.get().getCause() instanceof TimeoutException);
+    }
+
+    @Test
+    public void testTimeLimiterTimeout() throws Exception {
+        VirtualTimeSource clock = new VirtualTimeSource();
+        TimeLimiter limiter = new TimeLimiter("virtual", 2, clock, true);
+        CountDownLatch never = new CountDownLatch(1), started = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        CompletableFuture<Integer> res = limiter.callAsync(() -> {
+            started.countDown();
+            try {
+                never.await();
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+            return 1;
+        }, Duration.ofSeconds(1));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        clock.advance(Duration.ofMillis(999));
+        Assert.assertFalse(res.isDone());
+        clock.advance(Duration.ofMillis(1));
+        Assert.assertTrue(JTry.of(res::join).throwable.get().getCause() instanceof TimeoutException);
+        Assert.assertEquals(1, limiter.getTimeouts());
+        while (limiter.getRunning() > 0) Thread.sleep(1);
+        Assert.assertTrue(interrupted.get());
+
+        // finished job cancels its timeout
+        Assert.assertEquals(2, (int) limiter.call(() -> 2, Duration.ofSeconds(1)).getOrThrow());
+        Assert.assertEquals(0, clock.pending());
+        limiter.close();
+
+        try (RetryJob.TLimitedJob job = new RetryJob.TLimitedJob(clock)) {
+            CompletableFuture<JTry<Integer>> limited = CompletableFuture.supplyAsync(() -> job.call(() -> {
+                never.await();
+                return 3;
+            }, 500L));
+            while (clock.pending() == 0) Thread.sleep(1);
+            clock.advance(Duration.ofMillis(500));
+            Assert.assertTrue(limited.get(5, TimeUnit.SECONDS).throwable.get() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void testTimerPublishing() {
+        VirtualTimeSource clock = new VirtualTimeSource(123);
+        Timer.IterationTimer timer = new Timer.IterationTimer(10., clock);
+        List<Timer.IterationData> published = new ArrayList<>();
+        timer.printIter(1, published::add);
+        clock.advance(Duration.ofMillis(9999));
+        timer.printIter(2, published::add);
+        Assert.assertTrue(published.isEmpty());
+        clock.advance(Duration.ofMillis(1));
+        timer.printIter(3, published::add);
+        Assert.assertEquals(1, published.size());
+        Assert.assertEquals(10_000_000_000L, published.get(0).iteration_nanosecond_time);
+        Assert.assertEquals(6, published.get(0).iteration_count);
+        clock.advance(Duration.ofSeconds(5));
+        Timer.IterationData last = timer.getIterationData();
+        Assert.assertEquals(5_000_000_000L, last.iteration_nanosecond_time);
+        Assert.assertEquals(15_000_000_000L, last.run_nanosecond_time);
+    }
+
+    @Test
+    public void testScheduleOrder() {
+        VirtualTimeSource clock = new VirtualTimeSource();
+        List<String> order = new ArrayList<>();
+        clock.schedule(() -> order.add("b"), 20);
+        clock.schedule(() -> order.add("a"), 10);
+        clock.schedule(() -> order.add("c"), 20).cancel(false);
+        clock.schedule(() -> {
+            order.add("d@" + clock.nanoTime());
+            clock.schedule(() -> order.add("e@" + clock.nanoTime()), 5);
+        }, 20);
+        clock.advance(24);
+        Assert.assertEquals(List.of("a", "b", "d@20"), order);
+        Assert.assertEquals(24, clock.nanoTime());
+        clock.advance(1);
+        Assert.assertEquals("e@25", order.get(3));
+        Assert.assertEquals(0, clock.pending());
+        Timer.IterationTimer copy = Serializer.Utils.binary2object(Serializer.Utils.object2binary(new Timer.IterationTimer(1.)));
+        Assert.assertSame(TimeSource.SYSTEM, copy.clock);
+    }
+}